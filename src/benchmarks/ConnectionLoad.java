@@ -0,0 +1,165 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.Arrays;
+
+import server.ServerConfig;
+import server.ServerConfig.Transport;
+import server.WhiteboardServer;
+
+/**
+ * Load benchmark comparing the server's threading models: a lot of idle
+ * Artists connect one after the other, and for each model we report the
+ * accept latency (connect until the "LIST" reply arrives), and the resident
+ * memory and live threads of the process while they are all connected. Server
+ * and clients share the process, so numbers are only comparable between
+ * models, and each model is best run in a JVM of its own.
+ *
+ * Run with the models to compare as arguments ("platform", "virtual",
+ * "selector"; all three if there are none), ie.
+ * java -Dwhiteboard.load.connections=5000 benchmarks.ConnectionLoad selector
+ * (500 connections by default; virtual threads need a Java 21 runtime,
+ * otherwise that model is platform threads again).
+ *
+ * This is not threadsafe; it's only run by its main thread.
+ *
+ */
+public class ConnectionLoad {
+    private final int connections = Integer.getInteger("whiteboard.load.connections", 500);
+
+    /**
+     * Runs the benchmark for each model asked for, and exits
+     *
+     * @param args
+     *            models to run, all of them if none
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 0) {
+            args = new String[] { "platform", "virtual", "selector" };
+        }
+
+        ConnectionLoad benchmark = new ConnectionLoad();
+        for (String model : args) {
+            switch (model) {
+            case "platform":
+                benchmark.load("platform threads", 9201, new ServerConfig());
+                break;
+            case "virtual":
+                benchmark.load("virtual threads", 9202, new ServerConfig().setVirtualThreads(true));
+                break;
+            case "selector":
+                benchmark.load("selector", 9203, new ServerConfig().setTransport(Transport.SELECTOR));
+                break;
+            default:
+                System.err.println("no model " + model + ", try platform, virtual or selector");
+            }
+        }
+        // the servers never stop on their own
+        System.exit(0);
+    }
+
+    /**
+     * Connects all of the Artists to a new server, reports, and disconnects
+     * them again
+     *
+     * @param model
+     *            name of the threading model, for the report
+     * @param port
+     *            port to run the server on
+     * @param config
+     *            startup options for the server
+     * @throws IllegalStateException
+     *             if the server doesn't answer an Artist like it should
+     */
+    private void load(String model, int port, ServerConfig config) throws IOException, InterruptedException {
+        startServer(port, config);
+        long rssBefore = residentKB();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        Socket[] sockets = new Socket[connections];
+        long[] latencies = new long[connections];
+
+        for (int i = 0; i < connections; ++i) {
+            long start = System.nanoTime();
+            sockets[i] = new Socket("localhost", port);
+            PrintWriter out = new PrintWriter(sockets[i].getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(sockets[i].getInputStream()));
+
+            out.println("HELLO");
+            String reply = in.readLine();
+            latencies[i] = System.nanoTime() - start;
+
+            if (reply == null || !reply.startsWith("LIST")) {
+                throw new IllegalStateException("expected LIST, got " + reply);
+            }
+        }
+
+        // let the handlers settle before we look
+        Thread.sleep(500);
+        long rss = residentKB() - rssBefore;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+
+        Arrays.sort(latencies);
+        System.out.println(model + ": " + connections + " connections, +" + rss + " kB resident, +" + threads
+                + " threads, accept latency p50 " + latencies[connections / 2] / 1000 + " us, p99 "
+                + latencies[connections * 99 / 100] / 1000 + " us, max " + latencies[connections - 1] / 1000 + " us");
+
+        // let the server clean up after them
+        for (Socket socket : sockets) {
+            new PrintWriter(socket.getOutputStream(), true).println("BYEARTIST");
+            socket.close();
+        }
+    }
+
+    /**
+     * @return resident memory of this process in kB, or 0 if we can't tell
+     *         (not Linux)
+     */
+    private long residentKB() {
+        try (BufferedReader status = new BufferedReader(new FileReader("/proc/self/status"))) {
+            for (String line = status.readLine(); line != null; line = status.readLine()) {
+                // "VmRSS:    123456 kB"
+                if (line.startsWith("VmRSS:")) {
+                    return new Long(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException e) {
+            // not Linux
+        }
+        return 0;
+    }
+
+    /**
+     * Runs the server in another thread
+     *
+     * @param port
+     *            port to run the server on
+     * @param config
+     *            startup options for the server
+     */
+    private void startServer(final int port, final ServerConfig config) {
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    new WhiteboardServer(port, config);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        }).start();
+
+        // Avoid race where we try to connect to server too early
+        try {
+            Thread.sleep(100);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
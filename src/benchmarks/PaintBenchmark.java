@@ -0,0 +1,94 @@
+package benchmarks;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import javax.swing.JPanel;
+
+import client.Renderer;
+
+/**
+ * Benchmark comparing the Canvas's ways of painting the board: straight from
+ * the renderer's front buffer, and accelerated (from a VolatileImage copy of
+ * it). For each we draw a segment per frame and report how long painting
+ * takes, both for the whole board (a window being uncovered) and for just the
+ * area the segment changed (what Swing paints for a repaint of it).
+ *
+ * This runs on whatever pipeline Java2D picks, which on a headless box is the
+ * software one: the "screen" is a BufferedImage, and the VolatileImage is
+ * backed by one as well, so the accelerated numbers are the cost of keeping
+ * the copy up to date without any of the speedup video memory gives.
+ *
+ * Run with java -Dwhiteboard.paint.frames=20000 benchmarks.PaintBenchmark
+ * (2000 frames by default).
+ *
+ * This is not threadsafe; it's only run by its main thread.
+ *
+ */
+public class PaintBenchmark {
+    private final int frames = Integer.getInteger("whiteboard.paint.frames", 2000);
+
+    /**
+     * Runs the benchmark for both ways of painting
+     *
+     * @param args
+     *            ignored
+     */
+    public static void main(String[] args) throws InterruptedException {
+        PaintBenchmark benchmark = new PaintBenchmark();
+        benchmark.paint("buffered", false);
+        benchmark.paint("accelerated", true);
+    }
+
+    /**
+     * Draws and paints frames with a new renderer, and reports
+     *
+     * @param mode
+     *            name of the way of painting, for the report
+     * @param accelerated
+     *            whether the renderer is accelerated
+     */
+    private void paint(String mode, boolean accelerated) throws InterruptedException {
+        Renderer renderer = new Renderer(new JPanel(), 800, 600, accelerated);
+        BufferedImage screen = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = screen.createGraphics();
+
+        long[] whole = new long[frames];
+        long[] changed = new long[frames];
+        for (int i = 0; i < frames; ++i) {
+            int x = (i * 37) % 780;
+            int y = (i * 53) % 580;
+            renderer.line(x, y, x + 10, y + 10, 3, i % 256, 0, 0);
+            renderer.sync();
+
+            long start = System.nanoTime();
+            g.setClip(new Rectangle(x - 4, y - 4, 19, 19));
+            renderer.paint(g);
+            changed[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            g.setClip(null);
+            renderer.paint(g);
+            whole[i] = System.nanoTime() - start;
+        }
+        g.dispose();
+        renderer.close();
+
+        System.out.println(mode + ": " + frames + " frames, paint of the changed area median "
+                + median(changed) / 1000 + "us, p99 " + percentile(changed, 99) / 1000
+                + "us, paint of the whole board median " + median(whole) / 1000 + "us, p99 "
+                + percentile(whole, 99) / 1000 + "us");
+    }
+
+    private long median(long[] values) {
+        return percentile(values, 50);
+    }
+
+    private long percentile(long[] values, int percent) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[(sorted.length - 1) * percent / 100];
+    }
+}
@@ -0,0 +1,140 @@
+package benchmarks;
+
+import java.lang.management.ManagementFactory;
+
+import protocol.Tokenizer;
+
+/**
+ * Benchmark comparing how much parsing a DRAW line allocates the way
+ * handleRequest used to (split(" ") and new Integer) with how much it
+ * allocates with a reused Tokenizer. Each way is warmed up first, and then we
+ * report the bytes the thread allocated per line, which only some JVMs can
+ * tell us.
+ *
+ * Run with java -Dwhiteboard.tokenizer.messages=1000000
+ * benchmarks.TokenizerBenchmark (100000 lines by default).
+ *
+ * This is not threadsafe; it's only run by its main thread.
+ *
+ */
+public class TokenizerBenchmark {
+    private static final String[] VERBS = new String[] { "HELLO", "SELECT", "DRAW" };
+    private static final String LINE = "DRAW Default 420 317 423 319 3 163 31 52";
+
+    private final int messages = Integer.getInteger("whiteboard.tokenizer.messages", 100000);
+    private final com.sun.management.ThreadMXBean allocations;
+    // keeps the parsing from being optimized away
+    private long sum = 0;
+
+    /**
+     * @param allocations
+     *            measures the bytes a thread allocated
+     */
+    private TokenizerBenchmark(com.sun.management.ThreadMXBean allocations) {
+        this.allocations = allocations;
+    }
+
+    /**
+     * Runs the benchmark for both ways of parsing
+     *
+     * @param args
+     *            ignored
+     */
+    public static void main(String[] args) {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            System.out.println("can't measure allocations on this JVM");
+            return;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        TokenizerBenchmark benchmark = new TokenizerBenchmark(allocations);
+        benchmark.split();
+        benchmark.tokenize();
+    }
+
+    /**
+     * Parses lines by splitting them, and reports
+     */
+    private void split() {
+        for (int i = 0; i < messages; ++i) {
+            sum += parseBySplitting(LINE);
+        }
+        long before = allocated();
+        for (int i = 0; i < messages; ++i) {
+            sum += parseBySplitting(LINE);
+        }
+        report("split", allocated() - before);
+    }
+
+    /**
+     * Parses lines with one tokenizer, and reports
+     */
+    private void tokenize() {
+        Tokenizer tokens = new Tokenizer();
+        for (int i = 0; i < messages; ++i) {
+            sum += parseByTokenizing(tokens, LINE);
+        }
+        long before = allocated();
+        for (int i = 0; i < messages; ++i) {
+            sum += parseByTokenizing(tokens, LINE);
+        }
+        report("tokenizer", allocated() - before);
+    }
+
+    /**
+     * @return bytes this thread has allocated so far
+     */
+    private long allocated() {
+        return allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Prints how many bytes a way of parsing allocated, in all and per line
+     *
+     * @param mode
+     *            the way of parsing
+     * @param bytes
+     *            bytes allocated parsing every line
+     */
+    private void report(String mode, long bytes) {
+        System.out.println(mode + ": " + messages + " lines, " + bytes + " bytes, " + (double) bytes / messages
+                + " bytes per line (checksum " + sum + ")");
+    }
+
+    /**
+     * @return x1 + blue, parsed the way handleRequest used to
+     */
+    private int parseBySplitting(String line) {
+        String[] split = line.split(" ");
+        if (!split[0].equals("DRAW") || split[1].isEmpty()) {
+            return 0;
+        }
+        int x1 = new Integer(split[2]);
+        new Integer(split[3]);
+        new Integer(split[4]);
+        new Integer(split[5]);
+        new Integer(split[6]);
+        new Integer(split[7]);
+        new Integer(split[8]);
+        int blue = new Integer(split[9]);
+        return x1 + blue;
+    }
+
+    /**
+     * @return x1 + blue, parsed the way handleRequest does
+     */
+    private int parseByTokenizing(Tokenizer tokens, String line) {
+        if (tokens.reset(line).nextOf(VERBS) != 2 || tokens.nextToken().isEmpty()) {
+            return 0;
+        }
+        int x1 = tokens.nextInt();
+        for (int i = 0; i < 6; ++i) {
+            tokens.nextInt();
+        }
+        int blue = tokens.nextInt();
+        return x1 + blue;
+    }
+}
@@ -9,6 +9,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
@@ -55,7 +56,9 @@ import javax.swing.UIManager.LookAndFeelInfo;
  * manner. All UI updates are handled in Swing's thread. Moreover, to ensure
  * whiteboard names are unique, they are sent to the server first, and the name
  * that returns is unique and the server will have already made a whiteboard
- * with that name (so no race conditions).
+ * with that name (so no race conditions). If the server is one of a cluster,
+ * it tells us which one of them has (or should make) each whiteboard, and the
+ * Canvas talks to that one.
  * 
  * Default port is 4444.
  */
@@ -509,7 +512,12 @@ public class Artist {
                     // if the client chose an existing whiteboard make a
                     // canvas with that name, and close Artist
                     try {
-                        new Canvas(choice, IP, port, color, username);
+                        InetSocketAddress server = locate(choice);
+                        if (server == null) {
+                            new Canvas(choice, IP, port, color, username);
+                        } else {
+                            new Canvas(choice, server.getHostString(), server.getPort(), color, username);
+                        }
                         window.dispose();
                     } catch (Exception e1) {
                         e1.printStackTrace();
@@ -543,19 +551,121 @@ public class Artist {
         // the end, and then "(2)" and so on)
         try {
             // "NEW" WB_NAME COLOR_R COLOR_G COLOR_B
-            outQueue.put("NEW " + whiteboardName + " " + color.getRed() + " " + color.getGreen() + " "
-                    + color.getBlue());
-            String name = inQueue.take();
+            String request = "NEW " + whiteboardName + " " + color.getRed() + " " + color.getGreen() + " "
+                    + color.getBlue();
+            InetSocketAddress server = locate(whiteboardName);
+            String answer;
+            if (server == null) {
+                outQueue.put(request);
+                answer = inQueue.take();
+                if (!answer.startsWith("REDIRECT ")) {
+                    // make a new whiteboard! Then close Artist
+                    new Canvas(answer, IP, port, color, username);
+                    window.dispose();
+                    return;
+                }
+            } else {
+                answer = askFor(server, request);
+            }
+
+            // "REDIRECT" HOST PORT, if the server can't make it after all (ie.
+            // it's a standby), so we go where it says, but only once
+            if (answer.startsWith("REDIRECT ")) {
+                server = redirectedTo(answer);
+                answer = askFor(server, request);
+            }
+            String name = newName(server, answer);
+            // we're done with this server
+            outQueue.put("BYEARTIST");
 
-            // make a new whiteboard! Then close Artist
-            new Canvas(name, IP, port, color, username);
+            new Canvas(name, server.getHostString(), server.getPort(), color, username);
             window.dispose();
 
+        } catch (IOException notMade) {
+            JOptionPane.showMessageDialog(window, "Couldn't make the whiteboard: " + notMade.getMessage());
         } catch (Exception e1) {
             e1.printStackTrace();
         }
     }
 
+    /**
+     * Asks the server which server has a whiteboard, which is only ever
+     * another one if the server is one of a cluster
+     * 
+     * @param boardName
+     *            name of whiteboard, which may not exist yet
+     * @return where to find it, or null if it's on this server
+     * @throws InterruptedException
+     *             if interrupted while waiting for the answer
+     */
+    private InetSocketAddress locate(String boardName) throws InterruptedException {
+        // "WHERE" WB_NAME
+        outQueue.put("WHERE " + boardName);
+        String answer = inQueue.take();
+
+        // "REDIRECT" HOST PORT
+        if (answer.startsWith("REDIRECT")) {
+            return redirectedTo(answer);
+        }
+        // "HERE"
+        return null;
+    }
+
+    /**
+     * @param answer
+     *            "REDIRECT" HOST PORT
+     * @return the server it sends us to
+     */
+    private static InetSocketAddress redirectedTo(String answer) {
+        String[] answerSplit = answer.split(" ");
+        return InetSocketAddress.createUnresolved(answerSplit[1], new Integer(answerSplit[2]));
+    }
+
+    /**
+     * Gets the name a new whiteboard was given out of a server's answer to
+     * "NEW" (see makeNewWhiteboard)
+     * 
+     * @param server
+     *            the server that answered
+     * @param answer
+     *            "NEWNAME" NAME
+     * @return the name, without the "NEWNAME "
+     * @throws IOException
+     *             if it answered anything else
+     */
+    private static String newName(InetSocketAddress server, String answer) throws IOException {
+        if (!answer.startsWith("NEWNAME ")) {
+            throw new IOException(server + " answered " + answer);
+        }
+        return answer.substring(8);
+    }
+
+    /**
+     * Sends one request to a server, on a connection of its own
+     * 
+     * @param server
+     *            the server to ask
+     * @param request
+     *            the request
+     * @return the first line the server answers with
+     * @throws IOException
+     *             if the server can't be reached, or hangs up without
+     *             answering
+     */
+    private String askFor(InetSocketAddress server, String request) throws IOException {
+        try (Socket other = new Socket(server.getHostString(), server.getPort())) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(other.getInputStream()));
+            PrintWriter out = new PrintWriter(other.getOutputStream(), true);
+            out.println(request);
+
+            String answer = in.readLine();
+            if (answer == null) {
+                throw new IOException(server + " hung up");
+            }
+            return answer;
+        }
+    }
+
     /**
      * Respond to the servers's requests appropriately
      * 
@@ -567,6 +677,8 @@ public class Artist {
      * 
      * (3) the new whiteboard name ("NEWNAME" NAME)
      * 
+     * (4) which server has a whiteboard ("HERE" or "REDIRECT" HOST PORT)
+     * 
      * @param input
      *            the input to analyze
      */
@@ -602,6 +714,17 @@ public class Artist {
             }
         }
 
+        // which server has the whiteboard we asked about
+        // "HERE" or "REDIRECT" HOST PORT
+        if (input.equals("HERE") || input.startsWith("REDIRECT")) {
+            try {
+                inQueue.put(input);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
         // things that don't adhere to the grammar were put in here, muy bad
         throw new UnsupportedOperationException();
     }
@@ -1,13 +1,11 @@
 package client;
 
-import java.awt.BasicStroke;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.FontFormatException;
 import java.awt.Graphics;
-import java.awt.Graphics2D;
 import java.awt.GridLayout;
 import java.awt.Image;
 import java.awt.Label;
@@ -18,15 +16,18 @@ import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.awt.image.RenderedImage;
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.BlockingQueue;
@@ -50,6 +51,10 @@ import javax.swing.event.ChangeListener;
 import javax.swing.table.DefaultTableModel;
 
 import facebook.Facebook;
+import protocol.Base64;
+import protocol.FrameReader;
+import protocol.Frames;
+import protocol.Stamps;
 
 /**
  * Canvas represents a drawing surface that allows the user to draw on it
@@ -61,20 +66,28 @@ import facebook.Facebook;
  * things passed to it in the constructor is destroyed after a Canvas is
  * created. Thus, effectively nothing is shared between instances or classes.
  * The threads created only share a socket, which is only used to get the output
- * or input stream. To exchange information to and from the server, blocking
- * queues are used, so that information is all processed in an orderly manner.
- * Things are only ever drawn if/when a draw, bg, or clear command is received
- * from the server, so events are processed in the order they happen (no local
- * drawing). All UI updates are handled in Swing's thread.
+ * or input stream. If the server goes away, the thread reading from it moves us
+ * to one of its standbys (see failOver), with a new socket and writer. To
+ * exchange information to and from the server, blocking queues are used, so
+ * that information is all processed in an orderly manner. Things are only ever
+ * drawn if/when a draw, bg, or clear command is received from the server, so
+ * events are processed in the order they happen (no local drawing). All UI
+ * updates are handled in Swing's thread, except drawing: whatever the server
+ * sends is drawn by the Renderer on its own thread, and Swing's thread only
+ * ever paints the frames it finishes.
  * 
  */
 public class Canvas extends JPanel {
     private static final long serialVersionUID = -4896602587258968937L;
-    private final int port; // default port
+    private volatile int port; // default port
     private Socket socket;
 
-    // image where the user's drawing is stored
-    private Image drawingBuffer;
+    // draws the board on its own thread, whatever thread asks, and holds
+    // the image of it (and a copy of that in video memory, for painting)
+    private final Renderer renderer;
+    // true once we've asked the server for the board, only touched by
+    // Swing's thread
+    private boolean selected = false;
     private Color color = Color.BLACK;
     private Color prevColor = Color.BLACK;
     private Color bgColor;
@@ -84,10 +97,37 @@ public class Canvas extends JPanel {
 
     private final String name;
     private final String user;
-    private final String IP;
-    private final BlockingQueue<String> inQueue;
-    private final BlockingQueue<String> outQueue;
+    private volatile String IP;
+    // lines and frames, ready to go, a new one for every server we talk to
+    private volatile BlockingQueue<byte[]> outQueue;
+    private Thread outCommunication;
     private boolean connected = true;
+    // true once we've said BYE, so the server closing on us is expected
+    private volatile boolean leaving = false;
+    // "host:port" of the server's standbys, and of where one of them sent us
+    // back to (if any), and when we give up on getting to one, only touched
+    // by the thread reading from the server
+    private final List<String> standbys = new ArrayList<String>();
+    private String redirect = null;
+    private long failOverDeadline = 0;
+    // the board's ID once the server has said we can send binary frames
+    private volatile int boardID = -1;
+    // true once the server has said it sends the artsy meter by itself
+    // ("ARTSY"), so draw actions don't have it
+    private volatile boolean artsyEvents = false;
+    // the artsy meter the UI was last told to show, only touched by the
+    // thread reading from the server
+    private int shownArtsy = -1;
+    // base64 snapshot pieces of a join that's still streaming in, only
+    // touched by the thread reading from the server
+    private final StringBuilder snapshotPNG = new StringBuilder();
+    // segments of a join that's still streaming in, X1 Y1 X2 Y2 STROKE RGB
+    // each, handed to the renderer as one replay (see Renderer.replay), and
+    // whether we're joining, only touched by the thread reading from the
+    // server
+    private int[] replay = new int[REPLAY_INTS];
+    private int replayLength = 0;
+    private boolean joining = false;
 
     private final DefaultTableModel playersModel;
     private final JFrame window;
@@ -96,6 +136,11 @@ public class Canvas extends JPanel {
     private final int BUTTON_HEIGHT = 50;
     private final int TABLE_WIDTH = 180;
     private final int TABLE_HEIGHT = 330;
+    private final long FAILOVER_MILLIS = 5000;
+    private final long FAILOVER_RETRY_MILLIS = 50;
+    // the most ints (6 per segment) of a join replayed at a time, so a long
+    // one still shows up as it comes
+    private static final int REPLAY_INTS = 6 * 65536;
     private final int SLIDER_MIN = 1;
     private final int SLIDER_MAX = 10;
     private final int SLIDER_INIT = 3;
@@ -162,8 +207,8 @@ public class Canvas extends JPanel {
         socket = new Socket(IP, port);
         this.IP = IP;
         this.port = port;
-        inQueue = new LinkedBlockingQueue<String>();
-        outQueue = new LinkedBlockingQueue<String>();
+        outQueue = new LinkedBlockingQueue<byte[]>();
+        renderer = new Renderer(this, CANVAS_WIDTH, CANVAS_HEIGHT, true);
 
         playersModel = new DefaultTableModel(0, 1) {
             private static final long serialVersionUID = 2045698881619435427L;
@@ -184,48 +229,18 @@ public class Canvas extends JPanel {
         // draw events
         Thread inCommunication = new Thread(new Runnable() {
             public void run() {
-
-                try (BufferedReader in = new BufferedReader(
-                        new InputStreamReader(socket.getInputStream()))) {
-                    String input;
-
-                    while ((input = in.readLine()) != null) {
-                        // this is on init
-                        if (input.contains("ACTIONS")) {
-                            inQueue.put(input);
-
-                        } else {
-                            handleRequest(input);
-                        }
-                    }
-                    connected = false;
-
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+                // unless we left, a server going away is taken over by one
+                // of its standbys
+                do {
+                    readFromServer();
+                } while (!leaving && failOver());
+                connected = false;
+                renderer.close();
             }
         });
 
         inCommunication.start();
-
-        // Thread that prints out to the server, mainly informing it of new draw
-        // events
-        Thread outCommunication = new Thread(new Runnable() {
-            public void run() {
-
-                try (PrintWriter out = new PrintWriter(
-                        socket.getOutputStream(), true)) {
-
-                    while (connected) {
-                        out.println(outQueue.take());
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-        });
-
-        outCommunication.start();
+        outCommunication = startWriter(socket, outQueue);
 
         // Main Window creation
         window = new JFrame("Whiteboard: " + boardName);
@@ -443,7 +458,7 @@ public class Canvas extends JPanel {
                         try {
                             // "BG" WB_NAME COLOR_R COLOR_G COLOR_BAME COLOR_R
                             // COLOR_G COLOR_B
-                            outQueue.put("BG " + name + " " + bgColor.getRed()
+                            send("BG " + name + " " + bgColor.getRed()
                                     + " " + bgColor.getGreen() + " "
                                     + bgColor.getBlue());
                         } catch (InterruptedException e1) {
@@ -538,7 +553,7 @@ public class Canvas extends JPanel {
 
                 // Tells server board has been cleared
                 try {
-                    outQueue.put("CLEAR " + name);
+                    send("CLEAR " + name);
 
                 } catch (InterruptedException e1) {
                     e1.printStackTrace();
@@ -552,10 +567,9 @@ public class Canvas extends JPanel {
                 // put the doge action on the queue!
                 try {
                     // "DRAW" WB_NAME X1 Y1 X2 Y2 STROKE COLOR_R COLOR_G COLOR_B
-                    // (everything is -1 for doge)
-                    outQueue.put("DRAW " + name + " " + -1 + " " + -1 + " "
-                            + -1 + " " + -1 + " " + -1 + " " + -1 + " " + -1
-                            + " " + -1);
+                    // (a stamp in the middle of the board, everything is -1
+                    // for doge)
+                    sendDraw(-1, -1, -1, -1, Stamps.stroke(Stamps.DOGE), -1, -1, -1);
 
                 } catch (InterruptedException e1) {
                     e1.printStackTrace();
@@ -567,7 +581,8 @@ public class Canvas extends JPanel {
         switchBoards.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 try {
-                    outQueue.put("BYE " + name + " " + user);
+                    leaving = true;
+                    send("BYE " + name + " " + user);
                     new Artist(IP, port);
                     window.dispose();
 
@@ -588,8 +603,10 @@ public class Canvas extends JPanel {
                     String fileName = "images/" + randomInt + ".png";
                     File outputfile = new File(fileName);
 
-                    // attempts to write the image to that file location
-                    ImageIO.write((RenderedImage) drawingBuffer, "png", outputfile);
+                    // attempts to write the image to that file location, with
+                    // everything that's come in so far
+                    renderer.sync();
+                    ImageIO.write(renderer.frame(), "png", outputfile);
 
                     // publish the image to facebook
                     facebook.publishImage(fileName);
@@ -612,7 +629,8 @@ public class Canvas extends JPanel {
             @Override
             public void windowClosing(WindowEvent e) {
                 try {
-                    outQueue.put("BYE " + name + " " + user);
+                    leaving = true;
+                    send("BYE " + name + " " + user);
 
                 } catch (Exception e1) {
                     e1.printStackTrace();
@@ -629,6 +647,12 @@ public class Canvas extends JPanel {
      *            from 0-100, how artsy the whiteboard currently is
      */
     private void setArtsy(final int artsy) {
+        if (artsy == shownArtsy) {
+            // nothing to change, don't bother the UI
+            return;
+        }
+        shownArtsy = artsy;
+
         SwingUtilities.invokeLater(new Runnable() {
 
             @Override
@@ -696,40 +720,246 @@ public class Canvas extends JPanel {
     }
 
     /**
-     * Send the server the message to select a whiteboard, set the bg color and
-     * users list and draw the actions.
+     * Reads from the server until it goes away, mainly keeping track of new
+     * draw events
+     */
+    private void readFromServer() {
+        try (InputStream stream = socket.getInputStream()) {
+            // draws can come as binary frames
+            FrameReader in = new FrameReader(stream);
+            int type;
+
+            while ((type = in.next()) != FrameReader.END) {
+                if (type == FrameReader.LINE) {
+                    // the board itself streams in on init, drawn as it comes
+                    handleRequest(in.line());
+                } else {
+                    handleFrame(type, in.payload(), in.length());
+                }
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts a thread that prints out to the server, mainly informing it of
+     * new draw events, until we're done or move to another server
+     * 
+     * @param server
+     *            socket connected to the server
+     * @param queue
+     *            the lines and frames for that server
+     * @return the thread
+     */
+    private Thread startWriter(final Socket server,
+            final BlockingQueue<byte[]> queue) {
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+
+                try (OutputStream out = new BufferedOutputStream(
+                        server.getOutputStream())) {
+
+                    while (connected) {
+                        out.write(queue.take());
+                        // send it once there's nothing else to send with it
+                        if (queue.isEmpty()) {
+                            out.flush();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // we moved to another server, this one is done
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+
+        writer.start();
+        return writer;
+    }
+
+    /**
+     * Moves to another server once ours is gone: where a standby sent us back
+     * to, if one did, otherwise the first of the server's standbys that takes
+     * us. The board is selected again and comes back the same way it did on
+     * join. Whatever was still waiting to be sent is dropped (its frames have
+     * the old server's board ID), and draws go as lines until the new server
+     * says otherwise. Only the thread reading from the server calls this.
+     * 
+     * @return true if another server took us, false if there's none to go to
+     *         or none took us in time
+     */
+    private boolean failOver() {
+        long now = System.currentTimeMillis();
+        if (failOverDeadline == 0) {
+            // a standby may send us back and forth until it notices the
+            // server is gone, this is how long we keep at it
+            failOverDeadline = now + FAILOVER_MILLIS;
+        }
+
+        while (now < failOverDeadline && (redirect != null || !standbys.isEmpty())) {
+            List<String> servers = new ArrayList<String>();
+            if (redirect != null) {
+                servers.add(redirect);
+                redirect = null;
+            } else {
+                // give them a moment to notice
+                try {
+                    Thread.sleep(FAILOVER_RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                servers.addAll(standbys);
+            }
+
+            for (String server : servers) {
+                int colon = server.lastIndexOf(':');
+                String host = server.substring(0, colon);
+                int serverPort = new Integer(server.substring(colon + 1));
+                Socket next;
+                try {
+                    next = new Socket(host, serverPort);
+                } catch (IOException e) {
+                    // not up, try the next one
+                    continue;
+                }
+
+                // the ID first, so a draw put on the new queue never has
+                // the old one (see sendDraw)
+                boardID = -1;
+                outQueue = new LinkedBlockingQueue<byte[]>();
+                outCommunication.interrupt();
+                socket = next;
+                IP = host;
+                port = serverPort;
+                outCommunication = startWriter(next, outQueue);
+                setupWhiteboard();
+                return true;
+            }
+            now = System.currentTimeMillis();
+        }
+        return false;
+    }
+
+    /**
+     * Send the server the message to select a whiteboard. The bg color, users
+     * list, snapshot and the actions after it stream back in chunks, and are
+     * drawn as they arrive (see handleRequest).
      */
     private void setupWhiteboard() {
         try {
-            // "SELECT" WB_NAME USER_NAME
-            outQueue.put("SELECT " + name + " " + user);
+            // until this server says otherwise
+            artsyEvents = false;
+            // "SELECT" WB_NAME USER_NAME "RASTER" "STREAM" "BINARY" "ARTSY"
+            send("SELECT " + name + " " + user + " RASTER STREAM BINARY ARTSY");
 
-            // BG_RED BG_GREEN BG_BLUE ARTSY_METER "USERS" USER_NAME
-            // USER_NAME... "ACTIONS" X1 Y1 X2 Y2 STROKE COLOR_R COLOR_G
-            // COLOR_B X1 Y1 X2 Y2 STROKE COLOR_R COLOR_G COLOR_B...
-            String[] totalInput = inQueue.take().split(" ACTIONS ");
-            String[] usersInput = totalInput[0].split(" ");
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
 
-            int red = new Integer(usersInput[0]);
-            int green = new Integer(usersInput[1]);
-            int blue = new Integer(usersInput[2]);
-            int artsy = new Integer(usersInput[3]);
+    /**
+     * Puts a line on the queue to the server
+     * 
+     * @param line
+     *            the message, without a line terminator
+     * @throws InterruptedException
+     *             if interrupted while waiting on the queue
+     */
+    private void send(String line) throws InterruptedException {
+        outQueue.put((line + "\n").getBytes());
+    }
 
-            setArtsy(artsy);
-            bgColor = new Color(red, green, blue);
-            fillBackground();
+    /**
+     * Puts a draw action on the queue to the server, as a binary frame if the
+     * server said we could, otherwise as a line ("DRAW" WB_NAME X1 Y1 X2 Y2
+     * STROKE COLOR_R COLOR_G COLOR_B, a negative stroke for a stamp, see
+     * Stamps)
+     * 
+     * @throws InterruptedException
+     *             if interrupted while waiting on the queue
+     */
+    private void sendDraw(int x1, int y1, int x2, int y2, int stroke, int red,
+            int green, int blue) throws InterruptedException {
+        // the queue before the ID, so a frame never goes to a new server
+        // with the old one's ID (see failOver)
+        BlockingQueue<byte[]> queue = outQueue;
+        int id = boardID;
+        if (id >= 0) {
+            queue.put(Frames.encodeDraw(id, x1, y1, x2, y2, stroke, red,
+                    green, blue));
+        } else {
+            send("DRAW " + name + " " + x1 + " " + y1 + " " + x2 + " " + y2
+                    + " " + stroke + " " + red + " " + green + " " + blue);
+        }
+    }
 
-            // draw the actions if there are actions to draw
-            if (totalInput.length > 1) {
-                parseActions(totalInput[1], false);
+    /**
+     * Sets the bg color, artsy meter and users list at the start of a
+     * streamed join
+     * 
+     * @param input
+     *            "SNAPSHOT_BEGIN" BG_RED BG_GREEN BG_BLUE ARTSY_METER "USERS"
+     *            USER_NAME USER_NAME...
+     */
+    private void beginSnapshot(String input) {
+        String[] usersInput = input.split(" ");
+
+        int red = new Integer(usersInput[1]);
+        int green = new Integer(usersInput[2]);
+        int blue = new Integer(usersInput[3]);
+        int artsy = new Integer(usersInput[4]);
+
+        setArtsy(artsy);
+        bgColor = new Color(red, green, blue);
+        fillBackground();
+        snapshotPNG.setLength(0);
+        // whatever was left of a join that was cut short is gone
+        replayLength = 0;
+        joining = true;
+
+        // a slow client can be sent the board again, users and all
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                playersModel.setRowCount(0);
             }
+        });
+
+        // add users to the playersModel
+        for (int i = 6; i < usersInput.length; ++i) {
+            addRemoveUsers(usersInput[i], true);
+        }
+    }
+
+    /**
+     * Draws the snapshot pieces that have streamed in so far, if there are
+     * any. They all come before any actions, so this is called on the first
+     * chunk of actions (or the end of the join).
+     */
+    private void flushSnapshot() {
+        if (snapshotPNG.length() > 0) {
+            drawSnapshot(snapshotPNG.toString());
+            snapshotPNG.setLength(0);
+        }
+    }
 
-            // add users to the playersModel
-            for (int i = 5; i < usersInput.length; ++i) {
-                addRemoveUsers(usersInput[i], true);
+    /**
+     * Draws a snapshot of the board, as the server sends it
+     * 
+     * @param snapshot
+     *            base64 PNG of the whole board
+     */
+    private void drawSnapshot(String snapshot) {
+        try {
+            Image img = ImageIO.read(new ByteArrayInputStream(Base64.decode(snapshot)));
+            if (img != null) {
+                renderer.image(img, 0, 0);
             }
 
-        } catch (InterruptedException e) {
+        } catch (IOException | IllegalArgumentException e) {
             e.printStackTrace();
         }
     }
@@ -766,69 +996,76 @@ public class Canvas extends JPanel {
             int green = new Integer(pixelsInput[i - 1]);
             int blue = new Integer(pixelsInput[i]);
 
-            // draw it!
-            if (stroke == -1) { // this is doge
-                doge();
-            } else { // not doge, normal line
-                drawLineSegment(x1, y1, x2, y2, new Color(red, green, blue),
-                        stroke);
-            }
+            drawAction(x1, y1, x2, y2, stroke, red, green, blue);
         }
     }
 
     /**
-     * @see javax.swing.JComponent#paintComponent(java.awt.Graphics)
+     * Draws one action: a line segment, or a stamp (like doge) if the stroke
+     * is negative. The segments of a join are saved up and replayed together.
      */
-    @Override
-    public void paintComponent(Graphics g) {
-        // If this is the first time paintComponent() is being called,
-        // make our drawing buffer.
-        if (drawingBuffer == null) {
-            makeDrawingBuffer();
+    private void drawAction(int x1, int y1, int x2, int y2, int stroke,
+            int red, int green, int blue) {
+        // draw it!
+        if (Stamps.isStamp(stroke)) { // this is doge, or another stamp
+            // after everything before it
+            flushReplay();
+            // so color
+            // much pixel
+            // many image
+            // wow.
+            renderer.stamp(Stamps.id(stroke), x1, y1);
+        } else if (joining) { // part of the board's history
+            if (replayLength == replay.length) {
+                flushReplay();
+            }
+            replay[replayLength++] = x1;
+            replay[replayLength++] = y1;
+            replay[replayLength++] = x2;
+            replay[replayLength++] = y2;
+            replay[replayLength++] = stroke;
+            replay[replayLength++] = (red << 16) | (green << 8) | blue;
+        } else { // not a stamp, normal line
+            renderer.line(x1, y1, x2, y2, stroke, red, green, blue);
         }
-
-        // Copy the drawing buffer to the screen.
-        g.drawImage(drawingBuffer, 0, 0, null);
     }
 
     /**
-     * Make the drawing buffer and draw some starting content for it
+     * Hands the segments of the join saved up so far to the renderer. A full
+     * buffer is handed over as it is, and a new one takes its place; anything
+     * less is copied, and the buffer is kept.
      */
-    private void makeDrawingBuffer() {
-        drawingBuffer = createImage(getWidth(), getHeight());
-        // set up the whiteboard before we paint!
-        setupWhiteboard();
+    private void flushReplay() {
+        if (replayLength == replay.length) {
+            renderer.replay(replay, replayLength / 6);
+            replay = new int[REPLAY_INTS];
+        } else if (replayLength > 0) {
+            renderer.replay(Arrays.copyOf(replay, replayLength), replayLength / 6);
+        }
+        replayLength = 0;
     }
 
     /**
-     * Fill the background with the background color
+     * @see javax.swing.JComponent#paintComponent(java.awt.Graphics)
      */
-    private void fillBackground() {
-        final Graphics2D g = (Graphics2D) drawingBuffer.getGraphics();
-        g.setColor(bgColor);
-        g.fillRect(0, 0, getWidth(), getHeight());
-        this.repaint();
+    @Override
+    public void paintComponent(Graphics g) {
+        // If this is the first time paintComponent() is being called,
+        // set up the whiteboard before we paint!
+        if (!selected) {
+            selected = true;
+            setupWhiteboard();
+        }
+
+        // Copy the last frame the renderer drew to the screen.
+        renderer.paint(g);
     }
 
     /**
-     * Draw a welcoming image on the whiteboard
+     * Fill the background with the background color
      */
-    private void doge() {
-        final Graphics2D g = (Graphics2D) drawingBuffer.getGraphics();
-        // so color
-        // much pixel
-        // many image
-        // wow.
-        Image img = null;
-        try {
-            img = ImageIO.read(new File("files/DOGE.png"));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        g.drawImage(img, (800 - 550) / 2, (600 - 550) / 2, null);
-
-        this.repaint();
+    private void fillBackground() {
+        renderer.fill(bgColor);
     }
 
     /**
@@ -846,10 +1083,12 @@ public class Canvas extends JPanel {
         // sets the file save location
         File outputfile = new File(fileLocation);
 
-        // attempts to write the image to that file location
+        // attempts to write the image to that file location, with everything
+        // that's come in so far
         try {
-            ImageIO.write((RenderedImage) drawingBuffer, "png", outputfile);
-        } catch (IOException e) {
+            renderer.sync();
+            ImageIO.write(renderer.frame(), "png", outputfile);
+        } catch (IOException | InterruptedException e) {
             e.printStackTrace();
         }
     }
@@ -890,34 +1129,6 @@ public class Canvas extends JPanel {
         return null;
     }
 
-    /**
-     * Draw a line between two points (x1, y1) and (x2, y2), specified in pixels
-     * relative to the upper-left corner of the drawing buffer.
-     * 
-     * @param x1
-     *            starting x
-     * @param y1
-     *            starting y
-     * @param x2
-     *            ending x
-     * @param y2
-     *            ending y
-     * @param color
-     *            color of the drawing
-     * @param stroke
-     *            thickness of the drawing (>=0)
-     */
-    private void drawLineSegment(int x1, int y1, int x2, int y2, Color color,
-            int stroke) {
-        Graphics2D graphics = (Graphics2D) drawingBuffer.getGraphics();
-
-        graphics.setColor(color);
-        graphics.setStroke(new BasicStroke(stroke));
-        graphics.drawLine(x1, y1, x2, y2);
-
-        this.repaint();
-    }
-
     /**
      * Add the mouse listener that supports the user's freehand drawing.
      */
@@ -958,10 +1169,8 @@ public class Canvas extends JPanel {
 
             // put the draw action on the queue!
             try {
-                // "DRAW" WB_NAME X1 Y1 X2 Y2 STROKE COLOR_R COLOR_G COLOR_B
-                outQueue.put("DRAW " + name + " " + lastX + " " + lastY + " "
-                        + x + " " + y + " " + stroke + " " + color.getRed()
-                        + " " + color.getGreen() + " " + color.getBlue());
+                sendDraw(lastX, lastY, x, y, stroke, color.getRed(),
+                        color.getGreen(), color.getBlue());
             } catch (InterruptedException e1) {
                 e1.printStackTrace();
             }
@@ -987,13 +1196,36 @@ public class Canvas extends JPanel {
         }
     }
 
+    /**
+     * Respond to a binary frame from the server: a draw action with the artsy
+     * meter as its header (see Frames), unless the server sends it by itself
+     * 
+     * @param type
+     *            type of the frame
+     * @param payload
+     *            holds the frame's payload
+     * @param length
+     *            length of the payload
+     */
+    private void handleFrame(int type, byte[] payload, int length) {
+        int[] values = new int[9];
+        Frames.decodeDraw(type, payload, length, values);
+
+        if (!artsyEvents) {
+            setArtsy(values[0]);
+        }
+        drawAction(values[1], values[2], values[3], values[4], values[5],
+                values[6], values[7], values[8]);
+    }
+
     /**
      * Respond to the servers's requests appropriately
      * 
      * Possible requests:
      * 
      * (1) new draw actions ("DRAW" ARTSY_METER X1 Y1 X1 Y2 STROKE COLOR_R
-     * COLOR_G COLOR_B),
+     * COLOR_G COLOR_B), or without the artsy meter once the server has said
+     * it sends it by itself,
      * 
      * (2) change whiteboard bg color ("BG" COLOR_R COLOR_G COLOR_B),
      * 
@@ -1001,17 +1233,98 @@ public class Canvas extends JPanel {
      * 
      * (4) user leaves ("BYEUSER" USER_NAME)
      * 
+     * (5) the board, on join or again if we fell behind ("SNAPSHOT_BEGIN"
+     * BG_RED BG_GREEN BG_BLUE ARTSY_METER "USERS" USER_NAME..., then
+     * ("SNAPSHOT_CHUNK" "PNG" PNG_BASE64_PIECE) and ("SNAPSHOT_CHUNK"
+     * "ACTIONS" X1 Y1 X2 Y2 STROKE COLOR_R COLOR_G COLOR_B...) chunks, then
+     * "SNAPSHOT_END")
+     * 
+     * (6) draw actions can be sent as frames from now on ("BINARY" BOARD_ID)
+     * 
+     * (7) somewhere to go if the server goes away ("STANDBY" HOST PORT), and
+     * where a standby sends us back to while the server is still up
+     * ("REDIRECT" HOST PORT)
+     * 
+     * (8) the artsy meter, after the board and whenever it changes from then
+     * on ("ARTSY" ARTSY_METER), which it isn't sent with draw actions anymore
+     * 
      * @param input
      *            the server's request
      */
     private void handleRequest(String input) {
         String[] inputSplit = input.split(" ");
 
+        // a piece of the board we're joining
+        // "SNAPSHOT_CHUNK" "PNG" PNG_BASE64_PIECE or "SNAPSHOT_CHUNK"
+        // "ACTIONS" X1 Y1 X2 Y2 STROKE COLOR_R COLOR_G COLOR_B...
+        if (inputSplit[0].equals("SNAPSHOT_CHUNK")) {
+            if (inputSplit[1].equals("PNG")) {
+                snapshotPNG.append(inputSplit[2]);
+            } else {
+                flushSnapshot();
+                // everything but "SNAPSHOT_CHUNK ACTIONS "
+                parseActions(input.substring(23), false);
+            }
+            return;
+        }
+
+        // start of the board we're joining
+        // "SNAPSHOT_BEGIN" BG_RED BG_GREEN BG_BLUE ARTSY_METER "USERS"
+        // USER_NAME...
+        if (inputSplit[0].equals("SNAPSHOT_BEGIN")) {
+            beginSnapshot(input);
+            return;
+        }
+
+        // end of the board we're joining
+        // "SNAPSHOT_END"
+        if (inputSplit[0].equals("SNAPSHOT_END")) {
+            flushSnapshot();
+            flushReplay();
+            joining = false;
+            // we're on a board again, if we were moving
+            failOverDeadline = 0;
+            return;
+        }
+
+        // one of the server's standbys
+        // "STANDBY" HOST PORT
+        if (inputSplit[0].equals("STANDBY")) {
+            String standby = inputSplit[1] + ":" + inputSplit[2];
+            if (!standbys.contains(standby)) {
+                standbys.add(standby);
+            }
+            return;
+        }
+
+        // a standby that's still following the server, go back to it
+        // "REDIRECT" HOST PORT
+        if (inputSplit[0].equals("REDIRECT")) {
+            redirect = inputSplit[1] + ":" + inputSplit[2];
+            return;
+        }
+
+        // the server understands binary frames
+        // "BINARY" BOARD_ID
+        if (inputSplit[0].equals("BINARY")) {
+            boardID = new Integer(inputSplit[1]);
+            return;
+        }
+
+        // the artsy meter, by itself
+        // "ARTSY" ARTSY_METER
+        if (inputSplit[0].equals("ARTSY")) {
+            artsyEvents = true;
+            setArtsy(new Integer(inputSplit[1]));
+            return;
+        }
+
         // new draw action
-        // "DRAW" ARTSY_METER X1 Y1 X1 Y2 STROKE COLOR_R COLOR_G COLOR_B
+        // "DRAW" ARTSY_METER X1 Y1 X1 Y2 STROKE COLOR_R COLOR_G COLOR_B, or
+        // without the artsy meter
         if (inputSplit[0].equals("DRAW")) {
-            // everything but "DRAW ", also we have artsy!!
-            parseActions(input.substring(5), true);
+            // everything but "DRAW ", and maybe we have artsy!!
+            parseActions(input.substring(5), inputSplit.length == 10);
             return;
         }
 
@@ -1023,6 +1336,8 @@ public class Canvas extends JPanel {
             int blue = new Integer(inputSplit[3]);
             bgColor = new Color(red, green, blue);
             fillBackground();
+            // the board was cleared too
+            setArtsy(0);
             return;
         }
 
@@ -0,0 +1,732 @@
+package client;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+
+import javax.imageio.ImageIO;
+import javax.swing.JComponent;
+
+import protocol.Stamps;
+
+/**
+ * Draws a Canvas's board. Line segments, fills, images and stamps can be
+ * queued from any thread (mostly the one reading from the server); the
+ * renderer's own thread draws them in order onto a back buffer, a batch at a
+ * time, with one graphics context, a stroke per width that's made once, and
+ * the color and stroke only set when they change. Once a batch is drawn the
+ * back buffer becomes the front one, which is what Swing's thread paints, and
+ * only the part of the view the batch touched is repainted. Swing's thread
+ * never waits on drawing, and never sees a batch half drawn.
+ *
+ * A lot of segments at once, like a board's history on join, can be queued
+ * as a replay. A big replay is split up into tiles, each tile gets the
+ * segments that touch it, in order, and the tiles are drawn in parallel, each
+ * on an image of its own, and then put back together on the back buffer.
+ *
+ * The buffers have the screen's pixel format, so painting them is a straight
+ * copy. Stamps are read once for every renderer, the first time one is drawn,
+ * and kept already scaled and in the screen's pixel format, so a stamp is just
+ * a copy too. An accelerated renderer also keeps a copy of the front buffer in
+ * a VolatileImage, which can live in video memory, and paints that instead:
+ * only what changed since the last paint is copied over, and if the copy is
+ * lost (the screen changed, say) it's made again from the front buffer, which
+ * is also what gets exported.
+ *
+ * This is threadsafe because things to draw are handed over on a blocking
+ * queue, the back buffer and everything used to draw on it are only ever
+ * touched by the renderer's thread, and the front buffer is only swapped or
+ * read with the renderer locked. The tiles of a replay only read the back
+ * buffer and the strokes while the renderer's thread waits for them, and
+ * each draws on its own image. The VolatileImage is only touched by Swing's
+ * thread, with the renderer locked. The stamps are only touched with the
+ * class locked, and never change once they're made.
+ *
+ */
+public class Renderer {
+    // the most things drawn before showing them
+    private static final int BATCH = 4096;
+
+    private static final int LINE = 0;
+    private static final int FILL = 1;
+    private static final int IMAGE = 2;
+    private static final int REPLAY = 3;
+    private static final int STAMP = 4;
+    // not drawings: show everything before it and say so, or stop
+    private static final int SYNC = 5;
+    private static final int CLOSE = 6;
+
+    // replays with fewer segments than this are drawn one after the other
+    private static final int PARALLEL_MIN = 4096;
+    // side of the square tiles a big replay is split into
+    private static final int TILE = 128;
+    // ints per segment of a replay
+    private static final int SEGMENT = 6;
+    // draws the tiles of big replays, for every renderer
+    private static final ForkJoinPool tiles = new ForkJoinPool();
+    // stamps by ID, ready to draw, for every renderer, and whether each has
+    // been read yet (so one that can't be isn't tried again)
+    private static final BufferedImage[] sprites = new BufferedImage[Stamps.count()];
+    private static final boolean[] read = new boolean[Stamps.count()];
+
+    private final JComponent view;
+    private final int width;
+    private final int height;
+    // the screen's, or null if there isn't one
+    private final GraphicsConfiguration screen;
+    private final boolean accelerated;
+    private final BlockingQueue<Drawing> pending = new LinkedBlockingQueue<Drawing>();
+    // true once the renderer's thread has stopped, or is about to
+    private volatile boolean closed = false;
+
+    // what Swing's thread paints, only swapped or read with this locked
+    private BufferedImage front;
+    // copy of the front buffer that Swing's thread paints if we're
+    // accelerated, and the part of it that's out of date (null if none), only
+    // touched with this locked
+    private VolatileImage copy;
+    private Rectangle stale;
+
+    // only touched by the renderer's thread
+    private BufferedImage back;
+    private Graphics2D frontGraphics;
+    private Graphics2D backGraphics;
+    // what backGraphics is set to, -1 if we don't know
+    private int currentRGB = -1;
+    private int currentStroke = -1;
+    // strokes by width, made the first time they're needed
+    private BasicStroke[] strokes = new BasicStroke[16];
+    // around everything drawn on the back buffer since it was last shown,
+    // nothing if minX > maxX
+    private int minX = Integer.MAX_VALUE;
+    private int minY = Integer.MAX_VALUE;
+    private int maxX = Integer.MIN_VALUE;
+    private int maxY = Integer.MIN_VALUE;
+
+    /**
+     * Makes a renderer that paints its buffers as they are, with a black
+     * board, and starts its thread
+     *
+     * @param view
+     *            what shows the board, repainted where it's drawn on
+     * @param width
+     *            width of the board in pixels
+     * @param height
+     *            height of the board in pixels
+     */
+    public Renderer(JComponent view, int width, int height) {
+        this(view, width, height, false);
+    }
+
+    /**
+     * Makes a renderer, with a black board, and starts its thread
+     *
+     * @param view
+     *            what shows the board, repainted where it's drawn on
+     * @param width
+     *            width of the board in pixels
+     * @param height
+     *            height of the board in pixels
+     * @param accelerated
+     *            whether to paint from a copy that can live in video memory
+     */
+    public Renderer(JComponent view, int width, int height, boolean accelerated) {
+        this.view = view;
+        this.width = width;
+        this.height = height;
+        this.accelerated = accelerated;
+        screen = screen();
+        front = newImage(width, height);
+        back = newImage(width, height);
+        frontGraphics = front.createGraphics();
+        backGraphics = back.createGraphics();
+
+        Thread rasterizer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    rasterize();
+                } catch (InterruptedException e) {
+                    // nothing more to draw
+                }
+                frontGraphics.dispose();
+                backGraphics.dispose();
+            }
+        }, "canvas-rasterizer");
+        rasterizer.setDaemon(true);
+        rasterizer.start();
+    }
+
+    /**
+     * Queues a line segment from (x1, y1) to (x2, y2), in pixels relative to
+     * the upper-left corner of the board
+     *
+     * @param stroke
+     *            thickness of the line (>=0)
+     */
+    public void line(int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue) {
+        Drawing line = new Drawing(LINE);
+        line.x1 = x1;
+        line.y1 = y1;
+        line.x2 = x2;
+        line.y2 = y2;
+        line.stroke = stroke;
+        line.rgb = (red << 16) | (green << 8) | blue;
+        pending.add(line);
+    }
+
+    /**
+     * Queues filling the whole board with a color
+     *
+     * @param color
+     *            color to fill it with
+     */
+    public void fill(Color color) {
+        Drawing fill = new Drawing(FILL);
+        fill.rgb = color.getRGB() & 0xFFFFFF;
+        pending.add(fill);
+    }
+
+    /**
+     * Queues drawing an image, with its upper-left corner at (x, y)
+     *
+     * @param image
+     *            the image, already loaded
+     */
+    public void image(Image image, int x, int y) {
+        Drawing drawing = new Drawing(IMAGE);
+        drawing.image = image;
+        drawing.x1 = x;
+        drawing.y1 = y;
+        pending.add(drawing);
+    }
+
+    /**
+     * Queues a stamp, which is left out if we don't know it
+     *
+     * @param id
+     *            ID of the stamp (see Stamps)
+     * @param x
+     *            where its middle goes, or -1 for the middle of the board
+     * @param y
+     *            where its middle goes, or -1 for the middle of the board
+     */
+    public void stamp(int id, int x, int y) {
+        Drawing stamp = new Drawing(STAMP);
+        stamp.stroke = id;
+        stamp.x1 = x;
+        stamp.y1 = y;
+        pending.add(stamp);
+    }
+
+    /**
+     * Queues a lot of line segments at once, like a board's history on join
+     *
+     * @param segments
+     *            X1 Y1 X2 Y2 STROKE RGB (packed, 0xRRGGBB) of each segment,
+     *            in order. Not to be modified once it's queued.
+     * @param count
+     *            how many segments there are
+     */
+    public void replay(int[] segments, int count) {
+        Drawing replay = new Drawing(REPLAY);
+        replay.segments = segments;
+        replay.count = count;
+        pending.add(replay);
+    }
+
+    /**
+     * Waits until everything queued so far is drawn and shown, or the
+     * renderer is closed.
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public void sync() throws InterruptedException {
+        Drawing sync = new Drawing(SYNC);
+        sync.done = new CountDownLatch(1);
+        pending.add(sync);
+        if (!closed) {
+            sync.done.await();
+        }
+    }
+
+    /**
+     * Stops the renderer's thread once everything queued so far is drawn and
+     * shown. Nothing queued after this is drawn.
+     */
+    public void close() {
+        pending.add(new Drawing(CLOSE));
+    }
+
+    /**
+     * Paints the board as of the last batch that was drawn
+     *
+     * @param g
+     *            graphics to paint it with
+     */
+    public synchronized void paint(Graphics g) {
+        if (!accelerated) {
+            g.drawImage(front, 0, 0, null);
+            return;
+        }
+
+        // wherever we're painting to
+        GraphicsConfiguration configuration = ((Graphics2D) g).getDeviceConfiguration();
+        do {
+            int status = copy == null ? VolatileImage.IMAGE_INCOMPATIBLE : copy.validate(configuration);
+            if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+                // new, or on another screen now
+                if (copy != null) {
+                    copy.flush();
+                }
+                copy = configuration.createCompatibleVolatileImage(width, height);
+                stale = new Rectangle(0, 0, width, height);
+            } else if (status == VolatileImage.IMAGE_RESTORED) {
+                // its contents were lost
+                stale = new Rectangle(0, 0, width, height);
+            }
+
+            if (stale != null) {
+                Graphics2D graphics = copy.createGraphics();
+                int x2 = stale.x + stale.width;
+                int y2 = stale.y + stale.height;
+                graphics.drawImage(front, stale.x, stale.y, x2, y2, stale.x, stale.y, x2, y2, null);
+                graphics.dispose();
+                stale = null;
+            }
+            g.drawImage(copy, 0, 0, null);
+        } while (copy.contentsLost());
+    }
+
+    /**
+     * @return a copy of the board as of the last batch that was drawn
+     */
+    public synchronized BufferedImage frame() {
+        return new BufferedImage(front.getColorModel(), front.copyData(null), false, null);
+    }
+
+    /**
+     * Draws whatever is queued, a batch at a time, until closed. Only the
+     * renderer's thread calls this.
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting for something to draw
+     */
+    private void rasterize() throws InterruptedException {
+        while (true) {
+            Drawing drawing = pending.take();
+            int drawn = 0;
+            while (true) {
+                if (drawing.kind == SYNC) {
+                    show();
+                    drawing.done.countDown();
+                } else if (drawing.kind == CLOSE) {
+                    show();
+                    // nobody waits on a sync that will never come
+                    closed = true;
+                    while ((drawing = pending.poll()) != null) {
+                        if (drawing.kind == SYNC) {
+                            drawing.done.countDown();
+                        }
+                    }
+                    return;
+                } else {
+                    draw(drawing);
+                    ++drawn;
+                }
+
+                // whatever else is already waiting goes in the same batch
+                if (drawn >= BATCH || (drawing = pending.poll()) == null) {
+                    show();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws something onto the back buffer
+     *
+     * @param drawing
+     *            a line, fill, image, stamp or replay
+     */
+    private void draw(Drawing drawing) {
+        switch (drawing.kind) {
+        case LINE:
+            drawLine(drawing.x1, drawing.y1, drawing.x2, drawing.y2, drawing.stroke, drawing.rgb);
+            break;
+
+        case REPLAY:
+            if (drawing.count < PARALLEL_MIN) {
+                int[] segments = drawing.segments;
+                for (int i = 0; i < drawing.count * SEGMENT; i += SEGMENT) {
+                    drawLine(segments[i], segments[i + 1], segments[i + 2], segments[i + 3], segments[i + 4],
+                            segments[i + 5]);
+                }
+            } else {
+                replayTiles(drawing.segments, drawing.count);
+            }
+            break;
+
+        case FILL:
+            setColor(drawing.rgb);
+            backGraphics.fillRect(0, 0, width, height);
+            dirty(0, 0, width - 1, height - 1);
+            break;
+
+        case STAMP:
+            BufferedImage sprite = sprite(drawing.stroke);
+            if (sprite != null) {
+                int left = Stamps.left(drawing.stroke, drawing.x1, width);
+                int top = Stamps.top(drawing.stroke, drawing.y1, height);
+                backGraphics.drawImage(sprite, left, top, null);
+                dirty(left, top, left + sprite.getWidth() - 1, top + sprite.getHeight() - 1);
+            }
+            break;
+
+        default:
+            backGraphics.drawImage(drawing.image, drawing.x1, drawing.y1, null);
+            dirty(drawing.x1, drawing.y1, drawing.x1 + drawing.image.getWidth(null) - 1,
+                    drawing.y1 + drawing.image.getHeight(null) - 1);
+            break;
+        }
+    }
+
+    /**
+     * Draws a line segment onto the back buffer
+     *
+     * @param stroke
+     *            thickness of the line (>=0)
+     * @param rgb
+     *            a packed color (0xRRGGBB)
+     */
+    private void drawLine(int x1, int y1, int x2, int y2, int stroke, int rgb) {
+        setColor(rgb);
+        setStroke(stroke);
+        backGraphics.drawLine(x1, y1, x2, y2);
+
+        int pad = pad(stroke);
+        dirty(Math.min(x1, x2) - pad, Math.min(y1, y2) - pad, Math.max(x1, x2) + pad, Math.max(y1, y2) + pad);
+    }
+
+    /**
+     * @param stroke
+     *            thickness of a line (>=0)
+     * @return how far past its ends a line can draw
+     */
+    private static int pad(int stroke) {
+        // the ends are squared off, so a corner can stick out by as much as
+        // the stroke's half-diagonal
+        return stroke + 1;
+    }
+
+    /**
+     * Draws a big replay onto the back buffer: splits it up into tiles, draws
+     * the tiles in parallel, and puts them back together
+     *
+     * @param segments
+     *            X1 Y1 X2 Y2 STROKE RGB of each segment, in order
+     * @param count
+     *            how many segments there are
+     */
+    private void replayTiles(int[] segments, int count) {
+        int columns = (width + TILE - 1) / TILE;
+        int rows = (height + TILE - 1) / TILE;
+        Tile[] grid = new Tile[columns * rows];
+
+        // every tile a segment touches gets it, so each tile has its
+        // segments in order
+        for (int i = 0; i < count * SEGMENT; i += SEGMENT) {
+            int pad = pad(segments[i + 4]);
+            int left = Math.min(segments[i], segments[i + 2]) - pad;
+            int top = Math.min(segments[i + 1], segments[i + 3]) - pad;
+            int right = Math.max(segments[i], segments[i + 2]) + pad;
+            int bottom = Math.max(segments[i + 1], segments[i + 3]) + pad;
+            if (right < 0 || bottom < 0 || left >= width || top >= height) {
+                // off the board
+                continue;
+            }
+            dirty(left, top, right, bottom);
+            // made here, so the tiles only ever read the strokes
+            stroke(segments[i + 4]);
+
+            for (int row = Math.max(top, 0) / TILE; row <= Math.min(bottom, height - 1) / TILE; ++row) {
+                for (int column = Math.max(left, 0) / TILE; column <= Math.min(right, width - 1) / TILE; ++column) {
+                    Tile tile = grid[row * columns + column];
+                    if (tile == null) {
+                        tile = new Tile(segments, column * TILE, row * TILE);
+                        grid[row * columns + column] = tile;
+                    }
+                    tile.add(i);
+                }
+            }
+        }
+
+        final List<Tile> touched = new ArrayList<Tile>();
+        for (Tile tile : grid) {
+            if (tile != null) {
+                touched.add(tile);
+            }
+        }
+        tiles.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                invokeAll(touched);
+            }
+        });
+
+        for (Tile tile : touched) {
+            backGraphics.drawImage(tile.image, tile.x, tile.y, null);
+        }
+    }
+
+    /**
+     * Adds to the part of the back buffer that was drawn on, corners included
+     */
+    private void dirty(int x1, int y1, int x2, int y2) {
+        minX = Math.min(minX, x1);
+        minY = Math.min(minY, y1);
+        maxX = Math.max(maxX, x2);
+        maxY = Math.max(maxY, y2);
+    }
+
+    /**
+     * Shows what was drawn on the back buffer, if anything: swaps it with the
+     * front buffer, brings the new back buffer up to date, and repaints where
+     * it changed
+     */
+    private void show() {
+        if (minX > maxX) {
+            return;
+        }
+        Rectangle dirty = new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1)
+                .intersection(new Rectangle(0, 0, width, height));
+        minX = Integer.MAX_VALUE;
+        minY = Integer.MAX_VALUE;
+        maxX = Integer.MIN_VALUE;
+        maxY = Integer.MIN_VALUE;
+        if (dirty.isEmpty()) {
+            return;
+        }
+
+        synchronized (this) {
+            BufferedImage shown = back;
+            back = front;
+            front = shown;
+            stale = stale == null ? dirty : stale.union(dirty);
+        }
+        Graphics2D graphics = backGraphics;
+        backGraphics = frontGraphics;
+        frontGraphics = graphics;
+        currentRGB = -1;
+        currentStroke = -1;
+
+        // Swing's thread only reads the front buffer, so it can be copied
+        // from while it's painted
+        int x2 = dirty.x + dirty.width;
+        int y2 = dirty.y + dirty.height;
+        backGraphics.drawImage(front, dirty.x, dirty.y, x2, y2, dirty.x, dirty.y, x2, y2, null);
+        view.repaint(dirty);
+    }
+
+    /**
+     * @return the default screen's configuration, or null if there isn't a
+     *         screen
+     */
+    private static GraphicsConfiguration screen() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return null;
+        }
+        return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+    }
+
+    /**
+     * @param id
+     *            ID of a stamp
+     * @return the stamp scaled to the size it's drawn at, with the screen's
+     *         pixel format, or null if we don't know it or can't read it. It's
+     *         only read the first time.
+     */
+    private static synchronized BufferedImage sprite(int id) {
+        if (!Stamps.isKnown(id)) {
+            return null;
+        }
+        if (!read[id]) {
+            read[id] = true;
+            try {
+                BufferedImage image = ImageIO.read(new File(Stamps.file(id)));
+                if (image != null) {
+                    int w = Stamps.width(id);
+                    int h = Stamps.height(id);
+                    GraphicsConfiguration screen = screen();
+                    BufferedImage sprite = screen == null ? new BufferedImage(w, h,
+                            BufferedImage.TYPE_INT_ARGB_PRE) : screen.createCompatibleImage(w, h,
+                            Transparency.TRANSLUCENT);
+                    Graphics2D graphics = sprite.createGraphics();
+                    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    graphics.drawImage(image, 0, 0, w, h, null);
+                    graphics.dispose();
+                    sprites[id] = sprite;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return sprites[id];
+    }
+
+    /**
+     * @return a new opaque image, black, with the screen's pixel format if
+     *         there is a screen
+     */
+    private BufferedImage newImage(int width, int height) {
+        if (screen == null) {
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+        return screen.createCompatibleImage(width, height);
+    }
+
+    /**
+     * Sets the back buffer's color, if it isn't that already
+     *
+     * @param rgb
+     *            a packed color (0xRRGGBB)
+     */
+    private void setColor(int rgb) {
+        if (rgb != currentRGB) {
+            backGraphics.setColor(new Color(rgb));
+            currentRGB = rgb;
+        }
+    }
+
+    /**
+     * Sets the back buffer's stroke, if it isn't that already
+     *
+     * @param width
+     *            thickness of a line (>=0)
+     */
+    private void setStroke(int width) {
+        if (width != currentStroke) {
+            backGraphics.setStroke(stroke(width));
+            currentStroke = width;
+        }
+    }
+
+    /**
+     * @param width
+     *            thickness of a line (>=0)
+     * @return the stroke for it, made the first time it's needed
+     */
+    private BasicStroke stroke(int width) {
+        if (width >= strokes.length) {
+            strokes = Arrays.copyOf(strokes, Math.max(width + 1, 2 * strokes.length));
+        }
+        if (strokes[width] == null) {
+            strokes[width] = new BasicStroke(width);
+        }
+        return strokes[width];
+    }
+
+    /**
+     * A piece of the board for a big replay, and the segments that touch it,
+     * drawn on an image of its own
+     */
+    private class Tile extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] segments;
+        // upper-left corner on the board
+        private final int x;
+        private final int y;
+        // where each of the segments that touch it starts in segments
+        private int[] starts = new int[64];
+        private int size = 0;
+        private BufferedImage image;
+
+        private Tile(int[] segments, int x, int y) {
+            this.segments = segments;
+            this.x = x;
+            this.y = y;
+        }
+
+        /**
+         * @param start
+         *            where a segment that touches this tile starts
+         */
+        private void add(int start) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, 2 * size);
+            }
+            starts[size++] = start;
+        }
+
+        @Override
+        protected void compute() {
+            int tileWidth = Math.min(TILE, width - x);
+            int tileHeight = Math.min(TILE, height - y);
+            image = newImage(tileWidth, tileHeight);
+            Graphics2D graphics = image.createGraphics();
+            // what's there already, then the segments on top
+            graphics.drawImage(back, 0, 0, tileWidth, tileHeight, x, y, x + tileWidth, y + tileHeight, null);
+            graphics.translate(-x, -y);
+
+            int rgb = -1;
+            int stroke = -1;
+            for (int i = 0; i < size; ++i) {
+                int at = starts[i];
+                if (segments[at + 5] != rgb) {
+                    rgb = segments[at + 5];
+                    graphics.setColor(new Color(rgb));
+                }
+                if (segments[at + 4] != stroke) {
+                    stroke = segments[at + 4];
+                    graphics.setStroke(strokes[stroke]);
+                }
+                graphics.drawLine(segments[at], segments[at + 1], segments[at + 2], segments[at + 3]);
+            }
+            graphics.dispose();
+        }
+    }
+
+    /**
+     * Something waiting to be drawn: a line segment, a fill, an image, a
+     * stamp, or a replay, or a marker for sync or close
+     */
+    private static class Drawing {
+        private final int kind;
+        private int x1, y1, x2, y2;
+        // width of a line, or ID of a stamp
+        private int stroke;
+        private int rgb;
+        private Image image;
+        private int[] segments;
+        private int count;
+        private CountDownLatch done;
+
+        private Drawing(int kind) {
+            this.kind = kind;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package protocol;
+
+/**
+ * Standard base64 (RFC 4648, with padding), so binary things like board
+ * snapshots can be sent as a single token of the text protocol: the alphabet
+ * has no spaces and no newlines.
+ *
+ * This is threadsafe because it has no state.
+ *
+ */
+public class Base64 {
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+
+    // character -> 6 bit value, or -1 if it isn't in the alphabet
+    private static final int[] VALUES = new int[128];
+
+    static {
+        for (int i = 0; i < VALUES.length; ++i) {
+            VALUES[i] = -1;
+        }
+        for (int i = 0; i < ALPHABET.length; ++i) {
+            VALUES[ALPHABET[i]] = i;
+        }
+    }
+
+    private Base64() {
+        // just static helpers
+    }
+
+    /**
+     * Encodes bytes as base64
+     *
+     * @param bytes
+     *            bytes to encode
+     * @return base64 string, padded with '=' to a multiple of 4 characters
+     */
+    public static String encode(byte[] bytes) {
+        char[] chars = new char[(bytes.length + 2) / 3 * 4];
+        int c = 0;
+
+        for (int i = 0; i < bytes.length; i += 3) {
+            int left = bytes.length - i;
+            int b0 = bytes[i] & 0xFF;
+            int b1 = left > 1 ? bytes[i + 1] & 0xFF : 0;
+            int b2 = left > 2 ? bytes[i + 2] & 0xFF : 0;
+
+            chars[c++] = ALPHABET[b0 >> 2];
+            chars[c++] = ALPHABET[((b0 << 4) | (b1 >> 4)) & 0x3F];
+            chars[c++] = left > 1 ? ALPHABET[((b1 << 2) | (b2 >> 6)) & 0x3F] : '=';
+            chars[c++] = left > 2 ? ALPHABET[b2 & 0x3F] : '=';
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * Decodes base64 made by encode()
+     *
+     * @param string
+     *            padded base64 string
+     * @return the bytes it represents
+     * @throws IllegalArgumentException
+     *             if the string isn't padded base64
+     */
+    public static byte[] decode(String string) {
+        int length = string.length();
+        if (length % 4 != 0) {
+            throw new IllegalArgumentException("base64 length must be a multiple of 4");
+        }
+
+        int padding = 0;
+        if (length > 0 && string.charAt(length - 1) == '=') {
+            ++padding;
+            if (string.charAt(length - 2) == '=') {
+                ++padding;
+            }
+        }
+
+        byte[] bytes = new byte[length / 4 * 3 - padding];
+        int b = 0;
+
+        for (int i = 0; i < length; i += 4) {
+            int v0 = value(string.charAt(i));
+            int v1 = value(string.charAt(i + 1));
+            int group = (v0 << 18) | (v1 << 12);
+            boolean last = i + 4 == length;
+
+            if (!(last && padding == 2)) {
+                group |= value(string.charAt(i + 2)) << 6;
+            }
+            if (!(last && padding > 0)) {
+                group |= value(string.charAt(i + 3));
+            }
+
+            bytes[b++] = (byte) (group >> 16);
+            if (b < bytes.length) {
+                bytes[b++] = (byte) (group >> 8);
+            }
+            if (b < bytes.length) {
+                bytes[b++] = (byte) group;
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * @return 6 bit value of a base64 character
+     * @throws IllegalArgumentException
+     *             if it isn't a base64 character
+     */
+    private static int value(char c) {
+        int value = c < VALUES.length ? VALUES[c] : -1;
+        if (value < 0) {
+            throw new IllegalArgumentException("not base64: " + c);
+        }
+        return value;
+    }
+}
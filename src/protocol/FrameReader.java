@@ -0,0 +1,121 @@
+package protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads a connection that can have both text lines and binary frames on it
+ * (see Frames). Unlike a BufferedReader, it never decodes bytes it hasn't been
+ * asked for yet, so a frame after a line doesn't get mangled into characters.
+ *
+ * This is not threadsafe; only one thread should read a connection.
+ *
+ */
+public class FrameReader {
+    // next() found a line, see line()
+    public static final int LINE = 0;
+    // next() found the end of the stream
+    public static final int END = -1;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[8192];
+    private int position = 0;
+    private int limit = 0;
+
+    private byte[] lineBytes = new byte[256];
+    private String line = null;
+    private final byte[] payload = new byte[255];
+    private int length = 0;
+
+    /**
+     * @param in
+     *            stream to read
+     */
+    public FrameReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next line or frame
+     *
+     * @return LINE if it was a line (see line()), the frame's type if it was
+     *         a frame (see payload() and length()), or END if there is
+     *         nothing left
+     * @throws IOException
+     *             if the stream breaks, or ends in the middle of a frame
+     */
+    public int next() throws IOException {
+        int first = read();
+        if (first < 0) {
+            return END;
+        }
+
+        if (Frames.isFrameStart(first)) {
+            int size = read();
+            if (size < 0) {
+                throw new EOFException("frame is cut off");
+            }
+            for (length = 0; length < size; ++length) {
+                int b = read();
+                if (b < 0) {
+                    throw new EOFException("frame is cut off");
+                }
+                payload[length] = (byte) b;
+            }
+            return first;
+        }
+
+        // everything up to the newline, like readLine
+        int lineLength = 0;
+        for (int b = first; b >= 0 && b != '\n'; b = read()) {
+            if (lineLength == lineBytes.length) {
+                lineBytes = Arrays.copyOf(lineBytes, lineBytes.length * 2);
+            }
+            lineBytes[lineLength++] = (byte) b;
+        }
+        if (lineLength > 0 && lineBytes[lineLength - 1] == '\r') {
+            --lineLength;
+        }
+        line = new String(lineBytes, 0, lineLength);
+        return LINE;
+    }
+
+    /**
+     * @return the line that was just read, without its line terminator
+     */
+    public String line() {
+        return line;
+    }
+
+    /**
+     * @return holds the payload of the frame that was just read (only good
+     *         until the next call to next())
+     */
+    public byte[] payload() {
+        return payload;
+    }
+
+    /**
+     * @return length of the payload of the frame that was just read
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return the next byte, or -1 at the end of the stream
+     */
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xFF;
+    }
+}
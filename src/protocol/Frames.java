@@ -0,0 +1,149 @@
+package protocol;
+
+/**
+ * Binary frames for the hottest message of the protocol, DRAW, for clients
+ * that ask for them (see "BINARY" in WhiteboardServer.handleRequest). A frame
+ * is TYPE LENGTH PAYLOAD: a type byte, a byte with the length of the payload,
+ * and the payload. The type is always below ' ', and text lines always start
+ * with a letter, so frames and text lines can be mixed on the same connection
+ * and told apart by their first byte.
+ *
+ * A DRAW payload is a header (the board ID going to the server, the artsy
+ * meter coming from it, or 0 to clients that get the artsy meter by itself),
+ * X1, Y1, X2 - X1, Y2 - Y1 and STROKE, each a zigzag varint (so small and
+ * negative numbers take one byte), and then the color as three bytes: R G B.
+ * A DRAW_NO_COLOR (doge, or another stamp, see Stamps) has no color bytes and
+ * comes back out as -1 -1 -1. The coordinates of a segment are only relative
+ * to each other, so a frame means the same thing whoever it's sent to.
+ *
+ * This is threadsafe because it has no state.
+ *
+ */
+public class Frames {
+    // frame types
+    public static final int DRAW = 1;
+    public static final int DRAW_NO_COLOR = 2;
+
+    // most bytes a frame can be: type, length, 6 varints and a color
+    public static final int MAX_FRAME = 2 + 6 * 5 + 3;
+
+    private Frames() {
+        // just static helpers
+    }
+
+    /**
+     * @param b
+     *            first byte of a line or frame
+     * @return true if it starts a frame, false if it starts a text line
+     */
+    public static boolean isFrameStart(int b) {
+        return b > 0 && b < ' ' && b != '\n' && b != '\r';
+    }
+
+    /**
+     * Encodes a DRAW action as a frame, DRAW_NO_COLOR if red is negative
+     *
+     * @param header
+     *            board ID (to the server) or artsy meter (from the server)
+     * @return the whole frame, type and length included
+     */
+    public static byte[] encodeDraw(int header, int x1, int y1, int x2, int y2, int stroke, int red, int green,
+            int blue) {
+        byte[] frame = new byte[MAX_FRAME];
+        int i = 2;
+        i = putVarint(frame, i, header);
+        i = putVarint(frame, i, x1);
+        i = putVarint(frame, i, y1);
+        i = putVarint(frame, i, x2 - x1);
+        i = putVarint(frame, i, y2 - y1);
+        i = putVarint(frame, i, stroke);
+
+        if (red < 0) {
+            frame[0] = DRAW_NO_COLOR;
+        } else {
+            frame[0] = DRAW;
+            frame[i++] = (byte) red;
+            frame[i++] = (byte) green;
+            frame[i++] = (byte) blue;
+        }
+        frame[1] = (byte) (i - 2);
+
+        byte[] trimmed = new byte[i];
+        System.arraycopy(frame, 0, trimmed, 0, i);
+        return trimmed;
+    }
+
+    /**
+     * Decodes the payload of a DRAW or DRAW_NO_COLOR frame without making
+     * anything
+     *
+     * @param type
+     *            type of the frame
+     * @param payload
+     *            holds the payload
+     * @param length
+     *            length of the payload
+     * @param values
+     *            filled with HEADER X1 Y1 X2 Y2 STROKE R G B (at least 9
+     *            long)
+     * @throws IllegalArgumentException
+     *             if this isn't a well formed DRAW payload
+     */
+    public static void decodeDraw(int type, byte[] payload, int length, int[] values) {
+        if (type != DRAW && type != DRAW_NO_COLOR) {
+            throw new IllegalArgumentException("not a draw frame: " + type);
+        }
+
+        // header, x1, y1, dx, dy, stroke
+        int i = 0;
+        for (int k = 0; k < 6; ++k) {
+            int zigzag = 0;
+            for (int shift = 0;; shift += 7) {
+                if (i >= length) {
+                    throw new IllegalArgumentException("draw frame is cut off");
+                }
+                if (shift > 28) {
+                    throw new IllegalArgumentException("varint is too long");
+                }
+                byte b = payload[i++];
+                zigzag |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            values[k] = (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        values[3] += values[1];
+        values[4] += values[2];
+
+        if (type == DRAW_NO_COLOR) {
+            values[6] = values[7] = values[8] = -1;
+        } else {
+            if (i + 3 > length) {
+                throw new IllegalArgumentException("draw frame is cut off");
+            }
+            values[6] = payload[i++] & 0xFF;
+            values[7] = payload[i++] & 0xFF;
+            values[8] = payload[i++] & 0xFF;
+        }
+
+        if (i != length) {
+            throw new IllegalArgumentException("draw frame is too long");
+        }
+    }
+
+    /**
+     * Writes a zigzag varint
+     *
+     * @return where the next thing goes
+     */
+    private static int putVarint(byte[] bytes, int i, int value) {
+        int zigzag = (value << 1) ^ (value >> 31);
+        while ((zigzag & ~0x7F) != 0) {
+            bytes[i++] = (byte) ((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        bytes[i++] = (byte) zigzag;
+        return i;
+    }
+}
@@ -0,0 +1,125 @@
+package protocol;
+
+/**
+ * Stamps: images that go on a board whole, like doge. A stamp is a draw
+ * action with no color (-1 -1 -1) whose stroke is -1 - the stamp's ID, and
+ * whose X1 Y1 is where the middle of the stamp goes, or -1 -1 for the middle
+ * of the board (X2 Y2 are -1). Doge is the first stamp, so a doge is still all
+ * -1's. Anything with a negative stroke is a stamp, and stamps this side
+ * doesn't know are left out.
+ *
+ * To add a stamp, add its image and the size it's drawn at to the end of the
+ * lists below; its ID is where it is in them. Images are read and scaled to
+ * that size once, by whoever draws them.
+ *
+ * This is threadsafe because it has no state.
+ *
+ */
+public class Stamps {
+    public static final int DOGE = 0;
+
+    // by ID
+    private static final String[] FILES = { "files/DOGE.png" };
+    private static final int[] WIDTHS = { 550 };
+    private static final int[] HEIGHTS = { 550 };
+
+    private Stamps() {
+        // just static helpers
+    }
+
+    /**
+     * @return how many stamps there are
+     */
+    public static int count() {
+        return FILES.length;
+    }
+
+    /**
+     * @param stroke
+     *            stroke of a draw action
+     * @return true if the action is a stamp, false if it's a line segment
+     */
+    public static boolean isStamp(int stroke) {
+        return stroke < 0;
+    }
+
+    /**
+     * @param stroke
+     *            stroke of a stamp action (<0)
+     * @return ID of the stamp, which might not be one we know
+     */
+    public static int id(int stroke) {
+        return -1 - stroke;
+    }
+
+    /**
+     * @param id
+     *            ID of a stamp
+     * @return stroke of an action for the stamp
+     */
+    public static int stroke(int id) {
+        return -1 - id;
+    }
+
+    /**
+     * @param id
+     *            ID of a stamp
+     * @return true if it's one of the stamps above
+     */
+    public static boolean isKnown(int id) {
+        return id >= 0 && id < FILES.length;
+    }
+
+    /**
+     * @param id
+     *            ID of a known stamp
+     * @return path of its image
+     */
+    public static String file(int id) {
+        return FILES[id];
+    }
+
+    /**
+     * @param id
+     *            ID of a known stamp
+     * @return width it's drawn at, in pixels
+     */
+    public static int width(int id) {
+        return WIDTHS[id];
+    }
+
+    /**
+     * @param id
+     *            ID of a known stamp
+     * @return height it's drawn at, in pixels
+     */
+    public static int height(int id) {
+        return HEIGHTS[id];
+    }
+
+    /**
+     * @param id
+     *            ID of a known stamp
+     * @param x
+     *            X1 of the stamp action
+     * @param boardWidth
+     *            width of the board in pixels
+     * @return where the left edge of the stamp goes
+     */
+    public static int left(int id, int x, int boardWidth) {
+        return (x == -1 ? boardWidth / 2 : x) - WIDTHS[id] / 2;
+    }
+
+    /**
+     * @param id
+     *            ID of a known stamp
+     * @param y
+     *            Y1 of the stamp action
+     * @param boardHeight
+     *            height of the board in pixels
+     * @return where the top edge of the stamp goes
+     */
+    public static int top(int id, int y, int boardHeight) {
+        return (y == -1 ? boardHeight / 2 : y) - HEIGHTS[id] / 2;
+    }
+}
@@ -0,0 +1,144 @@
+package protocol;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the space separated tokens of a line of the text protocol in place,
+ * without splitting it: verbs are matched against a table and numbers are
+ * parsed straight out of the line, so only tokens that are asked for as
+ * strings are ever made (and a token that's the same as the last one asked
+ * for, like the board name on every DRAW, isn't made again). Tokens are
+ * exactly what String.split(" ") would give.
+ *
+ * This is not threadsafe; a tokenizer is reset and used by one thread at a
+ * time.
+ *
+ */
+public class Tokenizer {
+    private String line = "";
+    private int position = 0;
+    // last token made by nextToken(), handed out again if it comes up again
+    private String lastToken = "";
+
+    /**
+     * Starts reading a new line
+     *
+     * @param line
+     *            the line, without its line terminator
+     * @return this tokenizer
+     */
+    public Tokenizer reset(String line) {
+        this.line = line;
+        position = 0;
+        return this;
+    }
+
+    /**
+     * @return true if there's another token on the line (trailing empty ones
+     *         don't count, just like split)
+     */
+    public boolean hasNext() {
+        for (int i = position; i < line.length(); ++i) {
+            if (line.charAt(i) != ' ') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the next token if it is one of the choices
+     *
+     * @param choices
+     *            tokens to look for
+     * @return index of the choice the next token is, or -1 if it isn't any of
+     *         them (the token is read either way)
+     * @throws NoSuchElementException
+     *             if there are no tokens left
+     */
+    public int nextOf(String[] choices) {
+        int start = position;
+        int end = end();
+        for (int i = 0; i < choices.length; ++i) {
+            String choice = choices[i];
+            if (choice.length() == end - start && line.regionMatches(start, choice, 0, choice.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the next token
+     *
+     * @return the token
+     * @throws NoSuchElementException
+     *             if there are no tokens left
+     */
+    public String nextToken() {
+        int start = position;
+        int end = end();
+        int length = end - start;
+        if (lastToken.length() != length || !line.regionMatches(start, lastToken, 0, length)) {
+            lastToken = line.substring(start, end);
+        }
+        return lastToken;
+    }
+
+    /**
+     * Reads the next token as a base 10 int, the way Integer.parseInt does
+     * (an optional sign, then digits)
+     *
+     * @return the number
+     * @throws NoSuchElementException
+     *             if there are no tokens left
+     * @throws NumberFormatException
+     *             if the token isn't an int
+     */
+    public int nextInt() {
+        int start = position;
+        int end = end();
+        int i = start;
+        boolean negative = false;
+
+        if (i < end && (line.charAt(i) == '-' || line.charAt(i) == '+')) {
+            negative = line.charAt(i) == '-';
+            ++i;
+        }
+        if (i == end) {
+            throw new NumberFormatException("not a number: " + line.substring(start, end));
+        }
+
+        // built up negative, which can hold Integer.MIN_VALUE
+        int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        int value = 0;
+        for (; i < end; ++i) {
+            int digit = line.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || value < limit / 10 || value * 10 < limit + digit) {
+                throw new NumberFormatException("not a number: " + line.substring(start, end));
+            }
+            value = value * 10 - digit;
+        }
+        return negative ? value : -value;
+    }
+
+    /**
+     * Finds the end of the next token and moves past it
+     *
+     * @return index just past the last character of the token
+     * @throws NoSuchElementException
+     *             if there are no tokens left
+     */
+    private int end() {
+        if (position > line.length()) {
+            throw new NoSuchElementException("no more tokens in: " + line);
+        }
+
+        int end = line.indexOf(' ', position);
+        if (end < 0) {
+            end = line.length();
+        }
+        position = end + 1;
+        return end;
+    }
+}
@@ -0,0 +1,46 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The draw broadcasts of one board that are waiting to be sent together (see
+ * ServerConfig.setBatching).
+ *
+ * This is not threadsafe; only the board's actor (see BoardActor) adds to a
+ * batch, and takes it and sends it in the same task, so batches go out in
+ * order, and each task sees what the ones before it did.
+ *
+ */
+class Batch {
+    private final List<Message> messages = new ArrayList<Message>();
+
+    /**
+     * Adds a message to the batch
+     *
+     * @param message
+     *            message to broadcast
+     * @return number of messages in the batch now (so 1 means the batch was
+     *         just started)
+     */
+    int add(Message message) {
+        messages.add(message);
+        return messages.size();
+    }
+
+    /**
+     * Empties the batch
+     *
+     * @return everything that was in it as one message, or null if it was
+     *         empty
+     */
+    Message take() {
+        if (messages.isEmpty()) {
+            return null;
+        }
+
+        Message batch = messages.size() == 1 ? messages.get(0) : Message.batch(messages);
+        messages.clear();
+        return batch;
+    }
+}
@@ -0,0 +1,141 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A board's mailbox: everything that reads or changes a board, and every
+ * broadcast about it, is a task told to the board's actor, and the actor runs
+ * them one at a time, in the order they were told. Threads that tell it
+ * something don't take any locks, they just add to the mailbox, and never
+ * wait on it. Clients' requests are offered to it, and once it's full the
+ * client is held off (its requests aren't read) until the mailbox has drained
+ * to half full, so someone drawing faster than the board keeps up is slowed
+ * down instead of piling up work, and nobody else is; the server's own tasks
+ * are just added.
+ *
+ * Actors share the threads of an executor instead of having one each: an actor
+ * with mail is run on one of them until its mailbox is empty (or it's had a
+ * fair turn), and only ever on one at a time.
+ *
+ * This is threadsafe because the mailbox and whoever waits for it to drain are
+ * lock-free queues, and the scheduled flag lets only one thread run the tasks.
+ * A task sees everything the tasks before it did, even if they ran on another
+ * thread.
+ *
+ */
+class BoardActor implements Runnable {
+    // most tasks run in one turn before another board gets the thread
+    private static final int MAX_TURN = 256;
+    // most tasks waiting before clients are held off
+    private static final int CAPACITY = 4096;
+    // held off clients are let go once there are this few
+    private static final int LOW_WATER = CAPACITY / 2;
+
+    private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<Runnable>();
+    // run once the mailbox drains to LOW_WATER
+    private final Queue<Runnable> drained = new ConcurrentLinkedQueue<Runnable>();
+    // tasks in the mailbox (its size() is slow)
+    private final AtomicInteger size = new AtomicInteger(0);
+    // true from when there's mail until a thread is done running it
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Executor executor;
+
+    /**
+     * @param executor
+     *            runs the actor when it has mail
+     */
+    BoardActor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Adds a task to the mailbox, to run after everything already in it
+     *
+     * @param task
+     *            the task, exceptions it throws are printed and forgotten
+     */
+    void tell(Runnable task) {
+        size.incrementAndGet();
+        mailbox.add(task);
+        schedule();
+    }
+
+    /**
+     * Adds a client's task to the mailbox like tell, without waiting
+     *
+     * @param task
+     *            the task, exceptions it throws are printed and forgotten
+     * @return true if the mailbox has room for more, false if it's full and
+     *         the client should be held off until it drains (see whenDrained)
+     */
+    boolean offer(Runnable task) {
+        tell(task);
+        return size.get() < CAPACITY;
+    }
+
+    /**
+     * Runs something once the mailbox has drained to half full, which may be
+     * right away, on this thread, or later, on the actor's
+     *
+     * @param resume
+     *            what to run, which should be quick and never wait
+     */
+    void whenDrained(Runnable resume) {
+        drained.add(resume);
+        // it may have drained before we were added
+        if (size.get() <= LOW_WATER) {
+            releaseDrained();
+        }
+    }
+
+    /**
+     * Runs everything that's waiting for the mailbox to drain
+     */
+    private void releaseDrained() {
+        Runnable resume;
+        while ((resume = drained.poll()) != null) {
+            resume.run();
+        }
+    }
+
+    /**
+     * Runs the actor, unless it's already running or waiting to
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this);
+        }
+    }
+
+    /**
+     * Runs a turn's worth of tasks. Only ever run by the executor.
+     */
+    @Override
+    public void run() {
+        for (int i = 0; i < MAX_TURN; ++i) {
+            Runnable task = mailbox.poll();
+            if (task == null) {
+                break;
+            }
+            if (size.decrementAndGet() <= LOW_WATER && !drained.isEmpty()) {
+                releaseDrained();
+            }
+            // an exception would leave the board stuck
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+
+        scheduled.set(false);
+        // mail that came in after we looked, or that didn't fit in the turn
+        if (!mailbox.isEmpty()) {
+            schedule();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package server;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import protocol.Stamps;
+
+/**
+ * The server's own picture of a board: an 800x600 image that draw actions are
+ * painted onto exactly like a Canvas paints them, so that it always looks
+ * like what every client is showing. New clients can be sent this instead of
+ * every action that made it. Stamps are read once for every board, already
+ * scaled, and ones we don't know are left out, like clients do.
+ *
+ * This is not threadsafe; the Whiteboard that owns it locks on its actions
+ * while touching it.
+ *
+ */
+class BoardRaster {
+    static final int WIDTH = 800;
+    static final int HEIGHT = 600;
+
+    // stamps by ID, decoded once for every board, and whether each has been
+    // read yet (so one that can't be isn't tried again)
+    private static final BufferedImage[] stamps = new BufferedImage[Stamps.count()];
+    private static final boolean[] read = new boolean[Stamps.count()];
+
+    private final BufferedImage image;
+    private final Graphics2D graphics;
+    private final Map<Integer, BasicStroke> strokes = new HashMap<Integer, BasicStroke>();
+
+    /**
+     * Makes a blank raster
+     *
+     * @param red
+     *            amount of red in bg (0-255)
+     * @param green
+     *            amount of green in bg (0-255)
+     * @param blue
+     *            amount of blue in bg (0-255)
+     */
+    BoardRaster(int red, int green, int blue) {
+        image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        graphics = image.createGraphics();
+        fill(red, green, blue);
+    }
+
+    /**
+     * Wipes everything out with the background color
+     *
+     * @param red
+     *            amount of red in bg (0-255)
+     * @param green
+     *            amount of green in bg (0-255)
+     * @param blue
+     *            amount of blue in bg (0-255)
+     */
+    void fill(int red, int green, int blue) {
+        graphics.setColor(new Color(red, green, blue));
+        graphics.fillRect(0, 0, WIDTH, HEIGHT);
+    }
+
+    /**
+     * Paints a draw action (X1 Y1 X2 Y2 STROKE R G B, or a stamp if STROKE is
+     * negative, like doge's all -1's; see Stamps)
+     */
+    void draw(int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue) {
+        if (Stamps.isStamp(stroke)) {
+            int id = Stamps.id(stroke);
+            BufferedImage img = stamp(id);
+            if (img != null) {
+                graphics.drawImage(img, Stamps.left(id, x1, WIDTH), Stamps.top(id, y1, HEIGHT), null);
+            }
+            return;
+        }
+
+        BasicStroke basicStroke = strokes.get(stroke);
+        if (basicStroke == null) {
+            basicStroke = new BasicStroke(stroke);
+            strokes.put(stroke, basicStroke);
+        }
+
+        graphics.setColor(new Color(red, green, blue));
+        graphics.setStroke(basicStroke);
+        graphics.drawLine(x1, y1, x2, y2);
+    }
+
+    /**
+     * @return the raster as a PNG
+     */
+    byte[] encode() {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, "png", png);
+        } catch (IOException e) {
+            // can't happen, we're writing to memory
+            throw new IllegalStateException(e);
+        }
+        return png.toByteArray();
+    }
+
+    /**
+     * Writes an image as draw actions: every horizontal run of same-colored
+     * pixels that isn't the background becomes a 1 pixel wide segment (X Y
+     * X2 Y 1 R G B), so a client that only knows how to replay actions can
+     * still draw it. Separated by spaces.
+     *
+     * @param png
+     *            the image, as made by encode()
+     * @param bgRGB
+     *            background color (0xRRGGBB), which isn't written out
+     * @param builder
+     *            where to write the actions
+     * @return number of actions written
+     */
+    static int appendRuns(byte[] png, int bgRGB, final StringBuilder builder) {
+        final int[] written = new int[] { 0 };
+        visitRuns(png, bgRGB, new StrokeStore.Visitor() {
+            public void segment(int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue) {
+                if (written[0]++ > 0) {
+                    builder.append(' ');
+                }
+                StrokeLog.appendSegment(builder, x1, y1, x2, y2, stroke, StrokeLog.pack(red, green, blue));
+            }
+        });
+        return written[0];
+    }
+
+    /**
+     * Hands every run of an image to a visitor, one row at a time, as the 1
+     * pixel wide segments appendRuns writes
+     *
+     * @param png
+     *            the image, as made by encode()
+     * @param bgRGB
+     *            background color (0xRRGGBB), which is skipped
+     * @param visitor
+     *            gets every run, top to bottom and left to right
+     */
+    static void visitRuns(byte[] png, int bgRGB, StrokeStore.Visitor visitor) {
+        BufferedImage runs;
+        try {
+            runs = ImageIO.read(new ByteArrayInputStream(png));
+        } catch (IOException e) {
+            // can't happen, we're reading from memory
+            throw new IllegalStateException(e);
+        }
+
+        int[] row = new int[runs.getWidth()];
+        for (int y = 0; y < runs.getHeight(); ++y) {
+            runs.getRGB(0, y, row.length, 1, row, 0, row.length);
+
+            int start = 0;
+            for (int x = 1; x <= row.length; ++x) {
+                // end of a run
+                if (x == row.length || row[x] != row[start]) {
+                    int rgb = row[start] & 0xFFFFFF;
+                    if (rgb != bgRGB) {
+                        visitor.segment(start, y, x - 1, y, 1, (rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+                    }
+                    start = x;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param id
+     *            ID of a stamp
+     * @return the stamp scaled to the size it's drawn at, or null if we don't
+     *         know it or can't read it. It's only read the first time.
+     */
+    private static synchronized BufferedImage stamp(int id) {
+        if (!Stamps.isKnown(id)) {
+            return null;
+        }
+        if (!read[id]) {
+            read[id] = true;
+            try {
+                BufferedImage image = ImageIO.read(new File(Stamps.file(id)));
+                if (image != null) {
+                    BufferedImage stamp = new BufferedImage(Stamps.width(id), Stamps.height(id),
+                            BufferedImage.TYPE_INT_ARGB_PRE);
+                    Graphics2D stampGraphics = stamp.createGraphics();
+                    stampGraphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    stampGraphics.drawImage(image, 0, 0, stamp.getWidth(), stamp.getHeight(), null);
+                    stampGraphics.dispose();
+                    stamps[id] = stamp;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return stamps[id];
+    }
+}
@@ -0,0 +1,164 @@
+package server;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client's outgoing queue, which whoever puts messages on it can wait on to
+ * drain (see awaitBelow and awaitBacklogBelow): a waiting thread is woken each
+ * time a message is taken off, instead of checking over and over. The queue
+ * itself never fills up, so putting a message on it never waits.
+ *
+ * This is threadsafe because it is a LinkedBlockingQueue, and waiting threads
+ * wait on a lock of their own, which whoever takes a message only takes if
+ * someone is waiting.
+ *
+ */
+class ClientQueue extends LinkedBlockingQueue<Message> {
+    private static final long serialVersionUID = -3532893812384416025L;
+
+    // waiting threads wait on this to be told a message was taken
+    private final transient Object taken = new Object();
+    // threads waiting on taken, only changed while holding it
+    private transient volatile int waiting = 0;
+
+    @Override
+    public Message poll() {
+        Message message = super.poll();
+        if (message != null) {
+            wake();
+        }
+        return message;
+    }
+
+    @Override
+    public Message take() throws InterruptedException {
+        Message message = super.take();
+        wake();
+        return message;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        wake();
+    }
+
+    /**
+     * Counts the messages waiting that count against the config's queue limit
+     * (see ServerConfig.setQueueLimit): everything but the client's reply to
+     * joining a board, which is as big as the board and isn't the client
+     * falling behind
+     *
+     * @param limit
+     *            the config's queue limit
+     * @return the messages waiting that aren't a reply, or just the messages
+     *         waiting if there are fewer than limit
+     */
+    int backlog(int limit) {
+        int size = size();
+        if (size < limit) {
+            return size;
+        }
+
+        // only once it may be full, it takes a look at every message; what's
+        // taken while we look is just not counted (taking it from size would
+        // count the replies taken as backlog)
+        int backlog = 0;
+        for (Message message : this) {
+            if (!message.isReply()) {
+                ++backlog;
+            }
+        }
+        return backlog;
+    }
+
+    /**
+     * Waits until fewer than limit messages are waiting on the queue. Only
+     * ever call this off the thread that takes them.
+     *
+     * @param limit
+     *            most messages that can be waiting, > 0
+     * @param millis
+     *            longest to wait
+     * @return true if there are fewer than limit, false if there still weren't
+     *         after waiting that long
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    boolean awaitBelow(int limit, long millis) throws InterruptedException {
+        return await(limit, true, millis);
+    }
+
+    /**
+     * Like awaitBelow, but only counts the backlog (see backlog)
+     *
+     * @param limit
+     *            the config's queue limit, > 0
+     * @param millis
+     *            longest to wait
+     * @return true if the backlog is under limit, false if it still wasn't
+     *         after waiting that long
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    boolean awaitBacklogBelow(int limit, long millis) throws InterruptedException {
+        return await(limit, false, millis);
+    }
+
+    /**
+     * Waits until fewer than limit messages are waiting
+     *
+     * @param limit
+     *            most messages that can be waiting, > 0
+     * @param replies
+     *            whether replies count, or just the backlog
+     * @param millis
+     *            longest to wait
+     * @return true if there are fewer than limit
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    private boolean await(int limit, boolean replies, long millis) throws InterruptedException {
+        if (count(limit, replies) < limit) {
+            return true;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        synchronized (taken) {
+            ++waiting;
+            try {
+                // a message taken after we said we're waiting wakes us up
+                while (count(limit, replies) >= limit) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(taken, left);
+                }
+                return true;
+            } finally {
+                --waiting;
+            }
+        }
+    }
+
+    /**
+     * @return the messages waiting, or just the backlog if replies don't
+     *         count
+     */
+    private int count(int limit, boolean replies) {
+        return replies ? size() : backlog(limit);
+    }
+
+    /**
+     * Wakes up whoever is waiting for messages to be taken, if anyone
+     */
+    private void wake() {
+        if (waiting > 0) {
+            synchronized (taken) {
+                taken.notifyAll();
+            }
+        }
+    }
+}
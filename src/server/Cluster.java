@@ -0,0 +1,134 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This server's view of the cluster it's in: which node owns which board (see
+ * HashRing), and how to talk to the other nodes. Nodes talk to each other the
+ * same way clients do, a line at a time over a short-lived connection: a node
+ * asks another for the boards it owns ("BOARDS"), and tells the others about a
+ * board it made ("PEERBOARD" WB_NAME). A node that can't be reached is
+ * skipped.
+ *
+ * This is threadsafe because it is immutable (every connection to a peer is
+ * its own).
+ *
+ */
+class Cluster {
+    // longest we wait to connect to a peer, or for its answer
+    private static final int TIMEOUT_MILLIS = 1000;
+
+    private final String self;
+    private final HashRing ring;
+
+    /**
+     * @param self
+     *            this node, as the others know it ("host:port")
+     * @param nodes
+     *            every node in the cluster, including this one
+     */
+    Cluster(String self, List<String> nodes) {
+        this.self = self;
+        this.ring = new HashRing(nodes);
+    }
+
+    /**
+     * @param boardName
+     *            name of a board
+     * @return true if this node owns it
+     */
+    boolean isLocal(String boardName) {
+        return ring.owner(boardName).equals(self);
+    }
+
+    /**
+     * @param boardName
+     *            name of a board this node doesn't own
+     * @return "REDIRECT" HOST PORT, where the client should go for it
+     */
+    String redirect(String boardName) {
+        String owner = ring.owner(boardName);
+        int colon = owner.lastIndexOf(':');
+        return "REDIRECT " + owner.substring(0, colon) + " " + owner.substring(colon + 1);
+    }
+
+    /**
+     * Asks every other node for the boards it owns
+     *
+     * @return their names, from every node that answered
+     */
+    List<String> peerBoards() {
+        List<String> boards = new ArrayList<String>();
+        for (String node : ring.getNodes()) {
+            if (node.equals(self)) {
+                continue;
+            }
+
+            // "LIST" WB_NAME WB_NAME...
+            String list = ask(node, "BOARDS", true);
+            if (list != null && list.startsWith("LIST ")) {
+                for (String boardName : list.substring(5).split(" ")) {
+                    // "LIST " if it has none
+                    if (!boardName.isEmpty()) {
+                        boards.add(boardName);
+                    }
+                }
+            }
+        }
+        return boards;
+    }
+
+    /**
+     * Tells every other node about a new board, so they can tell their
+     * Artists
+     *
+     * @param boardName
+     *            name of the board this node just made
+     */
+    void announce(String boardName) {
+        for (String node : ring.getNodes()) {
+            if (!node.equals(self)) {
+                ask(node, "PEERBOARD " + boardName, false);
+            }
+        }
+    }
+
+    /**
+     * Sends a request to another node
+     *
+     * @param node
+     *            "host:port" of the node
+     * @param request
+     *            the line to send
+     * @param answer
+     *            whether to wait for an answer
+     * @return the answer, or null if there isn't one (or the node couldn't be
+     *         reached)
+     */
+    private static String ask(String node, String request, boolean answer) {
+        int colon = node.lastIndexOf(':');
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(node.substring(0, colon), new Integer(node.substring(colon + 1))),
+                    TIMEOUT_MILLIS);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println(request);
+            if (!answer) {
+                return null;
+            }
+            return new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+
+        } catch (IOException e) {
+            // it's down, or too busy to answer, do without it
+            System.err.println("cluster node " + node + " didn't answer: " + e);
+            return null;
+        }
+    }
+}
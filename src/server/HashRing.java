@@ -0,0 +1,110 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decides which server in a cluster owns each board, by consistent hashing on
+ * the board's name: every node is put on a ring at many points, and a board
+ * belongs to the first node at or after its own point. Adding or removing a
+ * node only moves the boards next to its points, about 1/N of them, instead
+ * of reshuffling everything.
+ *
+ * Boards that only differ by the "(1)", "(2)", ... the server adds to
+ * duplicate names hash the same, so a board and its duplicates are all on one
+ * node and that node can tell whether a name is taken. The server names
+ * duplicates with baseName too, so it never makes one that hashes elsewhere.
+ *
+ * This is threadsafe because it is immutable.
+ *
+ */
+public class HashRing {
+    // points each node gets on the ring, more spreads boards more evenly
+    private static final int POINTS_PER_NODE = 128;
+
+    private final List<String> nodes;
+    // point on the ring -> node
+    private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+    /**
+     * Makes a ring
+     *
+     * @param nodes
+     *            the nodes (ie. "host:port"), at least one, no repeats
+     */
+    public HashRing(Collection<String> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("need at least one node");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<String>(nodes));
+
+        for (String node : nodes) {
+            for (int i = 0; i < POINTS_PER_NODE; ++i) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * @return every node, in the order they were given
+     */
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @param boardName
+     *            name of a board, whether it exists or not
+     * @return the node that owns it
+     */
+    public String owner(String boardName) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(baseName(boardName)));
+        if (entry == null) {
+            // past the last point, around to the first
+            entry = ring.firstEntry();
+        }
+        return entry.getValue();
+    }
+
+    /**
+     * @param boardName
+     *            name of a board
+     * @return the name without a "(N)" at the end, if it has one and there's
+     *         something before it
+     */
+    static String baseName(String boardName) {
+        int start = boardName.lastIndexOf('(');
+        if (start > 0 && boardName.endsWith(")") && boardName.substring(start + 1, boardName.length() - 1)
+                .matches("[0-9]+")) {
+            return boardName.substring(0, start);
+        }
+        return boardName;
+    }
+
+    /**
+     * @param key
+     *            something to put on the ring
+     * @return its point on the ring, the same on every node
+     */
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long point = 0;
+            for (int i = 0; i < 8; ++i) {
+                point = (point << 8) | (digest[i] & 0xff);
+            }
+            return point;
+
+        } catch (NoSuchAlgorithmException e) {
+            // every Java has MD5
+            throw new IllegalStateException(e);
+        }
+    }
+}
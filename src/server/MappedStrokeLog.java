@@ -0,0 +1,158 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only log of a Whiteboard's draw actions that lives in a
+ * memory-mapped file instead of on the heap. Every segment is a fixed-width,
+ * 16 byte record (x1, y1, x2, y2, stroke as shorts, packed rgb as an int, and
+ * two bytes of padding), so segment i is always at byte 16 * i and the only
+ * thing kept on the heap is the count and the list of mapped regions. Reads
+ * (like the history sent on join) come straight out of the mapped pages.
+ *
+ * The file is grown one region at a time as segments are appended. This is
+ * storage, not persistence: the file is emptied when the log is made and
+ * deleted when the server exits. Closing the log closes the file and drops
+ * the mapped regions, which are unmapped once they're collected.
+ *
+ * Values are clamped and colors packed just like StrokeLog does.
+ *
+ * This is not threadsafe; the Whiteboard that owns it locks on it.
+ *
+ */
+public class MappedStrokeLog implements StrokeStore {
+    private static final int RECORD_BYTES = 16;
+    // records per region, a power of two so we can shift and mask
+    private static final int REGION_BITS = 20;
+    private static final int REGION_RECORDS = 1 << REGION_BITS;
+    private static final int REGION_MASK = REGION_RECORDS - 1;
+
+    private final File file;
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> regions = new ArrayList<MappedByteBuffer>();
+    private int size = 0;
+
+    /**
+     * Makes an empty log backed by the given file, which is created if it
+     * doesn't exist and emptied if it does
+     *
+     * @param file
+     *            file to map
+     * @throws IOException
+     *             if the file can't be opened
+     */
+    public MappedStrokeLog(File file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        file.deleteOnExit();
+    }
+
+    @Override
+    public void append(int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue) {
+        int rgb = StrokeLog.pack(red, green, blue);
+        int region = size >>> REGION_BITS;
+
+        if (region == regions.size()) {
+            grow();
+        }
+
+        MappedByteBuffer buffer = regions.get(region);
+        int i = (size & REGION_MASK) * RECORD_BYTES;
+        buffer.putShort(i, StrokeLog.clamp(x1));
+        buffer.putShort(i + 2, StrokeLog.clamp(y1));
+        buffer.putShort(i + 4, StrokeLog.clamp(x2));
+        buffer.putShort(i + 6, StrokeLog.clamp(y2));
+        buffer.putShort(i + 8, StrokeLog.clamp(stroke));
+        buffer.putInt(i + 10, rgb);
+
+        ++size;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long bytes() {
+        return (long) size * RECORD_BYTES;
+    }
+
+    /**
+     * Empties the log. The mapped regions are kept and written over.
+     */
+    @Override
+    public void clear() {
+        size = 0;
+    }
+
+    @Override
+    public void visit(int from, int to, Visitor visitor) {
+        StrokeLog.checkRange(from, to, size);
+
+        for (int index = from; index < to; ++index) {
+            MappedByteBuffer buffer = regions.get(index >>> REGION_BITS);
+            int i = (index & REGION_MASK) * RECORD_BYTES;
+            int rgb = buffer.getInt(i + 10);
+
+            if (rgb == StrokeLog.NO_COLOR) {
+                visitor.segment(buffer.getShort(i), buffer.getShort(i + 2), buffer.getShort(i + 4),
+                        buffer.getShort(i + 6), buffer.getShort(i + 8), -1, -1, -1);
+            } else {
+                visitor.segment(buffer.getShort(i), buffer.getShort(i + 2), buffer.getShort(i + 4),
+                        buffer.getShort(i + 6), buffer.getShort(i + 8), (rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF,
+                        rgb & 0xFF);
+            }
+        }
+    }
+
+    @Override
+    public void appendTo(StringBuilder builder, int from, int to) {
+        StrokeLog.checkRange(from, to, size);
+
+        for (int index = from; index < to; ++index) {
+            MappedByteBuffer buffer = regions.get(index >>> REGION_BITS);
+            int i = (index & REGION_MASK) * RECORD_BYTES;
+
+            if (index > from) {
+                builder.append(' ');
+            }
+            StrokeLog.appendSegment(builder, buffer.getShort(i), buffer.getShort(i + 2), buffer.getShort(i + 4),
+                    buffer.getShort(i + 6), buffer.getShort(i + 8), buffer.getInt(i + 10));
+        }
+    }
+
+    @Override
+    public void close() {
+        regions.clear();
+        size = 0;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Maps one more region at the end of the file
+     *
+     * @throws IllegalStateException
+     *             if the file can't be grown (ie. the disk is full)
+     */
+    private void grow() {
+        long position = (long) regions.size() * REGION_RECORDS * RECORD_BYTES;
+        try {
+            regions.add(channel.map(MapMode.READ_WRITE, position, (long) REGION_RECORDS * RECORD_BYTES));
+        } catch (IOException e) {
+            throw new IllegalStateException("can't grow " + file, e);
+        }
+    }
+}
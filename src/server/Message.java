@@ -0,0 +1,223 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import protocol.Frames;
+
+/**
+ * Something to send to a client: a line of the text protocol, and, for DRAW
+ * messages, the same thing as a binary frame for clients that asked for
+ * "BINARY" (see Frames), and the same thing without the artsy meter for
+ * clients that asked for "ARTSY" (an "ARTSY" line goes first if the meter
+ * changed). Each client gets whichever one it understands. A batch of
+ * messages is a message too (several lines, or frames). What a client is sent
+ * for joining a board is marked as its reply, which its queue's limit doesn't
+ * count (see ServerConfig.setQueueLimit).
+ *
+ * A message is encoded once, when it's made, and the same bytes are written to
+ * every client it's broadcast to.
+ *
+ * This is threadsafe because it is immutable.
+ *
+ */
+class Message {
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    private static final byte[] NEWLINE = LINE_SEPARATOR.getBytes();
+
+    // poison pill, closes the connection once everything before it is sent
+    static final Message BYE = new Message("BYE");
+
+    // flags for the kinds of clients, which index the encodings
+    private static final int BINARY = 1;
+    private static final int ARTSY_EVENTS = 2;
+
+    private final String text;
+    // what every kind of client gets: the line and its line terminator, or
+    // the frame, with or without the artsy meter
+    private final byte[][] encodings;
+    // whether this is part of a client's reply to joining a board
+    private final boolean reply;
+
+    /**
+     * Makes a text-only message
+     *
+     * @param text
+     *            the line, without a line terminator
+     */
+    Message(String text) {
+        this(text, (byte[]) null);
+    }
+
+    /**
+     * Makes a message that has a binary frame too
+     *
+     * @param text
+     *            the line, without a line terminator
+     * @param frame
+     *            the same thing as a whole frame, or null if there isn't one
+     */
+    Message(String text, byte[] frame) {
+        this.text = text;
+        byte[] line = line(text);
+        if (frame == null) {
+            frame = line;
+        }
+        encodings = new byte[][] { line, frame, line, frame };
+        reply = false;
+    }
+
+    /**
+     * @param text
+     *            the text and encodings of the message, indexed by the
+     *            BINARY and ARTSY_EVENTS flags
+     * @param reply
+     *            whether this is part of a client's reply to joining a board
+     */
+    private Message(String text, byte[][] encodings, boolean reply) {
+        this.text = text;
+        this.encodings = encodings;
+        this.reply = reply;
+    }
+
+    /**
+     * Makes a "DRAW" ARTSY_METER X1 Y1 X2 Y2 STROKE COLOR_R COLOR_G COLOR_B
+     * message, which "ARTSY" clients get as ("ARTSY" ARTSY_METER), if it
+     * changed, and then "DRAW" X1 Y1 X2 Y2 STROKE COLOR_R COLOR_G COLOR_B
+     *
+     * @param changed
+     *            whether this draw changed the artsy meter
+     * @return the message, with its frames
+     */
+    static Message draw(int artsy, boolean changed, int x1, int y1, int x2, int y2, int stroke, int red, int green,
+            int blue) {
+        String action = x1 + " " + y1 + " " + x2 + " " + y2 + " " + stroke + " " + red + " " + green + " " + blue;
+        String text = "DRAW " + artsy + " " + action;
+        byte[] line = line(text);
+        byte[] frame = Frames.encodeDraw(artsy, x1, y1, x2, y2, stroke, red, green, blue);
+
+        // the header means nothing to clients that get the meter by itself
+        byte[] artsyLine = changed ? line("ARTSY " + artsy) : new byte[0];
+        byte[] eventLine = concat(artsyLine, line("DRAW " + action));
+        byte[] eventFrame = concat(artsyLine, Frames.encodeDraw(0, x1, y1, x2, y2, stroke, red, green, blue));
+        return new Message(text, new byte[][] { line, frame, eventLine, eventFrame }, false);
+    }
+
+    /**
+     * @param text
+     *            a line, without a line terminator
+     * @return the line and a line terminator
+     */
+    private static byte[] line(String text) {
+        byte[] bytes = text.getBytes();
+        byte[] line = new byte[bytes.length + NEWLINE.length];
+        System.arraycopy(bytes, 0, line, 0, bytes.length);
+        System.arraycopy(NEWLINE, 0, line, bytes.length, NEWLINE.length);
+        return line;
+    }
+
+    /**
+     * @return the bytes of first, then the bytes of second
+     */
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] both = new byte[first.length + second.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+
+    /**
+     * Puts several messages together into one, which sends the same bytes as
+     * sending them one after the other, but all at once
+     *
+     * @param messages
+     *            messages to send, in order, at least one
+     * @return one message that stands for all of them
+     */
+    static Message batch(List<Message> messages) {
+        StringBuilder text = new StringBuilder();
+        ByteArrayOutputStream[] encodings = new ByteArrayOutputStream[4];
+        for (int i = 0; i < encodings.length; ++i) {
+            encodings[i] = new ByteArrayOutputStream();
+        }
+
+        for (Message message : messages) {
+            if (text.length() > 0) {
+                text.append(LINE_SEPARATOR);
+            }
+            text.append(message.text);
+
+            // lines and frames mix just fine
+            for (int i = 0; i < encodings.length; ++i) {
+                encodings[i].write(message.encodings[i], 0, message.encodings[i].length);
+            }
+        }
+
+        byte[][] bytes = new byte[encodings.length][];
+        for (int i = 0; i < encodings.length; ++i) {
+            bytes[i] = encodings[i].toByteArray();
+        }
+        return new Message(text.toString(), bytes, false);
+    }
+
+    /**
+     * @return the same message, marked as part of a client's reply to joining
+     *         a board
+     */
+    Message asReply() {
+        return new Message(text, encodings, true);
+    }
+
+    /**
+     * @return the line, without a line terminator
+     */
+    String getText() {
+        return text;
+    }
+
+    /**
+     * @return true if this is part of a client's reply to joining a board
+     */
+    boolean isReply() {
+        return reply;
+    }
+
+    /**
+     * @return true if there is nothing to send
+     */
+    boolean isEmpty() {
+        return text.isEmpty();
+    }
+
+    /**
+     * Gets the bytes to send to a client
+     *
+     * @param binary
+     *            whether the client asked for frames
+     * @param artsyEvents
+     *            whether the client asked for the artsy meter by itself
+     * @return the frame if there is one and the client wants it, otherwise
+     *         the line and a line terminator, without the artsy meter if the
+     *         client wants it by itself. Not to be modified.
+     */
+    byte[] encode(boolean binary, boolean artsyEvents) {
+        return encodings[(binary ? BINARY : 0) | (artsyEvents ? ARTSY_EVENTS : 0)];
+    }
+
+    /**
+     * Gets the bytes to send to a client as a buffer of its own, for writing
+     * to a channel. The bytes are shared with every other client's buffer,
+     * only the position is the client's.
+     * 
+     * @param binary
+     *            whether the client asked for frames
+     * @param artsyEvents
+     *            whether the client asked for the artsy meter by itself
+     * @return a read only buffer over what encode(binary, artsyEvents)
+     *         returns
+     */
+    ByteBuffer buffer(boolean binary, boolean artsyEvents) {
+        return ByteBuffer.wrap(encode(binary, artsyEvents)).asReadOnlyBuffer();
+    }
+}
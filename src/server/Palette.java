@@ -0,0 +1,187 @@
+package server;
+
+import java.awt.Color;
+import java.util.Arrays;
+
+/**
+ * A fixed set of colors, like the ones that count toward a board's artsy
+ * meter, and the bitsets (see Usage) that keep track of which of them have
+ * been used. Looking a color up is a probe into a small open-addressed table
+ * of packed rgb values (see StrokeLog.pack), and using one sets a bit, so
+ * neither allocates or scans the palette however many colors it has.
+ *
+ * This is threadsafe because it is immutable. A Usage is not threadsafe; the
+ * Whiteboard that owns it locks on its actions while touching it.
+ *
+ */
+public class Palette {
+    // slot of the lookup table that has no color in it (packed rgb is never
+    // negative)
+    private static final int EMPTY = -1;
+
+    private final int[] colors;
+    // open-addressed, linear probing: packed rgb -> its index, twice as many
+    // slots as colors (a power of two) so probes stay short
+    private final int[] keys;
+    private final int[] indexes;
+    private final int shift;
+
+    /**
+     * @param colors
+     *            the colors, no two the same
+     */
+    public Palette(Color... colors) {
+        this.colors = new int[colors.length];
+        int bits = 1;
+        while ((1 << bits) < 2 * colors.length) {
+            ++bits;
+        }
+        keys = new int[1 << bits];
+        indexes = new int[1 << bits];
+        shift = 32 - bits;
+        Arrays.fill(keys, EMPTY);
+
+        for (int i = 0; i < colors.length; ++i) {
+            int rgb = colors[i].getRGB() & 0xFFFFFF;
+            if (indexOf(rgb) >= 0) {
+                throw new IllegalArgumentException("color is in the palette twice: " + colors[i]);
+            }
+            this.colors[i] = rgb;
+
+            int slot = slot(rgb);
+            while (keys[slot] != EMPTY) {
+                slot = (slot + 1) & (keys.length - 1);
+            }
+            keys[slot] = rgb;
+            indexes[slot] = i;
+        }
+    }
+
+    /**
+     * @return how many colors there are
+     */
+    public int size() {
+        return colors.length;
+    }
+
+    /**
+     * @param index
+     *            index of a color (0 to size - 1)
+     * @return the color, packed (0xRRGGBB)
+     */
+    public int color(int index) {
+        return colors[index];
+    }
+
+    /**
+     * @param rgb
+     *            a packed color (0xRRGGBB)
+     * @return its index, or -1 if it isn't in the palette
+     */
+    public int indexOf(int rgb) {
+        for (int slot = slot(rgb); keys[slot] != EMPTY; slot = (slot + 1) & (keys.length - 1)) {
+            if (keys[slot] == rgb) {
+                return indexes[slot];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param rgb
+     *            a packed color
+     * @return where its probe starts
+     */
+    private int slot(int rgb) {
+        // Fibonacci hashing, the top bits spread out nearby colors
+        return (rgb * 0x9E3779B9) >>> shift;
+    }
+
+    /**
+     * @return a new Usage of this palette, with nothing used
+     */
+    public Usage newUsage() {
+        return new Usage();
+    }
+
+    /**
+     * Which colors of the palette have been used: a bit per color, and how
+     * many bits are set, so the count is always at hand.
+     */
+    public class Usage {
+        private final long[] words = new long[(colors.length + 63) / 64];
+        private int count = 0;
+
+        /**
+         * Marks a color used, if it's in the palette
+         *
+         * @param rgb
+         *            a packed color (0xRRGGBB)
+         * @return true if it's in the palette and wasn't used yet
+         */
+        public boolean use(int rgb) {
+            int index = indexOf(rgb);
+            if (index < 0) {
+                return false;
+            }
+
+            long bit = 1L << index;
+            if ((words[index >>> 6] & bit) != 0) {
+                return false;
+            }
+            words[index >>> 6] |= bit;
+            ++count;
+            return true;
+        }
+
+        /**
+         * @return how many colors of the palette have been used
+         */
+        public int count() {
+            return count;
+        }
+
+        /**
+         * Marks every color unused
+         */
+        public void clear() {
+            Arrays.fill(words, 0);
+            count = 0;
+        }
+
+        /**
+         * @return how many words of bits there are
+         */
+        public int words() {
+            return words.length;
+        }
+
+        /**
+         * @param i
+         *            index of a word (0 to words - 1)
+         * @return bits 64 * i to 64 * i + 63, set for the colors that were
+         *         used
+         */
+        public long word(int i) {
+            return words[i];
+        }
+
+        /**
+         * Sets a word of bits, like one word(i) returned
+         *
+         * @param i
+         *            index of a word (0 to words - 1)
+         * @param word
+         *            bits 64 * i to 64 * i + 63, set for the colors that were
+         *            used
+         */
+        public void setWord(int i, long word) {
+            if (i == words.length - 1 && colors.length % 64 != 0) {
+                // there are no colors past the end
+                word &= (1L << colors.length % 64) - 1;
+            }
+            count += Long.bitCount(word) - Long.bitCount(words[i]);
+            words[i] = word;
+        }
+    }
+}
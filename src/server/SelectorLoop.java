@@ -0,0 +1,518 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import protocol.Frames;
+
+/**
+ * One non-blocking I/O loop of the SELECTOR transport. A loop owns a selector
+ * and any number of client channels; it frames incoming bytes into lines (and
+ * binary frames, see Frames) and hands them to the server's request handler,
+ * and drains each client's queue onto its channel without ever blocking on a
+ * slow client.
+ *
+ * A client whose request fills a board's mailbox (see BoardActor) isn't read
+ * from again until the mailbox drains. What was already read still gets
+ * handled, so a mailbox only goes over by a read's worth of requests.
+ *
+ * This is threadsafe because everything about a connection (its channel, its
+ * partial line, its pending writes) is only touched by the loop's own thread.
+ * Other threads only talk to a loop through register(), through the
+ * ChannelQueue they put messages on, and by letting held off clients go, all
+ * of which go through concurrent queues and wake the selector up.
+ *
+ */
+class SelectorLoop implements Runnable {
+    private final WhiteboardServer server;
+    private final Selector selector;
+
+    // channels waiting to be registered with the selector
+    private final Queue<ChannelQueue> registrations = new ConcurrentLinkedQueue<ChannelQueue>();
+    // queues that have new messages to write out
+    private final Queue<ChannelQueue> flushes = new ConcurrentLinkedQueue<ChannelQueue>();
+    // held off connections whose board's mailbox has drained
+    private final Queue<Connection> resumes = new ConcurrentLinkedQueue<Connection>();
+
+    // most buffers handed to one gathering write
+    private static final int MAX_GATHER = 64;
+
+    // only ever used by the loop thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(8192);
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    /**
+     * Makes a new loop for the server. It won't do anything until it is run.
+     *
+     * @param server
+     *            server to hand requests to
+     * @throws IOException
+     *             if a selector can't be opened
+     */
+    SelectorLoop(WhiteboardServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Hands a freshly accepted channel to this loop. The queue should already
+     * be known to the server, since requests can be read off the channel as
+     * soon as this returns.
+     *
+     * @param channel
+     *            the client's channel
+     * @param queue
+     *            the client's queue, made by this loop
+     * @throws IOException
+     *             if the channel can't be made non-blocking
+     */
+    void register(SocketChannel channel, ChannelQueue queue) throws IOException {
+        channel.configureBlocking(false);
+        queue.connection = new Connection(channel, queue);
+        registrations.add(queue);
+        selector.wakeup();
+    }
+
+    /**
+     * Makes a queue for a client of this loop
+     *
+     * @param clientID
+     *            id of client
+     * @return a queue that wakes this loop up when things are put on it
+     */
+    ChannelQueue newQueue(int clientID) {
+        return new ChannelQueue(this, clientID);
+    }
+
+    /**
+     * Run the loop. Never returns unless the selector breaks.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                selector.select();
+                registerPending();
+                flushPending();
+                resumePending();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+
+                    if (key.isValid() && key.isReadable()) {
+                        read(connection);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write(connection);
+                    }
+                }
+            }
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Registers all of the channels that have been handed to this loop
+     */
+    private void registerPending() {
+        ChannelQueue queue;
+        while ((queue = registrations.poll()) != null) {
+            Connection connection = queue.connection;
+            try {
+                connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                e.printStackTrace();
+                close(connection);
+                continue;
+            }
+
+            // something may have been put on the queue before we registered
+            flush(connection);
+        }
+    }
+
+    /**
+     * Writes out everything that was put on the queues since the last time
+     */
+    private void flushPending() {
+        ChannelQueue queue;
+        while ((queue = flushes.poll()) != null) {
+            // reset first, so that anything put after this point asks again
+            queue.scheduled.set(false);
+
+            // not registered yet (or already gone), registerPending flushes
+            if (queue.connection.key != null) {
+                flush(queue.connection);
+            }
+        }
+    }
+
+    /**
+     * Reads from held off connections again, once nothing holds them off
+     */
+    private void resumePending() {
+        Connection connection;
+        while ((connection = resumes.poll()) != null) {
+            if (--connection.heldOff == 0 && connection.key.isValid()) {
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    /**
+     * Reads what's available on the channel and handles every complete line
+     * and frame
+     *
+     * @param connection
+     *            readable connection
+     */
+    private void read(Connection connection) {
+        try {
+            readBuffer.clear();
+            int read = connection.channel.read(readBuffer);
+            if (read < 0) {
+                // client went away
+                close(connection);
+                server.inputEnded(connection.queue.clientID);
+                return;
+            }
+            readBuffer.flip();
+
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (connection.frameType != 0) {
+                    // in the middle of a frame
+                    if (connection.appendFrame(b)) {
+                        handleFrame(connection);
+                        if (!connection.channel.isOpen()) {
+                            return;
+                        }
+                    }
+                } else if (connection.lineLength == 0 && Frames.isFrameStart(b)) {
+                    connection.frameType = b;
+                } else if (b == '\n') {
+                    handleLine(connection, connection.takeLine());
+                    if (!connection.channel.isOpen()) {
+                        return;
+                    }
+                } else {
+                    connection.append(b);
+                }
+            }
+
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+
+    /**
+     * Hands a line to the server, closing the connection on bad requests
+     *
+     * @param connection
+     *            connection the line came from
+     * @param line
+     *            the line, without its line terminator
+     */
+    private void handleLine(Connection connection, String line) {
+        try {
+            server.handleRequest(line, connection.queue.clientID);
+        } catch (RuntimeException e) {
+            // things that don't adhere to the grammar, muy bad
+            e.printStackTrace();
+            close(connection);
+        }
+    }
+
+    /**
+     * Hands a frame to the server, closing the connection on bad frames
+     *
+     * @param connection
+     *            connection the frame came from, which has just read all of it
+     */
+    private void handleFrame(Connection connection) {
+        int type = connection.frameType;
+        connection.frameType = 0;
+        connection.frameLength = -1;
+
+        try {
+            server.handleFrame(type, connection.payload, connection.payloadLength, connection.queue.clientID);
+        } catch (RuntimeException e) {
+            // things that don't adhere to the grammar, muy bad
+            e.printStackTrace();
+            close(connection);
+        }
+    }
+
+    /**
+     * Moves what's on the client's queue onto the channel, unless the channel
+     * is still busy with what was moved last time
+     *
+     * @param connection
+     *            connection to flush
+     */
+    private void flush(Connection connection) {
+        if (!connection.channel.isOpen()) {
+            // nobody to write to anymore, but a BYE still means it's done
+            if (connection.queue.contains(Message.BYE)) {
+                server.removeClient(connection.queue.clientID);
+            }
+            connection.queue.clear();
+            return;
+        }
+
+        if (!connection.pending.isEmpty()) {
+            // waiting for the socket to drain, and the rest waits on the
+            // queue, so the queue shows how far behind the client is
+            return;
+        }
+        write(connection);
+    }
+
+    /**
+     * Writes as much of the client's output as the channel will take, and
+     * asks to be told when it can take more. Messages are taken off the queue
+     * a few at a time and go out together, in gathering writes.
+     *
+     * @param connection
+     *            connection to write to
+     */
+    private void write(Connection connection) {
+        try {
+            while (fill(connection)) {
+                int count = 0;
+                for (ByteBuffer buffer : connection.pending) {
+                    gather[count++] = buffer;
+                }
+                connection.channel.write(gather, 0, count);
+                Arrays.fill(gather, 0, count, null);
+
+                // drop what was written, if any of it wasn't the socket is full
+                while (!connection.pending.isEmpty() && !connection.pending.peek().hasRemaining()) {
+                    connection.pending.poll();
+                }
+                if (!connection.pending.isEmpty()) {
+                    // wait until it drains
+                    connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+
+            if (connection.closing) {
+                server.removeClient(connection.queue.clientID);
+                close(connection);
+            }
+
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+
+    /**
+     * Takes messages off the client's queue to be written, up to as many as
+     * one gathering write takes
+     *
+     * @param connection
+     *            connection to fill
+     * @return true if there's anything to write
+     */
+    private boolean fill(Connection connection) {
+        boolean binary = server.isBinary(connection.queue.clientID);
+        boolean artsyEvents = server.getsArtsyEvents(connection.queue.clientID);
+        Message message;
+        while (!connection.closing && connection.pending.size() < MAX_GATHER
+                && (message = connection.queue.poll()) != null) {
+            if (message == Message.BYE) {
+                // poison pill, close once everything before it is written
+                connection.closing = true;
+            } else if (!message.isEmpty()) {
+                // the message's own bytes, not a copy
+                connection.pending.add(message.buffer(binary, artsyEvents));
+            }
+        }
+        return !connection.pending.isEmpty();
+    }
+
+    /**
+     * Closes the connection's channel and forgets about it
+     *
+     * @param connection
+     *            connection to close
+     */
+    private void close(Connection connection) {
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A client's outgoing queue. Putting a message on it wakes up the loop that
+     * owns the client so the message gets written out.
+     */
+    static class ChannelQueue extends ClientQueue {
+        private static final long serialVersionUID = 2883561254117069612L;
+
+        private final transient SelectorLoop loop;
+        private final int clientID;
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        // set once on registration, only used by the loop thread after that
+        private transient volatile Connection connection;
+
+        /**
+         * @param loop
+         *            loop that owns the client
+         * @param clientID
+         *            id of client
+         */
+        private ChannelQueue(SelectorLoop loop, int clientID) {
+            this.loop = loop;
+            this.clientID = clientID;
+        }
+
+        @Override
+        public void put(Message message) throws InterruptedException {
+            super.put(message);
+            schedule();
+        }
+
+        @Override
+        public boolean offer(Message message) {
+            boolean added = super.offer(message);
+            schedule();
+            return added;
+        }
+
+        /**
+         * Stops reading the client's requests until a board's mailbox drains.
+         * Only called by the loop's thread, while it handles one of them.
+         *
+         * @param actor
+         *            actor of the board whose mailbox is full
+         */
+        void holdOff(BoardActor actor) {
+            final Connection held = connection;
+            if (held.heldOff++ == 0) {
+                held.key.interestOps(held.key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            actor.whenDrained(new Runnable() {
+                @Override
+                public void run() {
+                    loop.resumes.add(held);
+                    loop.selector.wakeup();
+                }
+            });
+        }
+
+        /**
+         * Tells the loop there's something to write, unless it already knows
+         */
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                loop.flushes.add(this);
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Everything the loop keeps about a client. Only touched by the loop
+     * thread.
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private final ChannelQueue queue;
+        private final Deque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+        private SelectionKey key;
+        private boolean closing = false;
+        // boards whose mailboxes are holding the client off, not read from
+        // while it's more than 0
+        private int heldOff = 0;
+
+        // the line read so far
+        private byte[] line = new byte[256];
+        private int lineLength = 0;
+
+        // the frame read so far: its type (0 if we aren't reading one), its
+        // length (-1 until we've read it) and its payload
+        private int frameType = 0;
+        private int frameLength = -1;
+        private final byte[] payload = new byte[255];
+        private int payloadLength = 0;
+
+        /**
+         * @param channel
+         *            the client's channel
+         * @param queue
+         *            the client's queue
+         */
+        private Connection(SocketChannel channel, ChannelQueue queue) {
+            this.channel = channel;
+            this.queue = queue;
+        }
+
+        /**
+         * Adds a byte to the line being read
+         *
+         * @param b
+         *            byte to add
+         */
+        private void append(byte b) {
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            line[lineLength++] = b;
+        }
+
+        /**
+         * Adds a byte to the frame being read
+         *
+         * @param b
+         *            byte to add
+         * @return true if that was the end of the frame
+         */
+        private boolean appendFrame(byte b) {
+            if (frameLength < 0) {
+                frameLength = b & 0xFF;
+                payloadLength = 0;
+            } else {
+                payload[payloadLength++] = b;
+            }
+            return payloadLength == frameLength;
+        }
+
+        /**
+         * Finishes the line being read and starts a new one
+         *
+         * @return the line, without a trailing carriage return
+         */
+        private String takeLine() {
+            int length = lineLength;
+            if (length > 0 && line[length - 1] == '\r') {
+                --length;
+            }
+            lineLength = 0;
+            return new String(line, 0, length);
+        }
+    }
+}
@@ -0,0 +1,698 @@
+package server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Startup options for a WhiteboardServer. Everything has a default that
+ * matches the original behavior of the server, so new ServerConfig() is the
+ * same server that new WhiteboardServer(port) always gave you.
+ *
+ * This is not threadsafe, but it doesn't need to be: it is filled out once
+ * before the server is constructed and only read after that.
+ *
+ */
+public class ServerConfig {
+
+    /**
+     * How the server talks to its clients.
+     *
+     * BLOCKING is the original model, one input and one output thread per
+     * client. SELECTOR multiplexes every client over a small, fixed pool of
+     * non-blocking I/O loops.
+     */
+    public enum Transport {
+        BLOCKING, SELECTOR
+    }
+
+    /**
+     * What the server does with a client whose queue is full, because it
+     * reads slower than its board is drawn on.
+     *
+     * BLOCK waits (up to a timeout) for the client to catch up, holding up
+     * everyone else on the board and one of the board threads, and
+     * disconnects it if it doesn't. COALESCE drops everything that's waiting
+     * for the client, even a board it was sent before that hasn't all gone
+     * out, and sends it the board as it is now instead (and what it's told
+     * after the board on join), which clients that asked for "STREAM" know
+     * how to read; other clients, and Artists that aren't on a board, are
+     * disconnected like with DISCONNECT. DISCONNECT just disconnects it.
+     */
+    public enum SlowClientPolicy {
+        BLOCK, COALESCE, DISCONNECT
+    }
+
+    private Transport transport = Transport.BLOCKING;
+    private int ioLoops = Runtime.getRuntime().availableProcessors();
+    private int boardThreads = Runtime.getRuntime().availableProcessors();
+    private boolean virtualThreads = false;
+    private File storageDirectory = null;
+
+    // compaction limits, 0 means no limit
+    private int compactActions = 0;
+    private long compactBytes = 0;
+    private long compactAgeMillis = 0;
+
+    // broadcast batching, a window of 0 means every draw goes out by itself
+    private long batchMillis = 0;
+    private int batchMessages = 64;
+
+    // outgoing queue limit, 0 means no limit
+    private int queueLimit = 0;
+    private SlowClientPolicy slowClientPolicy = SlowClientPolicy.COALESCE;
+    private long blockMillis = 1000;
+    // how often queue depths are reported, 0 means never
+    private long queueReportMillis = 0;
+
+    // this node and every node in its cluster ("host:port"), null if alone
+    private String node = null;
+    private List<String> clusterNodes = null;
+    // the server this one is a standby of ("host:port"), null if it isn't
+    private String primary = null;
+
+    // write-ahead log, null means boards don't outlive the server
+    private File logDirectory = null;
+    private long logSyncMillis = 10;
+    private long logSegmentBytes = 64L << 20;
+    private long checkpointActions = 1 << 20;
+
+    // where idle boards are spilled, null means boards stay on the heap
+    private File evictionDirectory = null;
+    private long evictIdleMillis = 10 * 60 * 1000;
+
+    /**
+     * @return the transport the server should use
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Choose how the server talks to its clients
+     *
+     * @param transport
+     *            BLOCKING or SELECTOR
+     * @return this config
+     */
+    public ServerConfig setTransport(Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * @return the number of I/O loops the SELECTOR transport runs
+     */
+    public int getIOLoops() {
+        return ioLoops;
+    }
+
+    /**
+     * Set the number of I/O loops for the SELECTOR transport (ignored by the
+     * BLOCKING transport)
+     *
+     * @param ioLoops
+     *            number of selector threads, must be positive
+     * @return this config
+     */
+    public ServerConfig setIOLoops(int ioLoops) {
+        if (ioLoops < 1) {
+            throw new IllegalArgumentException("need at least one I/O loop");
+        }
+        this.ioLoops = ioLoops;
+        return this;
+    }
+
+    /**
+     * @return the number of threads boards' actors share
+     */
+    public int getBoardThreads() {
+        return boardThreads;
+    }
+
+    /**
+     * Set the number of threads that apply changes to boards and broadcast
+     * them (see BoardActor). Each board only ever uses one at a time, so this
+     * is how many boards can be busy at once.
+     *
+     * @param boardThreads
+     *            number of board threads, must be positive
+     * @return this config
+     */
+    public ServerConfig setBoardThreads(int boardThreads) {
+        if (boardThreads < 1) {
+            throw new IllegalArgumentException("need at least one board thread");
+        }
+        this.boardThreads = boardThreads;
+        return this;
+    }
+
+    /**
+     * @return whether the BLOCKING transport runs its client handlers on
+     *         virtual threads
+     */
+    public boolean useVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Run the BLOCKING transport's input and output handlers on virtual
+     * threads from one server-wide executor instead of a new platform thread
+     * each (ignored by the SELECTOR transport). Needs a Java 21 runtime; older
+     * ones fall back to a cached pool of platform threads.
+     *
+     * @param virtualThreads
+     *            true to use virtual threads
+     * @return this config
+     */
+    public ServerConfig setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    /**
+     * @return directory that boards keep their actions in, or null if they
+     *         are kept on the heap
+     */
+    public File getStorageDirectory() {
+        return storageDirectory;
+    }
+
+    /**
+     * Keep every board's actions in a memory-mapped file in this directory
+     * (see MappedStrokeLog) instead of on the heap. The directory shouldn't be
+     * shared with another server.
+     *
+     * @param storageDirectory
+     *            where to put the files, or null to keep actions on the heap
+     * @return this config
+     */
+    public ServerConfig setStorageDirectory(File storageDirectory) {
+        this.storageDirectory = storageDirectory;
+        return this;
+    }
+
+    /**
+     * @return directory the write-ahead log is in, or null if there isn't one
+     */
+    public File getLogDirectory() {
+        return logDirectory;
+    }
+
+    /**
+     * @return how long changes pile up between the log's writes
+     */
+    public long getLogSyncMillis() {
+        return logSyncMillis;
+    }
+
+    /**
+     * @return size a log segment grows to before a new one is started
+     */
+    public long getLogSegmentBytes() {
+        return logSegmentBytes;
+    }
+
+    /**
+     * @return fewest changes logged before a checkpoint is written
+     */
+    public long getCheckpointActions() {
+        return checkpointActions;
+    }
+
+    /**
+     * Log every change to every board (see WriteAheadLog), so that a server
+     * started with the same directory gets them all back. Changes are written
+     * and synced in batches, so a draw never waits on the disk; a crash loses
+     * the last batch or so. Every so often every board is checkpointed, and
+     * the log before the checkpoint deleted. The directory shouldn't be
+     * shared with another server.
+     *
+     * @param directory
+     *            where the log goes, or null (the default) for no log
+     * @param syncMillis
+     *            how long changes pile up between writes, 0 to write as soon
+     *            as the last write is done
+     * @param segmentBytes
+     *            size a segment file grows to before a new one is started
+     * @param checkpointActions
+     *            fewest changes logged before a checkpoint is written (there
+     *            are also at least as many as the last checkpoint had)
+     * @return this config
+     */
+    public ServerConfig setWriteAheadLog(File directory, long syncMillis, long segmentBytes, long checkpointActions) {
+        if (syncMillis < 0 || segmentBytes < 4096 || checkpointActions < 1) {
+            throw new IllegalArgumentException("bad log settings: " + syncMillis + "ms, " + segmentBytes + " bytes, "
+                    + checkpointActions + " actions");
+        }
+        this.logDirectory = directory;
+        this.logSyncMillis = syncMillis;
+        this.logSegmentBytes = segmentBytes;
+        this.checkpointActions = checkpointActions;
+        return this;
+    }
+
+    /**
+     * @return directory idle boards are spilled to, or null if they stay on
+     *         the heap
+     */
+    public File getEvictionDirectory() {
+        return evictionDirectory;
+    }
+
+    /**
+     * @return how long a board goes without anyone on it before it's spilled
+     */
+    public long getEvictIdleMillis() {
+        return evictIdleMillis;
+    }
+
+    /**
+     * Spill boards nobody has been on for a while to a file in this directory
+     * and drop them from the heap. A spilled board is read back the next time
+     * it's needed (ie. someone selects it); its name stays listed all along.
+     * This is storage, not persistence (see setWriteAheadLog): the files are
+     * deleted when the server exits. The directory shouldn't be shared with
+     * another server.
+     *
+     * @param directory
+     *            where spilled boards go, or null (the default) to keep every
+     *            board on the heap
+     * @param idleMillis
+     *            how long a board goes without anyone on it before it's
+     *            spilled, checked about once a second
+     * @return this config
+     */
+    public ServerConfig setEviction(File directory, long idleMillis) {
+        if (idleMillis < 0) {
+            throw new IllegalArgumentException("idle time can't be negative");
+        }
+        this.evictionDirectory = directory;
+        this.evictIdleMillis = idleMillis;
+        return this;
+    }
+
+    /**
+     * @return whether boards get compacted at all
+     */
+    public boolean isCompacting() {
+        return compactActions > 0 || compactBytes > 0 || compactAgeMillis > 0;
+    }
+
+    /**
+     * @return compact a board once it has this many actions, 0 for no limit
+     */
+    public int getCompactActions() {
+        return compactActions;
+    }
+
+    /**
+     * @return compact a board once its actions take up this many bytes, 0 for
+     *         no limit
+     */
+    public long getCompactBytes() {
+        return compactBytes;
+    }
+
+    /**
+     * @return compact a board once its oldest action is this old, 0 for no
+     *         limit
+     */
+    public long getCompactAgeMillis() {
+        return compactAgeMillis;
+    }
+
+    /**
+     * Periodically compact boards (see Whiteboard.compactIfNeeded) once any of
+     * these limits is reached. All 0's (the default) turns compaction off.
+     *
+     * @param maxActions
+     *            number of actions, 0 for no limit
+     * @param maxBytes
+     *            bytes taken up by the actions, 0 for no limit
+     * @param maxAgeMillis
+     *            age of the oldest action, 0 for no limit
+     * @return this config
+     */
+    public ServerConfig setCompaction(int maxActions, long maxBytes, long maxAgeMillis) {
+        if (maxActions < 0 || maxBytes < 0 || maxAgeMillis < 0) {
+            throw new IllegalArgumentException("compaction limits can't be negative");
+        }
+        this.compactActions = maxActions;
+        this.compactBytes = maxBytes;
+        this.compactAgeMillis = maxAgeMillis;
+        return this;
+    }
+
+    /**
+     * @return whether draw broadcasts get batched at all
+     */
+    public boolean isBatching() {
+        return batchMillis > 0;
+    }
+
+    /**
+     * @return longest a draw waits to be broadcast with the ones after it
+     */
+    public long getBatchMillis() {
+        return batchMillis;
+    }
+
+    /**
+     * @return most draws broadcast together
+     */
+    public int getBatchMessages() {
+        return batchMessages;
+    }
+
+    /**
+     * Batch each board's draw broadcasts: draws are held for up to a window
+     * (or until there are enough of them) and then sent to every client on
+     * the board together, as one write. A window of 0 (the default) sends
+     * every draw as soon as it's made.
+     *
+     * @param windowMillis
+     *            longest a draw is held, 0 for no batching. Should be under
+     *            a frame (16ms) so nobody notices.
+     * @param maxMessages
+     *            most draws in a batch, must be positive
+     * @return this config
+     */
+    public ServerConfig setBatching(long windowMillis, int maxMessages) {
+        if (windowMillis < 0 || maxMessages < 1) {
+            throw new IllegalArgumentException("bad batching: " + windowMillis + "ms, " + maxMessages + " messages");
+        }
+        this.batchMillis = windowMillis;
+        this.batchMessages = maxMessages;
+        return this;
+    }
+
+    /**
+     * @return most messages a client's queue can have waiting, 0 for no
+     *         limit
+     */
+    public int getQueueLimit() {
+        return queueLimit;
+    }
+
+    /**
+     * @return what to do with a client whose queue is full
+     */
+    public SlowClientPolicy getSlowClientPolicy() {
+        return slowClientPolicy;
+    }
+
+    /**
+     * @return longest BLOCK waits for a slow client
+     */
+    public long getBlockMillis() {
+        return blockMillis;
+    }
+
+    /**
+     * Limit how many broadcast messages can wait on a client's queue. Replies
+     * to the client's own requests (like joining a board) always fit, and
+     * don't count against the limit.
+     *
+     * @param maxMessages
+     *            most messages waiting, 0 (the default) for no limit
+     * @param policy
+     *            what to do with a client whose queue is full
+     * @param blockMillis
+     *            longest BLOCK waits before it disconnects the client. The
+     *            board's actor waits on the board thread it runs on (see
+     *            setBoardThreads), and goes on as soon as the client takes
+     *            something off its queue, but no other board can use the
+     *            thread meanwhile, so as many slow clients as there are board
+     *            threads can stall every board for this long. With the
+     *            SELECTOR transport, Artists hearing about a new board are
+     *            told by an I/O loop that can't write while it waits, so it
+     *            gives up on them right away.
+     * @return this config
+     */
+    public ServerConfig setQueueLimit(int maxMessages, SlowClientPolicy policy, long blockMillis) {
+        if (maxMessages < 0 || blockMillis < 0) {
+            throw new IllegalArgumentException("bad queue limit: " + maxMessages + " messages, " + blockMillis + "ms");
+        }
+        this.queueLimit = maxMessages;
+        this.slowClientPolicy = policy;
+        this.blockMillis = blockMillis;
+        return this;
+    }
+
+    /**
+     * @return how often every client's queue depth is reported, 0 for never
+     */
+    public long getQueueReportMillis() {
+        return queueReportMillis;
+    }
+
+    /**
+     * Periodically print how many messages are waiting for each client (to
+     * stderr), so clients that are falling behind can be spotted
+     *
+     * @param intervalMillis
+     *            time between reports, 0 (the default) for no reports
+     * @return this config
+     */
+    public ServerConfig setQueueReport(long intervalMillis) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("bad report interval: " + intervalMillis);
+        }
+        this.queueReportMillis = intervalMillis;
+        return this;
+    }
+
+    /**
+     * @return whether this server is one node of a cluster
+     */
+    public boolean isClustered() {
+        return clusterNodes != null;
+    }
+
+    /**
+     * @return this node, as clients and the other servers know it
+     *         ("host:port"), or null if neither clustered nor a standby
+     */
+    public String getNode() {
+        return node;
+    }
+
+    /**
+     * @return every node in the cluster ("host:port"), or null if not
+     *         clustered
+     */
+    public List<String> getClusterNodes() {
+        return clusterNodes;
+    }
+
+    /**
+     * Make this server one node of a cluster, which splits the boards between
+     * its nodes by their names (see HashRing). Clients are sent to the node
+     * that owns the board they ask for, and every node lists every board.
+     * Every node has to be given the same nodes, in any order.
+     *
+     * @param node
+     *            this node, as clients and the other nodes can reach it
+     *            ("host:port", the server should be on that port)
+     * @param nodes
+     *            every node in the cluster, including this one
+     * @return this config
+     */
+    public ServerConfig setCluster(String node, List<String> nodes) {
+        if (primary != null) {
+            throw new IllegalArgumentException("a standby can't be in a cluster");
+        }
+        if (!nodes.contains(node)) {
+            throw new IllegalArgumentException("node " + node + " isn't in the cluster " + nodes);
+        }
+        for (String n : nodes) {
+            int colon = n.lastIndexOf(':');
+            if (colon < 1 || !n.substring(colon + 1).matches("[0-9]+") || Collections.frequency(nodes, n) > 1) {
+                throw new IllegalArgumentException("bad cluster node: " + n);
+            }
+        }
+        this.node = node;
+        this.clusterNodes = Collections.unmodifiableList(new ArrayList<String>(nodes));
+        return this;
+    }
+
+    /**
+     * @return the server this one is a standby of ("host:port"), or null if
+     *         it isn't one
+     */
+    public String getPrimary() {
+        return primary;
+    }
+
+    /**
+     * Make this server a standby of another (its primary): it follows every
+     * change to the primary's boards, as it happens, and sends clients to the
+     * primary while it's up. Once the primary is gone the standby has every
+     * board in memory already, and takes over. Clients on the primary are told
+     * about its standbys, to go to one of them if it goes away.
+     *
+     * @param node
+     *            this server, as clients can reach it ("host:port", the server
+     *            should be on that port)
+     * @param primary
+     *            the server to follow ("host:port")
+     * @return this config
+     */
+    public ServerConfig setStandby(String node, String primary) {
+        if (clusterNodes != null) {
+            throw new IllegalArgumentException("a cluster node can't be a standby");
+        }
+        for (String n : Arrays.asList(node, primary)) {
+            int colon = n.lastIndexOf(':');
+            if (colon < 1 || !n.substring(colon + 1).matches("[0-9]+")) {
+                throw new IllegalArgumentException("bad standby address: " + n);
+            }
+        }
+        if (node.equals(primary)) {
+            throw new IllegalArgumentException("a server can't be its own standby");
+        }
+        this.node = node;
+        this.primary = primary;
+        return this;
+    }
+
+    /**
+     * @return the port this server should be on: its node's port if
+     *         clustered or a standby, otherwise the default
+     */
+    public int getPort() {
+        if (node == null) {
+            return 4444;
+        }
+        return new Integer(node.substring(node.lastIndexOf(':') + 1));
+    }
+
+    /**
+     * Builds a config out of command line arguments of the form --key=value.
+     *
+     * Possible arguments:
+     *
+     * (1) --transport=blocking|selector
+     *
+     * (2) --io-loops=N
+     *
+     * (3) --threads=platform|virtual
+     *
+     * (4) --storage=DIRECTORY
+     *
+     * (5) --compact-actions=N, --compact-bytes=N, --compact-age=SECONDS
+     *
+     * (6) --batch-millis=N, --batch-size=N
+     *
+     * (7) --queue-limit=N, --slow-clients=block|coalesce|disconnect,
+     * --block-millis=N, --queue-report=SECONDS
+     *
+     * (8) --board-threads=N
+     *
+     * (9) --node=HOST:PORT, --cluster=HOST:PORT,HOST:PORT... (both or
+     * neither, the node is also the port to listen on)
+     *
+     * (10) --node=HOST:PORT, --standby-of=HOST:PORT (both or neither, instead
+     * of --cluster)
+     *
+     * (11) --wal=DIRECTORY, --wal-sync-millis=N, --wal-segment-bytes=N,
+     * --wal-checkpoint=N
+     *
+     * (12) --evict=DIRECTORY, --evict-idle=SECONDS
+     *
+     * @param args
+     *            command line arguments
+     * @return the config they describe
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        String node = null;
+        String cluster = null;
+        String primary = null;
+
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("bad argument: " + arg);
+            }
+            String key = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+
+            if (key.equals("transport")) {
+                config.setTransport(Transport.valueOf(value.toUpperCase()));
+            } else if (key.equals("io-loops")) {
+                config.setIOLoops(new Integer(value));
+            } else if (key.equals("threads")) {
+                if (!value.equals("platform") && !value.equals("virtual")) {
+                    throw new IllegalArgumentException("bad argument: " + arg);
+                }
+                config.setVirtualThreads(value.equals("virtual"));
+            } else if (key.equals("storage")) {
+                config.setStorageDirectory(new File(value));
+            } else if (key.equals("compact-actions")) {
+                config.setCompaction(new Integer(value), config.compactBytes, config.compactAgeMillis);
+            } else if (key.equals("compact-bytes")) {
+                config.setCompaction(config.compactActions, new Long(value), config.compactAgeMillis);
+            } else if (key.equals("compact-age")) {
+                config.setCompaction(config.compactActions, config.compactBytes, new Long(value) * 1000);
+            } else if (key.equals("batch-millis")) {
+                config.setBatching(new Long(value), config.batchMessages);
+            } else if (key.equals("batch-size")) {
+                config.setBatching(config.batchMillis, new Integer(value));
+            } else if (key.equals("queue-limit")) {
+                config.setQueueLimit(new Integer(value), config.slowClientPolicy, config.blockMillis);
+            } else if (key.equals("slow-clients")) {
+                config.setQueueLimit(config.queueLimit, SlowClientPolicy.valueOf(value.toUpperCase()),
+                        config.blockMillis);
+            } else if (key.equals("block-millis")) {
+                config.setQueueLimit(config.queueLimit, config.slowClientPolicy, new Long(value));
+            } else if (key.equals("queue-report")) {
+                config.setQueueReport(new Long(value) * 1000);
+            } else if (key.equals("board-threads")) {
+                config.setBoardThreads(new Integer(value));
+            } else if (key.equals("node")) {
+                node = value;
+            } else if (key.equals("cluster")) {
+                cluster = value;
+            } else if (key.equals("standby-of")) {
+                primary = value;
+            } else if (key.equals("wal")) {
+                config.setWriteAheadLog(new File(value), config.logSyncMillis, config.logSegmentBytes,
+                        config.checkpointActions);
+            } else if (key.equals("wal-sync-millis")) {
+                config.setWriteAheadLog(config.logDirectory, new Long(value), config.logSegmentBytes,
+                        config.checkpointActions);
+            } else if (key.equals("wal-segment-bytes")) {
+                config.setWriteAheadLog(config.logDirectory, config.logSyncMillis, new Long(value),
+                        config.checkpointActions);
+            } else if (key.equals("wal-checkpoint")) {
+                config.setWriteAheadLog(config.logDirectory, config.logSyncMillis, config.logSegmentBytes,
+                        new Long(value));
+            } else if (key.equals("evict")) {
+                config.setEviction(new File(value), config.evictIdleMillis);
+            } else if (key.equals("evict-idle")) {
+                config.setEviction(config.evictionDirectory, new Long(value) * 1000);
+            } else {
+                throw new IllegalArgumentException("unknown argument: " + arg);
+            }
+        }
+
+        if (primary != null) {
+            if (node == null) {
+                throw new IllegalArgumentException("--node and --standby-of go together");
+            }
+            config.setStandby(node, primary);
+        }
+        if (node != null && primary == null || cluster != null) {
+            if (node == null || cluster == null) {
+                throw new IllegalArgumentException("--node and --cluster go together");
+            }
+            config.setCluster(node, Arrays.asList(cluster.split(",")));
+        }
+
+        return config;
+    }
+}
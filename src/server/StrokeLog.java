@@ -0,0 +1,159 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact, append-only log of a Whiteboard's draw actions. Instead of boxing
+ * every number, segments are packed into fixed-size chunks of primitive
+ * arrays: five shorts (x1, y1, x2, y2, stroke) and one int (packed rgb) per
+ * segment, which is 14 bytes a segment instead of eight Integers and their
+ * list slots.
+ *
+ * Coordinates and stroke are clamped to the range of a short, which is way
+ * off of the 800x600 board. A doge or another stamp (or anything else with a
+ * negative red) has no color, and comes back out as -1 -1 -1.
+ *
+ * This is not threadsafe; the Whiteboard that owns it locks on it.
+ *
+ */
+public class StrokeLog implements StrokeStore {
+    // segments per chunk, a power of two so we can shift and mask
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // x1, y1, x2, y2, stroke
+    private static final int SHORTS = 5;
+    private static final int SEGMENT_BYTES = SHORTS * 2 + 4;
+    // packed rgb of a segment without a color
+    static final int NO_COLOR = -1;
+
+    private final List<short[]> geometry = new ArrayList<short[]>();
+    private final List<int[]> colors = new ArrayList<int[]>();
+    private int size = 0;
+
+    @Override
+    public void append(int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue) {
+        int rgb = pack(red, green, blue);
+        int chunk = size >>> CHUNK_BITS;
+        int offset = size & CHUNK_MASK;
+
+        if (chunk == geometry.size()) {
+            geometry.add(new short[CHUNK_SIZE * SHORTS]);
+            colors.add(new int[CHUNK_SIZE]);
+        }
+
+        short[] shorts = geometry.get(chunk);
+        int i = offset * SHORTS;
+        shorts[i] = clamp(x1);
+        shorts[i + 1] = clamp(y1);
+        shorts[i + 2] = clamp(x2);
+        shorts[i + 3] = clamp(y2);
+        shorts[i + 4] = clamp(stroke);
+        colors.get(chunk)[offset] = rgb;
+
+        ++size;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long bytes() {
+        return (long) size * SEGMENT_BYTES;
+    }
+
+    @Override
+    public void clear() {
+        geometry.clear();
+        colors.clear();
+        size = 0;
+    }
+
+    @Override
+    public void close() {
+        // everything is on the heap
+    }
+
+    @Override
+    public void visit(int from, int to, Visitor visitor) {
+        checkRange(from, to, size);
+
+        for (int index = from; index < to; ++index) {
+            short[] shorts = geometry.get(index >>> CHUNK_BITS);
+            int i = (index & CHUNK_MASK) * SHORTS;
+            int rgb = colors.get(index >>> CHUNK_BITS)[index & CHUNK_MASK];
+
+            if (rgb == NO_COLOR) {
+                visitor.segment(shorts[i], shorts[i + 1], shorts[i + 2], shorts[i + 3], shorts[i + 4], -1, -1, -1);
+            } else {
+                visitor.segment(shorts[i], shorts[i + 1], shorts[i + 2], shorts[i + 3], shorts[i + 4],
+                        (rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+            }
+        }
+    }
+
+    @Override
+    public void appendTo(StringBuilder builder, int from, int to) {
+        checkRange(from, to, size);
+
+        for (int index = from; index < to; ++index) {
+            short[] shorts = geometry.get(index >>> CHUNK_BITS);
+            int i = (index & CHUNK_MASK) * SHORTS;
+            int rgb = colors.get(index >>> CHUNK_BITS)[index & CHUNK_MASK];
+
+            if (index > from) {
+                builder.append(' ');
+            }
+            appendSegment(builder, shorts[i], shorts[i + 1], shorts[i + 2], shorts[i + 3], shorts[i + 4], rgb);
+        }
+    }
+
+    /**
+     * Makes sure [from, to) is a range of segments in a store
+     */
+    static void checkRange(int from, int to, int size) {
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("[" + from + ", " + to + ") of " + size);
+        }
+    }
+
+    /**
+     * Writes one segment as X1 Y1 X2 Y2 STROKE R G B
+     */
+    static void appendSegment(StringBuilder builder, int x1, int y1, int x2, int y2, int stroke, int rgb) {
+        builder.append(x1).append(' ').append(y1).append(' ').append(x2).append(' ').append(y2).append(' ')
+                .append(stroke).append(' ');
+
+        if (rgb == NO_COLOR) {
+            builder.append("-1 -1 -1");
+        } else {
+            builder.append((rgb >> 16) & 0xFF).append(' ').append((rgb >> 8) & 0xFF).append(' ').append(rgb & 0xFF);
+        }
+    }
+
+    /**
+     * Packs a color into one int
+     *
+     * @return 0xRRGGBB, or NO_COLOR if red is negative
+     */
+    static int pack(int red, int green, int blue) {
+        if (red < 0) {
+            return NO_COLOR;
+        }
+        if (red > 255 || green < 0 || green > 255 || blue < 0 || blue > 255) {
+            throw new IllegalArgumentException("bad color: " + red + " " + green + " " + blue);
+        }
+        return (red << 16) | (green << 8) | blue;
+    }
+
+    /**
+     * @return value, clamped to the range of a short
+     */
+    static short clamp(int value) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+}
@@ -0,0 +1,112 @@
+package server;
+
+/**
+ * Where a Whiteboard keeps its draw actions: an append-only list of segments
+ * (X1 Y1 X2 Y2 STROKE R G B) that can be emptied and read back in order.
+ * StrokeLog keeps them in compact arrays on the heap, MappedStrokeLog keeps
+ * them in a memory-mapped file.
+ *
+ * Implementations don't need to be threadsafe; the Whiteboard that owns one
+ * locks on it.
+ *
+ */
+public interface StrokeStore {
+
+    /**
+     * Something that wants to see the segments of a store, in order
+     */
+    interface Visitor {
+        /**
+         * Called once per segment
+         *
+         * @param x1
+         *            starting x
+         * @param y1
+         *            starting y
+         * @param x2
+         *            ending x
+         * @param y2
+         *            ending y
+         * @param stroke
+         *            stroke size
+         * @param red
+         *            amount of red (0-255), or -1 for no color
+         * @param green
+         *            amount of green (0-255), or -1 for no color
+         * @param blue
+         *            amount of blue (0-255), or -1 for no color
+         */
+        void segment(int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue);
+    }
+
+    /**
+     * Adds a segment to the end of the store
+     *
+     * @param x1
+     *            starting x
+     * @param y1
+     *            starting y
+     * @param x2
+     *            ending x
+     * @param y2
+     *            ending y
+     * @param stroke
+     *            stroke size
+     * @param red
+     *            amount of red (0-255), negative for no color (doge)
+     * @param green
+     *            amount of green (0-255)
+     * @param blue
+     *            amount of blue (0-255)
+     * @throws IllegalArgumentException
+     *             if the color has a channel outside of 0-255
+     */
+    void append(int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue);
+
+    /**
+     * @return number of segments in the store
+     */
+    int size();
+
+    /**
+     * @return number of bytes the segments in the store take up
+     */
+    long bytes();
+
+    /**
+     * Empties the store
+     */
+    void clear();
+
+    /**
+     * Shows the visitor every segment from index from (inclusive) to index to
+     * (exclusive), in order
+     *
+     * @param from
+     *            first segment to visit
+     * @param to
+     *            one past the last segment to visit, at most size()
+     * @param visitor
+     *            what to show them to
+     */
+    void visit(int from, int to, Visitor visitor);
+
+    /**
+     * Writes segments from index from (inclusive) to index to (exclusive) onto
+     * the builder as X1 Y1 X2 Y2 STROKE R G B, separated by spaces
+     *
+     * @param builder
+     *            where to write them
+     * @param from
+     *            first segment to write
+     * @param to
+     *            one past the last segment to write, at most size()
+     */
+    void appendTo(StringBuilder builder, int from, int to);
+
+    /**
+     * Lets go of whatever the store holds besides the heap (ie. an open,
+     * mapped file). The store can't be used after this.
+     */
+    void close();
+}
@@ -0,0 +1,99 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The clients that hear about something: everyone on a board, or all of the
+ * Artists. Clients join and leave in constant time without waiting on anyone,
+ * and can be iterated over while they do (an iteration may or may not see a
+ * client that joins or leaves during it).
+ *
+ * This is threadsafe because it's built on a ConcurrentHashMap. Nothing in it
+ * locks on it, so the server uses the Artists' one as the monitor that puts
+ * their broadcasts in order (a board's come from its actor), and adding or
+ * removing a client never waits on that.
+ *
+ */
+class Subscribers implements Iterable<Integer> {
+    // client ID -> when it joined
+    private final ConcurrentMap<Integer, Long> joined = new ConcurrentHashMap<Integer, Long>();
+    private final AtomicLong joins = new AtomicLong(0);
+
+    /**
+     * @param clientID
+     *            id of client joining
+     * @return true if it wasn't here already
+     */
+    boolean add(int clientID) {
+        return joined.putIfAbsent(clientID, joins.getAndIncrement()) == null;
+    }
+
+    /**
+     * @param clientID
+     *            id of client leaving
+     * @return true if it was here
+     */
+    boolean remove(int clientID) {
+        return joined.remove(clientID) != null;
+    }
+
+    /**
+     * @param clientIDs
+     *            ids of clients leaving
+     */
+    void removeAll(Collection<Integer> clientIDs) {
+        for (int clientID : clientIDs) {
+            remove(clientID);
+        }
+    }
+
+    /**
+     * @param clientID
+     *            id of client
+     * @return true if it's here
+     */
+    boolean contains(int clientID) {
+        return joined.containsKey(clientID);
+    }
+
+    /**
+     * @return true if there are no clients
+     */
+    boolean isEmpty() {
+        return joined.isEmpty();
+    }
+
+    /**
+     * @return the clients, in no particular order
+     */
+    @Override
+    public Iterator<Integer> iterator() {
+        return joined.keySet().iterator();
+    }
+
+    /**
+     * @return the clients, the earliest to join first
+     */
+    List<Integer> inJoinOrder() {
+        // a copy, so nobody leaves while we sort
+        final Map<Integer, Long> when = new HashMap<Integer, Long>(joined);
+        List<Integer> clients = new ArrayList<Integer>(when.keySet());
+        Collections.sort(clients, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return when.get(a).compareTo(when.get(b));
+            }
+        });
+        return clients;
+    }
+}
@@ -1,17 +1,30 @@
 package server;
 
 import java.awt.Color;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import protocol.Base64;
+
 /**
  * The ADT representing a Whiteboard. It holds its name, background color, and
- * history of actions. It can also calculate its artsy meter.
+ * history of actions. It can also calculate its artsy meter, and make a
+ * snapshot (a PNG of what the board looks like) so new users don't have to
+ * replay the whole history. To keep the history from growing forever, it can
+ * be compacted: everything drawn so far is collapsed into a checkpoint (a PNG)
+ * and the actions it replaces are thrown away. The history (or snapshot) can
+ * also be streamed out in bounded chunks instead of as one string, and the
+ * whole board written out and read back in (so it can be kept off the heap
+ * while nobody needs it).
  * 
  * This is threadsafe because all of its instance variables are private, final,
- * and threadsafe (except unused colors, which are mutable, but threadsafe). All
+ * and threadsafe (except used colors, actions, raster, the cached snapshot and
+ * the checkpoint, which are only touched while locked on actions). All
  * modifications done to actions or bg (or things that depends on actions or bg)
  * are locked on actions or bg. Nothing mutable is returned from any method and
  * nothing mutable is shared between instances. A Whiteboard doesn't know
@@ -22,13 +35,45 @@ import java.util.List;
 public class Whiteboard {
     private final String name;
     private final List<Integer> bg;
-    private final List<Integer> actions;
+    private final StrokeStore actions;
+
+    // made the first time someone asks for a snapshot, then kept up to date
+    private BoardRaster raster = null;
+    // base64 PNG of the raster back when there were snapshotSize actions
+    private String snapshot = null;
+    private int snapshotSize = 0;
+
+    // most actions we'll send after a cached snapshot before making a new one
+    private static final int SNAPSHOT_TAIL = 256;
 
-    private List<Color> unusedColors;
-    private final static Color[] colors = new Color[] { Color.BLACK, Color.DARK_GRAY,
+    // PNG of everything drawn before the actions we have, null if nothing
+    private byte[] checkpoint = null;
+    // when the oldest action we have was drawn
+    private long oldestAction = 0;
+    // how many actions there were when compacting last didn't pay off, -1 if
+    // it hasn't been tried since then
+    private int declinedSize = -1;
+
+    // colors that count toward the artsy meter, and which of them were used
+    private final static Palette colors = new Palette(Color.BLACK, Color.DARK_GRAY,
             Color.GRAY, Color.LIGHT_GRAY, Color.WHITE, Color.RED, Color.ORANGE,
             Color.YELLOW, Color.GREEN, Color.BLUE, Color.MAGENTA,
-            new Color(163, 31, 52), Color.PINK, Color.CYAN };
+            new Color(163, 31, 52), Color.PINK, Color.CYAN);
+    private final Palette.Usage usedColors = colors.newUsage();
+
+    /**
+     * Gets the pieces of a streamed history (see streamActions and
+     * streamSnapshot), in order. Called while the board is locked, so it
+     * shouldn't wait on anything but putting the chunk somewhere.
+     */
+    public interface ChunkSink {
+        /**
+         * @param chunk
+         *            "PNG" BASE64_PIECE or "ACTIONS" X1 Y1 X2 Y2 STROKE R G
+         *            B...
+         */
+        void chunk(String chunk);
+    }
 
     /**
      * Creates a new Whiteboard object, with an empty artsy meter and no actions
@@ -39,26 +84,25 @@ public class Whiteboard {
      *            a list of (r, g, b) of the background color
      */
     public Whiteboard(String name, List<Integer> bg) {
-        this.name = name;
-        this.bg = Collections.synchronizedList(new ArrayList<Integer>(bg));
-        actions = Collections.synchronizedList(new ArrayList<Integer>());
-        unusedColors = Collections.synchronizedList(makeColorList());
+        this(name, bg, new StrokeLog());
     }
 
     /**
-     * Makes the list of unused colors (currently, all of the colors) to be used
-     * in calculation of artsy meter.
+     * Creates a new Whiteboard object, with an empty artsy meter, keeping its
+     * actions in the given store
      * 
-     * @return a list of unused colors
+     * @param name
+     *            unique name of the board
+     * @param bg
+     *            a list of (r, g, b) of the background color
+     * @param actions
+     *            empty store to keep the actions in, not shared with anything
+     *            else
      */
-    private List<Color> makeColorList() {
-        List<Color> uColors = new ArrayList<Color>();
-
-        for (Color i : colors) {
-            uColors.add(i);
-        }
-
-        return uColors;
+    public Whiteboard(String name, List<Integer> bg, StrokeStore actions) {
+        this.name = name;
+        this.bg = Collections.synchronizedList(new ArrayList<Integer>(bg));
+        this.actions = actions;
     }
 
     /**
@@ -77,9 +121,17 @@ public class Whiteboard {
     public void clear() {
         synchronized (actions) {
             actions.clear();
+            snapshot = null;
+            checkpoint = null;
+            declinedSize = -1;
+            if (raster != null) {
+                synchronized (bg) {
+                    raster.fill(bg.get(0), bg.get(1), bg.get(2));
+                }
+            }
 
             // Reset all colors to unused
-            unusedColors = Collections.synchronizedList(makeColorList());
+            usedColors.clear();
         }
     }
 
@@ -106,12 +158,18 @@ public class Whiteboard {
     public void addAction(int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue) {
         // locked so that we can't print out history as its being changed
         synchronized (actions) {
-            actions.addAll(Arrays.asList(x1, y1, x2, y2, stroke, red, green, blue));
+            if (actions.size() == 0) {
+                oldestAction = System.currentTimeMillis();
+            }
+            actions.append(x1, y1, x2, y2, stroke, red, green, blue);
+            if (raster != null) {
+                raster.draw(x1, y1, x2, y2, stroke, red, green, blue);
+            }
 
-            // doge is all -1's, will break this
+            // doge and other stamps have -1 colors, will break this
             if (red >= 0) {
-                // Won't change unusedColors if not in the list
-                unusedColors.remove(new Color(red, green, blue));
+                // Won't change usedColors if not in the palette
+                usedColors.use(StrokeLog.pack(red, green, blue));
             }
 
         }
@@ -129,6 +187,18 @@ public class Whiteboard {
         }
     }
 
+    /**
+     * Gets the background color packed into one int
+     * 
+     * @return 0xRRGGBB
+     */
+    public int getBackgroundRGB() {
+        // because 3 gets can be interleaved
+        synchronized (bg) {
+            return (bg.get(0) << 16) | (bg.get(1) << 8) | bg.get(2);
+        }
+    }
+
     /**
      * Change the background color of the board.
      * 
@@ -150,22 +220,338 @@ public class Whiteboard {
 
     /**
      * Converts the board's actions to a string (X1 Y1 X2 Y2 STROKE R G B)
-     * separated by spaces
+     * separated by spaces. If the board has been compacted, the checkpoint
+     * comes first, as 1 pixel wide actions (see BoardRaster.appendRuns).
      * 
      * @return string of actions of the board, separated by spaces
      */
     public String createStringOfActions() {
+        StringBuilder action;
+
+        // so that we can't modify actions as we access it
+        synchronized (actions) {
+            // x1, y1, x2, y2, stroke, red, green, blue, straight from the log
+            action = new StringBuilder(actions.size() * 32);
+
+            if (checkpoint != null) {
+                if (BoardRaster.appendRuns(checkpoint, getBackgroundRGB(), action) > 0 && actions.size() > 0) {
+                    action.append(' ');
+                }
+            }
+
+            actions.appendTo(action, 0, actions.size());
+        }
+        return action.toString();
+    }
+
+    /**
+     * Makes a snapshot of the board and the actions that happened after it:
+     * "SNAPSHOT" PNG_BASE64 "ACTIONS" X1 Y1 X2 Y2 STROKE R G B... Drawing the
+     * PNG and then the actions gives the same picture as replaying every
+     * action. The PNG is cached, and only made again once too many actions
+     * have piled up after it, so this costs the same however long the history
+     * is.
+     * 
+     * @return the snapshot and the actions after it, separated by spaces
+     */
+    public String createStringOfSnapshot() {
         StringBuilder action = new StringBuilder();
 
         // so that we can't modify actions as we access it
         synchronized (actions) {
-            // loop through and add to the string
-            for (Integer i : actions) {
-                // x1, y1, x2, y2, stroke, red, green, blue
-                action.append(i + " ");
+            action.append("SNAPSHOT ").append(currentSnapshot()).append(" ACTIONS ");
+            actions.appendTo(action, snapshotSize, actions.size());
+        }
+        return action.toString();
+    }
+
+    /**
+     * Streams the same thing as createStringOfActions, without ever making
+     * it into one string: the actions go to the sink as "ACTIONS" chunks of
+     * at most maxSegments actions each. Nothing is sent for an empty board.
+     * 
+     * @param maxSegments
+     *            most actions in a chunk (> 0)
+     * @param sink
+     *            where the chunks go
+     */
+    public void streamActions(int maxSegments, ChunkSink sink) {
+        ChunkWriter writer = new ChunkWriter(maxSegments, sink);
+
+        // so that we can't modify actions as we access it
+        synchronized (actions) {
+            visitActions(writer);
+            writer.flush();
+        }
+    }
+
+    /**
+     * Shows the visitor the same actions createStringOfActions has, in order:
+     * the checkpoint first (as 1 pixel wide actions), if the board has been
+     * compacted, then the actions after it
+     * 
+     * @param visitor
+     *            what to show them to
+     */
+    public void visitActions(StrokeStore.Visitor visitor) {
+        // so that we can't modify actions as we access it
+        synchronized (actions) {
+            if (checkpoint != null) {
+                int bgRGB;
+                synchronized (bg) {
+                    bgRGB = (bg.get(0) << 16) | (bg.get(1) << 8) | bg.get(2);
+                }
+                BoardRaster.visitRuns(checkpoint, bgRGB, visitor);
+            }
+
+            actions.visit(0, actions.size(), visitor);
+        }
+    }
+
+    /**
+     * Streams the same thing as createStringOfSnapshot, without ever making
+     * it into one string: the snapshot goes to the sink as "PNG" chunks of at
+     * most maxChars base64 characters (glue them back together to decode),
+     * and then the actions after it as "ACTIONS" chunks of at most
+     * maxSegments actions.
+     * 
+     * @param maxChars
+     *            most base64 characters in a chunk (> 0)
+     * @param maxSegments
+     *            most actions in a chunk (> 0)
+     * @param sink
+     *            where the chunks go
+     */
+    public void streamSnapshot(int maxChars, int maxSegments, ChunkSink sink) {
+        ChunkWriter writer = new ChunkWriter(maxSegments, sink);
+
+        // so that we can't modify actions as we access it
+        synchronized (actions) {
+            String png = currentSnapshot();
+            for (int i = 0; i < png.length(); i += maxChars) {
+                sink.chunk("PNG " + png.substring(i, Math.min(png.length(), i + maxChars)));
+            }
+
+            actions.visit(snapshotSize, actions.size(), writer);
+            writer.flush();
+        }
+    }
+
+    /**
+     * Makes the snapshot again if there isn't one or too many actions have
+     * piled up after it. Must be locked on actions.
+     * 
+     * @return base64 PNG of the board back when there were snapshotSize
+     *         actions
+     */
+    private String currentSnapshot() {
+        makeRaster();
+
+        if (snapshot == null || actions.size() - snapshotSize > SNAPSHOT_TAIL) {
+            snapshot = Base64.encode(raster.encode());
+            snapshotSize = actions.size();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Makes the raster, if there isn't one yet, and catches it up on the
+     * history. Must be locked on actions.
+     */
+    private void makeRaster() {
+        if (raster != null) {
+            return;
+        }
+
+        StrokeStore.Visitor painter = new StrokeStore.Visitor() {
+            public void segment(int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue) {
+                raster.draw(x1, y1, x2, y2, stroke, red, green, blue);
+            }
+        };
+        int bgRGB;
+        synchronized (bg) {
+            raster = new BoardRaster(bg.get(0), bg.get(1), bg.get(2));
+            bgRGB = (bg.get(0) << 16) | (bg.get(1) << 8) | bg.get(2);
+        }
+        // a board is only compacted once it has a raster, unless it was read
+        // back in (see readFrom), which leaves the checkpoint to draw
+        if (checkpoint != null) {
+            BoardRaster.visitRuns(checkpoint, bgRGB, painter);
+        }
+        actions.visit(0, actions.size(), painter);
+    }
+
+    /**
+     * Compacts the history if any of the limits has been reached: everything
+     * drawn so far is collapsed into a checkpoint, and the actions are thrown
+     * away. The board looks exactly the same afterwards, to new users too.
+     * Users without a raster get the checkpoint as 1 pixel runs, so the
+     * history is only thrown away if those take no more room than it does (a
+     * stamp or a thick line is a lot of runs); otherwise it's kept, and isn't
+     * tried again until something else is drawn.
+     * 
+     * @param maxActions
+     *            compact once there are this many actions, 0 for no limit
+     * @param maxBytes
+     *            compact once the actions take up this many bytes, 0 for no
+     *            limit
+     * @param maxAgeMillis
+     *            compact once the oldest action is this old, 0 for no limit
+     * @return true if the history was compacted
+     */
+    public boolean compactIfNeeded(int maxActions, long maxBytes, long maxAgeMillis) {
+        synchronized (actions) {
+            int size = actions.size();
+            if (size == 0) {
+                return false;
+            }
+
+            boolean tooMany = maxActions > 0 && size >= maxActions;
+            boolean tooBig = maxBytes > 0 && actions.bytes() >= maxBytes;
+            boolean tooOld = maxAgeMillis > 0 && System.currentTimeMillis() - oldestAction >= maxAgeMillis;
+            if (!tooMany && !tooBig && !tooOld || size == declinedSize) {
+                return false;
+            }
+
+            // the raster already has everything on it, it becomes the
+            // checkpoint (and the snapshot, since nothing came after it)
+            makeRaster();
+            byte[] png = raster.encode();
+            LengthCounter history = new LengthCounter();
+            LengthCounter runs = new LengthCounter();
+            visitActions(history);
+            BoardRaster.visitRuns(png, getBackgroundRGB(), runs);
+            if (runs.length > history.length) {
+                declinedSize = size;
+                return false;
+            }
+
+            checkpoint = png;
+            declinedSize = -1;
+            snapshot = Base64.encode(checkpoint);
+            snapshotSize = 0;
+            actions.clear();
+            return true;
+        }
+    }
+
+    /**
+     * Lets go of whatever the board's actions hold besides the heap (see
+     * StrokeStore.close). The board can't be used after this.
+     */
+    public void close() {
+        synchronized (actions) {
+            actions.close();
+        }
+    }
+
+    /**
+     * Writes out everything about the board but its name, so readFrom can
+     * make the same board again: bg, which colors were used, the checkpoint
+     * if it's been compacted, and the actions after it (5 shorts and a packed
+     * rgb int each). The raster and snapshot aren't written, they're made
+     * again when they're needed.
+     * 
+     * @param out
+     *            where to write it
+     * @throws IOException
+     *             if it can't be written
+     */
+    public void writeTo(final DataOutput out) throws IOException {
+        // so that we can't modify actions as we write them
+        synchronized (actions) {
+            synchronized (bg) {
+                out.writeInt(bg.get(0));
+                out.writeInt(bg.get(1));
+                out.writeInt(bg.get(2));
+            }
+            out.writeInt(usedColors.words());
+            for (int i = 0; i < usedColors.words(); ++i) {
+                out.writeLong(usedColors.word(i));
+            }
+            out.writeLong(oldestAction);
+            out.writeInt(checkpoint == null ? -1 : checkpoint.length);
+            if (checkpoint != null) {
+                out.write(checkpoint);
+            }
+
+            out.writeInt(actions.size());
+            // the visitor can't throw, so it hands the first failure back
+            final IOException[] failure = new IOException[1];
+            actions.visit(0, actions.size(), new StrokeStore.Visitor() {
+                public void segment(int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue) {
+                    if (failure[0] != null) {
+                        return;
+                    }
+                    try {
+                        out.writeShort(x1);
+                        out.writeShort(y1);
+                        out.writeShort(x2);
+                        out.writeShort(y2);
+                        out.writeShort(stroke);
+                        out.writeInt(StrokeLog.pack(red, green, blue));
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+    }
+
+    /**
+     * Makes the board writeTo wrote out again
+     * 
+     * @param name
+     *            name of the board
+     * @param in
+     *            where writeTo wrote it
+     * @param actions
+     *            empty store to keep the actions in, not shared with anything
+     *            else
+     * @return the board, as it was when it was written
+     * @throws IOException
+     *             if it can't be read
+     */
+    public static Whiteboard readFrom(String name, DataInput in, StrokeStore actions) throws IOException {
+        int red = in.readInt();
+        int green = in.readInt();
+        int blue = in.readInt();
+        Whiteboard board = new Whiteboard(name, Arrays.asList(red, green, blue), actions);
+
+        // a palette that grew since has none of its new colors used
+        int words = in.readInt();
+        for (int i = 0; i < words; ++i) {
+            long word = in.readLong();
+            if (i < board.usedColors.words()) {
+                board.usedColors.setWord(i, word);
+            }
+        }
+        board.oldestAction = in.readLong();
+        int checkpointLength = in.readInt();
+        if (checkpointLength >= 0) {
+            board.checkpoint = new byte[checkpointLength];
+            in.readFully(board.checkpoint);
+        }
+
+        int size = in.readInt();
+        for (int i = 0; i < size; ++i) {
+            int x1 = in.readShort();
+            int y1 = in.readShort();
+            int x2 = in.readShort();
+            int y2 = in.readShort();
+            int stroke = in.readShort();
+            int rgb = in.readInt();
+            if (rgb == StrokeLog.NO_COLOR) {
+                // doge, or another stamp
+                actions.append(x1, y1, x2, y2, stroke, -1, -1, -1);
+            } else {
+                actions.append(x1, y1, x2, y2, stroke, (rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
             }
         }
-        return action.toString().trim();
+        return board;
     }
 
     /**
@@ -177,7 +563,67 @@ public class Whiteboard {
         // this changes with actions
         synchronized (actions) {
             // int representation of percent used
-            return (int) (100 * (colors.length - unusedColors.size()) / (colors.length + 0.0));
+            return 100 * usedColors.count() / colors.size();
+        }
+    }
+
+    /**
+     * Formats the actions it visits into "ACTIONS" chunks, handing each one to
+     * a sink as soon as it's full
+     */
+    private static class ChunkWriter implements StrokeStore.Visitor {
+        private final int maxSegments;
+        private final ChunkSink sink;
+        private final StringBuilder chunk = new StringBuilder();
+        private int segments = 0;
+
+        /**
+         * @param maxSegments
+         *            most actions in a chunk
+         * @param sink
+         *            where the chunks go
+         */
+        private ChunkWriter(int maxSegments, ChunkSink sink) {
+            this.maxSegments = maxSegments;
+            this.sink = sink;
+        }
+
+        @Override
+        public void segment(int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue) {
+            chunk.append(segments == 0 ? "ACTIONS " : " ");
+            StrokeLog.appendSegment(chunk, x1, y1, x2, y2, stroke, StrokeLog.pack(red, green, blue));
+
+            if (++segments == maxSegments) {
+                flush();
+            }
+        }
+
+        /**
+         * Sends whatever is in the current chunk, if anything
+         */
+        private void flush() {
+            if (segments > 0) {
+                sink.chunk(chunk.toString());
+                chunk.setLength(0);
+                segments = 0;
+            }
+        }
+    }
+
+    /**
+     * Adds up how long the actions it visits would be in
+     * createStringOfActions, without keeping the string
+     */
+    private static class LengthCounter implements StrokeStore.Visitor {
+        private final StringBuilder segment = new StringBuilder();
+        private long length = 0;
+
+        @Override
+        public void segment(int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue) {
+            segment.setLength(0);
+            StrokeLog.appendSegment(segment, x1, y1, x2, y2, stroke, StrokeLog.pack(red, green, blue));
+            // and the space before the next one
+            length += segment.length() + 1;
         }
     }
 
@@ -1,21 +1,53 @@
 package server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.URLEncoder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import protocol.FrameReader;
+import protocol.Frames;
+import protocol.Tokenizer;
+import server.ServerConfig.SlowClientPolicy;
+import server.ServerConfig.Transport;
 
 /**
  * Threadsafe, mutable server for collaborative whiteboard-ing.
@@ -24,32 +56,131 @@ import java.util.concurrent.atomic.AtomicInteger;
  * thread-safe, and locked during iteration. Information to be sent back to the
  * client is put on blocking queues, and is processed in an orderly manner.
  * Every client has two threads- one for input and one for output, and the only
- * shared information is a final socket and an atomic integer. The server knows
- * nothing about the GUI or the client, except for the messages the client
- * sends. All modifications to queues or Whiteboards is locked on that queue or
- * whiteboard. Moreover, to ensure whiteboard names are unique, they are sent to
- * the server first and in a synchronized block, the server ensure the name is
- * unique and creates a whiteboard and then sends the client the name back (so
- * no race conditions here).
+ * shared information is a final socket and an atomic integer (with the SELECTOR
+ * transport, clients instead share a few I/O loops, see SelectorLoop, which
+ * feed the same handleRequest and drain the same queues; and with virtual
+ * threads the two handlers are just run on virtual threads instead). The server
+ * knows nothing about the GUI or the client, except for the messages the client
+ * sends. Queues are thread-safe, and each Whiteboard is only ever read or
+ * changed by its own actor (see BoardActor), which also sends everything that
+ * is broadcast about it, so requests about a board are just put in its mailbox
+ * and everyone on it hears about them in the order they happened. Moreover, to
+ * ensure whiteboard names are unique, they are sent to the server first and in
+ * a synchronized block, the server ensure the name is unique and creates a
+ * whiteboard and then sends the client the name back (so no race conditions
+ * here).
+ * 
+ * A server can have standbys (see ServerConfig.setStandby), which are sent
+ * every board and then every change to one, by the board's actor as it
+ * happens, so a standby has the boards in memory when the server goes away.
+ * Every change can also be written to a write-ahead log (see WriteAheadLog), by
+ * the same actor, so a server that restarts gets its boards back. Boards
+ * nobody has been on for a while can be spilled to disk by their actor (see
+ * ServerConfig.setEviction) and read back in by it when they're needed;
+ * everything else about a board is small and stays, so they're still listed.
  * 
  * Every client is given unique ID numbers.
  * 
  */
 public class WhiteboardServer {
+    // how often boards are checked for compaction, and the log for a
+    // checkpoint
+    private static final long COMPACT_INTERVAL_MILLIS = 1000;
+    // most actions, and most snapshot characters, in one SNAPSHOT_CHUNK line
+    private static final int STREAM_CHUNK_SEGMENTS = 1024;
+    private static final int STREAM_CHUNK_CHARS = 16384;
+    // most messages waiting on a client's queue before the next chunk of a
+    // board waits for it to take one, and longest it waits
+    private static final int STREAM_WINDOW = 4;
+    private static final long STREAM_WAIT_MILLIS = 1000;
+    // longest a standby waits to connect to its primary
+    private static final int FOLLOW_TIMEOUT_MILLIS = 1000;
+
+    // request verbs, in the order of their indexes below
+    private static final String[] VERBS = new String[] { "HELLO", "SELECT", "NEW", "DRAW", "BG", "CLEAR", "BYE",
+            "BYEARTIST", "WHERE", "BOARDS", "PEERBOARD", "REPLICATE", "CREATE", "REPLAY" };
+    private static final int HELLO = 0;
+    private static final int SELECT = 1;
+    private static final int NEW = 2;
+    private static final int DRAW = 3;
+    private static final int BG = 4;
+    private static final int CLEAR = 5;
+    private static final int BYE = 6;
+    private static final int BYEARTIST = 7;
+    private static final int WHERE = 8;
+    private static final int BOARDS = 9;
+    private static final int PEERBOARD = 10;
+    private static final int REPLICATE = 11;
+    private static final int CREATE = 12;
+    private static final int REPLAY = 13;
+
+    // every thread that handles requests reuses its own tokenizer
+    private static final ThreadLocal<Tokenizer> TOKENIZERS = new ThreadLocal<Tokenizer>() {
+        @Override
+        protected Tokenizer initialValue() {
+            return new Tokenizer();
+        }
+    };
+
     private final ServerSocket serverSocket;
+    private final ServerConfig config;
 
     private final AtomicInteger clientIDCounter;
+    private final AtomicInteger boardIDCounter;
 
-    // whiteboard name -> whiteboard
+    // whiteboard name -> whiteboard, for the ones on the heap
     private final Map<String, Whiteboard> whiteboards;
+    // whiteboard name -> board ID, and back, for binary clients (every board
+    // is in these, spilled or not, so this is also the list of boards)
+    private final Map<String, Integer> boardIDs;
+    private final Map<Integer, String> boardNames;
     // whiteboard name -> client IDs
-    private final Map<String, List<Integer>> whiteboardClients;
+    private final Map<String, Subscribers> whiteboardClients;
     // client ID -> name
     private final Map<Integer, String> names;
     // client ID -> queue
-    private final Map<Integer, BlockingQueue<String>> queues;
+    private final Map<Integer, ClientQueue> queues;
     // all the clients that are Artists
-    private final List<Integer> artistClients;
+    private final Subscribers artistClients;
+    // all the clients that asked for binary frames
+    private final Set<Integer> binaryClients;
+    // all the clients that asked for the artsy meter by itself
+    private final Set<Integer> artsyClients;
+    // client ID -> protocol features it asked for when it selected a board
+    private final Map<Integer, Set<String>> clientFeatures;
+    // client ID -> its socket or channel, so slow clients can be cut off
+    private final Map<Integer, Closeable> connections;
+    // how many times slow clients were sent the board again, or cut off
+    private final AtomicLong resyncs;
+    private final AtomicLong disconnects;
+    // whiteboard name -> draws waiting to be broadcast, if batching
+    private final Map<String, Batch> batches;
+    // sends batches when their window is up, null if not batching
+    private final ScheduledExecutorService broadcaster;
+    // whiteboard name -> its actor, which does everything to it
+    private final Map<String, BoardActor> actors;
+    // threads the actors take turns on
+    private final ExecutorService boardThreads;
+    // the nodes that share the boards with us, and the threads that talk to
+    // them, null if not clustered
+    private final Cluster cluster;
+    private final ExecutorService peers;
+    // client ID -> "STANDBY" HOST PORT, for the standbys following us
+    private final Map<Integer, String> standbys;
+    // whiteboard name -> standbys that have it, which hear about every change
+    private final Map<String, Subscribers> boardStandbys;
+    // the server we follow ("host:port"), null once it's gone or if we're not
+    // a standby
+    private volatile String primary;
+    // client ID of our follower's connection to the primary, the only one
+    // that can tell us to make or replay a board, -1 if there never was one
+    private volatile int followerID;
+    // where every change to a board is logged, null if boards don't outlive
+    // the server
+    private final WriteAheadLog log;
+    // whiteboard name -> when the board was first seen with nobody on it,
+    // for boards on the heap that nobody has been on since
+    private final Map<String, Long> idleSince;
 
     /**
      * Creates a new server, with no whiteboards or users. Default port is 4444.
@@ -61,16 +192,488 @@ public class WhiteboardServer {
      *             if invalid port
      */
     public WhiteboardServer(int port) throws IOException {
-        serverSocket = new ServerSocket(port);
-        whiteboards = Collections.synchronizedMap(new HashMap<String, Whiteboard>());
+        this(port, new ServerConfig());
+    }
+
+    /**
+     * Creates a new server, with no whiteboards or users (except the ones in
+     * its write-ahead log, if it has one), set up as the config says. Default
+     * port is 4444.
+     * 
+     * @param port
+     *            the port to run the server on
+     * @param config
+     *            startup options (transport, etc)
+     * 
+     * @throws IOException
+     *             if invalid port, or the log can't be read
+     */
+    public WhiteboardServer(int port, ServerConfig config) throws IOException {
+        this.config = config;
+        // a channel's socket accepts just like a plain one while it's blocking
+        serverSocket = ServerSocketChannel.open().socket();
+        serverSocket.bind(new InetSocketAddress(port));
+        // none of these lock, so a busy board never holds up another
+        whiteboards = new ConcurrentHashMap<String, Whiteboard>();
+        boardIDs = new ConcurrentHashMap<String, Integer>();
+        boardNames = new ConcurrentHashMap<Integer, String>();
         clientIDCounter = new AtomicInteger(0);
-        names = Collections.synchronizedMap(new HashMap<Integer, String>());
-        queues = Collections.synchronizedMap(new HashMap<Integer, BlockingQueue<String>>());
-        whiteboardClients = Collections.synchronizedMap(new HashMap<String, List<Integer>>());
-        artistClients = Collections.synchronizedList(new ArrayList<Integer>());
+        boardIDCounter = new AtomicInteger(0);
+        names = new ConcurrentHashMap<Integer, String>();
+        queues = new ConcurrentHashMap<Integer, ClientQueue>();
+        whiteboardClients = new ConcurrentHashMap<String, Subscribers>();
+        artistClients = new Subscribers();
+        binaryClients = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        artsyClients = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        clientFeatures = new ConcurrentHashMap<Integer, Set<String>>();
+        connections = new ConcurrentHashMap<Integer, Closeable>();
+        resyncs = new AtomicLong(0);
+        disconnects = new AtomicLong(0);
+        batches = new ConcurrentHashMap<String, Batch>();
+        broadcaster = config.isBatching() ? newDaemonScheduler("whiteboard-broadcast") : null;
+        actors = new ConcurrentHashMap<String, BoardActor>();
+        boardThreads = Executors.newFixedThreadPool(config.getBoardThreads(), newDaemonThreads("whiteboard-board"));
+        if (config.isClustered()) {
+            cluster = new Cluster(config.getNode(), config.getClusterNodes());
+            peers = Executors.newCachedThreadPool(newDaemonThreads("whiteboard-cluster"));
+        } else {
+            cluster = null;
+            peers = null;
+        }
+        standbys = new ConcurrentHashMap<Integer, String>();
+        boardStandbys = new ConcurrentHashMap<String, Subscribers>();
+        primary = config.getPrimary();
+        followerID = -1;
+        idleSince = new ConcurrentHashMap<String, Long>();
+
+        if (config.getLogDirectory() != null) {
+            log = new WriteAheadLog(config.getLogDirectory(), config.getLogSyncMillis(), config.getLogSegmentBytes());
+            recover();
+            startCheckpointer();
+        } else {
+            log = null;
+        }
+        if (primary != null) {
+            startFollowing();
+        }
+        if (config.isCompacting()) {
+            startCompactor();
+        }
+        if (config.getEvictionDirectory() != null) {
+            startEvictor();
+        }
+        if (config.getQueueReportMillis() > 0) {
+            startQueueReporter();
+        }
         serve();
     }
 
+    /**
+     * Starts a background thread that has every board checked once a second,
+     * by its actor, and compacted if it reached the config's limits
+     */
+    private void startCompactor() {
+        ScheduledExecutorService compactor = newDaemonScheduler("whiteboard-compactor");
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                // spilled boards stay as they are
+                for (final String boardName : whiteboards.keySet()) {
+                    actors.get(boardName).tell(new Runnable() {
+                        @Override
+                        public void run() {
+                            Whiteboard board = whiteboards.get(boardName);
+                            if (board != null) {
+                                board.compactIfNeeded(config.getCompactActions(), config.getCompactBytes(),
+                                        config.getCompactAgeMillis());
+                            }
+                        }
+                    });
+                }
+            }
+        }, COMPACT_INTERVAL_MILLIS, COMPACT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts a background thread that has every board on the heap checked
+     * once a second, by its actor, and spilled once nobody has been on it for
+     * as long as the config says
+     */
+    private void startEvictor() {
+        ScheduledExecutorService evictor = newDaemonScheduler("whiteboard-evictor");
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                final long now = System.currentTimeMillis();
+                for (final String boardName : whiteboards.keySet()) {
+                    actors.get(boardName).tell(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!whiteboards.containsKey(boardName)) {
+                                // already spilled
+                                return;
+                            }
+                            if (!whiteboardClients.get(boardName).isEmpty()) {
+                                idleSince.remove(boardName);
+                                return;
+                            }
+
+                            Long since = idleSince.get(boardName);
+                            if (since == null) {
+                                since = now;
+                                idleSince.put(boardName, since);
+                            }
+                            if (now - since >= config.getEvictIdleMillis()) {
+                                evict(boardName);
+                            }
+                        }
+                    });
+                }
+            }
+        }, COMPACT_INTERVAL_MILLIS, COMPACT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes a board to its file (see Whiteboard.writeTo), drops it from the
+     * heap and closes its stroke store; its name, ID, actor and subscribers
+     * stay. If it can't be written, it stays on the heap. Only the board's
+     * actor calls this.
+     * 
+     * @param boardName
+     *            name of whiteboard, on the heap
+     */
+    private void evict(String boardName) {
+        File file = spillFile(boardName);
+        file.getParentFile().mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            whiteboards.get(boardName).writeTo(out);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        file.deleteOnExit();
+
+        whiteboards.remove(boardName).close();
+        idleSince.remove(boardName);
+    }
+
+    /**
+     * Gets a board, reading it back in first if it was spilled (see evict).
+     * Only the board's actor calls this.
+     * 
+     * @param boardName
+     *            name of whiteboard
+     * @return the board, on the heap
+     * @throws IllegalStateException
+     *             if it was spilled and can't be read back
+     */
+    private Whiteboard board(String boardName) {
+        Whiteboard board = whiteboards.get(boardName);
+        if (board != null) {
+            return board;
+        }
+
+        StrokeStore actions = null;
+        try {
+            actions = newStrokeStore(boardName);
+            board = readSpilled(boardName, actions);
+        } catch (IOException e) {
+            if (actions != null) {
+                actions.close();
+            }
+            throw new IllegalStateException("can't read board " + boardName + " back", e);
+        }
+        whiteboards.put(boardName, board);
+        // it's written again if it's spilled again
+        spillFile(boardName).delete();
+        return board;
+    }
+
+    /**
+     * Reads a spilled board from its file
+     * 
+     * @param boardName
+     *            name of whiteboard, spilled
+     * @param actions
+     *            empty store to keep its actions in
+     * @return the board, as it was when it was spilled
+     * @throws IOException
+     *             if the file can't be read
+     */
+    private Whiteboard readSpilled(String boardName, StrokeStore actions) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                spillFile(boardName))))) {
+            return Whiteboard.readFrom(boardName, in, actions);
+        }
+    }
+
+    /**
+     * @param boardName
+     *            name of whiteboard
+     * @return the file the board is spilled to
+     */
+    private File spillFile(String boardName) {
+        try {
+            // board names can have anything in them but spaces
+            return new File(config.getEvictionDirectory(), URLEncoder.encode(boardName, "UTF-8") + ".board");
+        } catch (UnsupportedEncodingException e) {
+            // can't happen, every JVM has UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Gets back every board in the log, as it was when the last server using
+     * it stopped, with the IDs it had. Nothing else is going on yet, so this
+     * changes the boards straight away instead of through their actors.
+     * 
+     * @throws IOException
+     *             if the log can't be read
+     */
+    private void recover() throws IOException {
+        long start = System.currentTimeMillis();
+        // board ID -> board, of the boards in the log
+        final Map<Integer, Whiteboard> recovered = new HashMap<Integer, Whiteboard>();
+
+        log.recover(new WriteAheadLog.Replayer() {
+            @Override
+            public void create(int boardID, String name, int red, int green, int blue) throws IOException {
+                recovered.put(boardID, new Whiteboard(name, Arrays.asList(red, green, blue), newStrokeStore(name)));
+            }
+
+            @Override
+            public void draw(int boardID, int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue) {
+                recovered.get(boardID).addAction(x1, y1, x2, y2, stroke, red, green, blue);
+            }
+
+            @Override
+            public void background(int boardID, int red, int green, int blue) {
+                recovered.get(boardID).setBackgroundColor(red, green, blue);
+                recovered.get(boardID).clear();
+            }
+
+            @Override
+            public void clear(int boardID) {
+                recovered.get(boardID).clear();
+            }
+        });
+
+        for (Map.Entry<Integer, Whiteboard> entry : recovered.entrySet()) {
+            addWhiteboard(entry.getValue().getName(), entry.getKey(), entry.getValue(), new Subscribers());
+            // new boards don't get the ID of one we got back
+            if (entry.getKey() >= boardIDCounter.get()) {
+                boardIDCounter.set(entry.getKey() + 1);
+            }
+        }
+        System.err.println("recovered " + recovered.size() + " boards from " + config.getLogDirectory() + " in "
+                + (System.currentTimeMillis() - start) + "ms");
+
+        // what's still waiting to be written is, if we're stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "whiteboard-log-close"));
+    }
+
+    /**
+     * Starts a background thread that checks the log once a second, and
+     * writes a checkpoint of every board once enough has been logged since the
+     * last one (see WriteAheadLog.needsCheckpoint)
+     */
+    private void startCheckpointer() {
+        ScheduledExecutorService checkpointer = newDaemonScheduler("whiteboard-checkpoint");
+        checkpointer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (log.needsCheckpoint(config.getCheckpointActions())) {
+                    try {
+                        checkpoint();
+                    } catch (IOException | InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }, COMPACT_INTERVAL_MILLIS, COMPACT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes a checkpoint of every board. Each board is copied by its actor,
+     * between two of its changes, and written out by this thread while the
+     * board goes on, one board at a time.
+     * 
+     * @throws IOException
+     *             if the checkpoint can't be written
+     * @throws InterruptedException
+     *             if interrupted while waiting for a board
+     */
+    private void checkpoint() throws IOException, InterruptedException {
+        WriteAheadLog.Checkpoint checkpoint;
+        List<String> boardNames;
+        // boards made after this are all in the log after its start
+        synchronized (whiteboards) {
+            checkpoint = log.beginCheckpoint();
+            boardNames = new ArrayList<String>(boardIDs.keySet());
+        }
+
+        // a board's image, or why it couldn't be made
+        final BlockingQueue<Object> images = new LinkedBlockingQueue<Object>();
+        for (final String boardName : boardNames) {
+            actors.get(boardName).tell(new Runnable() {
+                @Override
+                public void run() {
+                    Whiteboard board = whiteboards.get(boardName);
+                    if (board == null) {
+                        // spilled, it's read back just for this and stays
+                        // spilled
+                        try {
+                            board = readSpilled(boardName, new StrokeLog());
+                        } catch (IOException e) {
+                            images.add(e);
+                            return;
+                        }
+                    }
+                    // every change to it so far is before this in the log
+                    WriteAheadLog.BoardImage image = new WriteAheadLog.BoardImage(boardIDs.get(boardName), boardName,
+                            log.position(), board.getBackgroundRGB());
+                    board.visitActions(image);
+                    images.add(image);
+                }
+            });
+            Object image = images.take();
+            if (image instanceof IOException) {
+                // leaving the board out would lose it, so this checkpoint is
+                // never committed
+                throw (IOException) image;
+            }
+            checkpoint.add((WriteAheadLog.BoardImage) image);
+        }
+        checkpoint.commit();
+    }
+
+    /**
+     * Starts a background thread that follows the primary: it asks to be its
+     * standby and makes every change the primary sends to our copy of its
+     * boards. Until the primary goes away, clients are sent there; then we
+     * take over, with every board as it was.
+     */
+    private void startFollowing() {
+        Thread follower = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // the primary cuts off a standby that falls too far behind,
+                // like any client, so we start over as long as it's up
+                while (follow()) {
+                    // it's still up, start over
+                }
+                System.err.println("primary " + primary + " is gone, taking over");
+                primary = null;
+            }
+        }, "whiteboard-standby");
+        // don't keep the server alive just for this
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    /**
+     * Follows the primary until it closes the connection. What it sends are
+     * requests ("CREATE", "REPLAY", "DRAW", "BG", "CLEAR"), handled like any
+     * client's, from a client that never hears back.
+     * 
+     * @return false if the primary couldn't be reached, true if it was and
+     *         then the connection closed
+     */
+    private boolean follow() {
+        int clientID = clientIDCounter.getAndIncrement();
+        followerID = clientID;
+        int colon = primary.lastIndexOf(':');
+        try (Socket socket = new Socket()) {
+            try {
+                socket.connect(new InetSocketAddress(primary.substring(0, colon),
+                        new Integer(primary.substring(colon + 1))), FOLLOW_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                return false;
+            }
+
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println("REPLICATE " + config.getNode());
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                handleRequest(line, clientID);
+            }
+
+        } catch (IOException e) {
+            // this is ok, the primary went away mid-change
+        }
+        return true;
+    }
+
+    /**
+     * Starts a background thread that prints how far behind every client is
+     * (the messages waiting on its queue), and how many slow clients were sent
+     * the board again or cut off, as often as the config says
+     */
+    private void startQueueReporter() {
+        ScheduledExecutorService reporter = newDaemonScheduler("whiteboard-queue-report");
+        reporter.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                StringBuilder report = new StringBuilder("queues:");
+                for (Map.Entry<Integer, ClientQueue> entry : queues.entrySet()) {
+                    String name = names.get(entry.getKey());
+                    report.append(" ").append(entry.getKey()).append(name == null ? "" : "/" + name).append("=")
+                            .append(entry.getValue().size());
+                }
+                report.append(" resyncs=").append(resyncs.get()).append(" disconnects=").append(disconnects.get());
+                System.err.println(report);
+            }
+        }, config.getQueueReportMillis(), config.getQueueReportMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Makes a scheduler with one background thread
+     * 
+     * @param name
+     *            name of the thread
+     * @return the scheduler
+     */
+    private static ScheduledExecutorService newDaemonScheduler(final String name) {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                // don't keep the server alive just for this
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Makes background threads for a pool
+     * 
+     * @param name
+     *            name of the threads, each gets a number after it
+     * @return factory for the pool's threads
+     */
+    private static ThreadFactory newDaemonThreads(final String name) {
+        final AtomicInteger count = new AtomicInteger(0);
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                // don't keep the server alive just for this
+                Thread thread = new Thread(r, name + "-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
     /**
      * Make a new Whiteboard, add it to the whiteboards list
      * 
@@ -82,19 +685,201 @@ public class WhiteboardServer {
      *            amount of green in bg (0-255)
      * @param blue
      *            amount of blue in bg (0-255)
-     * @return
+     * @throws IOException
+     *             if the board's storage can't be made
      */
-    private void createWhiteboard(String boardName, int red, int green, int blue) {
-        Whiteboard board = new Whiteboard(boardName, Arrays.asList(red, green, blue));
+    private void createWhiteboard(String boardName, int red, int green, int blue) throws IOException {
+        Whiteboard board = new Whiteboard(boardName, Arrays.asList(red, green, blue), newStrokeStore(boardName));
+        int boardID = boardIDCounter.getAndIncrement();
+        if (log != null) {
+            // before any change to it can be logged
+            log.create(boardID, boardName, red, green, blue);
+        }
+
+        // every standby gets the board before any change to it (callers hold
+        // the whiteboards' monitor, which standbys also need to sign up)
+        Subscribers followers = new Subscribers();
+        for (int id : standbys.keySet()) {
+            followers.add(id);
+        }
+        if (!followers.isEmpty()) {
+            putOnQueuesBut(-1, null, followers, new Message("CREATE " + boardName + " " + red + " " + green + " "
+                    + blue));
+        }
+        addWhiteboard(boardName, boardID, board, followers);
+    }
+
+    /**
+     * Add a Whiteboard to the whiteboards list, with everything else it needs
+     * 
+     * @param boardName
+     *            name of whiteboard, must be unique
+     * @param boardID
+     *            its ID, must be unique
+     * @param board
+     *            the whiteboard
+     * @param followers
+     *            the standbys that have it
+     */
+    private void addWhiteboard(String boardName, int boardID, Whiteboard board, Subscribers followers) {
         synchronized (board) {
+            boardStandbys.put(boardName, followers);
+            // anyone who can find the board can find its actor
+            actors.put(boardName, new BoardActor(boardThreads));
             whiteboards.put(boardName, board);
-            whiteboardClients.put(boardName, new ArrayList<Integer>());
+            whiteboardClients.put(boardName, new Subscribers());
+            if (config.isBatching()) {
+                batches.put(boardName, new Batch());
+            }
+            // and everything else, once it's listed
+            boardIDs.put(boardName, boardID);
+            boardNames.put(boardID, boardName);
+        }
+    }
+
+    /**
+     * Makes somewhere for a new board to keep its actions: on the heap, or in
+     * a mapped file if the config has a storage directory
+     * 
+     * @param boardName
+     *            name of the new board
+     * @return an empty store
+     * @throws IOException
+     *             if the board's file can't be made
+     */
+    private StrokeStore newStrokeStore(String boardName) throws IOException {
+        File directory = config.getStorageDirectory();
+        if (directory == null) {
+            return new StrokeLog();
+        }
+
+        // board names can have anything in them but spaces
+        directory.mkdirs();
+        return new MappedStrokeLog(new File(directory, URLEncoder.encode(boardName, "UTF-8") + ".strokes"));
+    }
+
+    /**
+     * Select a whiteboard for the client and tell others that there's a new
+     * user. The board's actor does this between the board's broadcasts, so
+     * that someone who joins at the same time either sees this user in their
+     * list or hears about them, never both. Everything the client is sent
+     * for joining goes on its queue as its reply (see Message.asReply), a
+     * STREAM client's board a chunk at a time as it's made (see QueueSink).
+     * 
+     * @param boardName
+     *            name of whiteboard
+     * @param userName
+     *            name of user, can't be empty
+     * @param clientID
+     *            id of client
+     * @param features
+     *            protocol features the client asked for (ie. "RASTER")
+     * @param clientQueue
+     *            the client's queue
+     */
+    private void join(String boardName, String userName, int clientID, Set<String> features,
+            ClientQueue clientQueue) {
+        // draws the board already has go to the others first, the new user
+        // gets them with the board
+        flushBatch(boardName);
+        // it's not idle anymore
+        idleSince.remove(boardName);
+        if (features.contains("STREAM")) {
+            streamWhiteboard(boardName, userName, clientID, features, clientQueue);
+        } else {
+            // ours is never full, so this doesn't block
+            clientQueue.add(new Message(selectWhiteboard(boardName, userName, clientID, features)).asReply());
+        }
+        joinState(boardName, features, clientQueue);
+        if (features.contains("BINARY")) {
+            // draws can be sent as frames from now on
+            binaryClients.add(clientID);
+        }
+        if (features.contains("ARTSY")) {
+            // the meter comes by itself from now on, only when it changes
+            artsyClients.add(clientID);
+        }
+        clientFeatures.put(clientID, features);
+        putOnAllQueuesBut(clientID, boardName, new Message("NEWUSER " + userName));
+    }
+
+    /**
+     * Puts what a client that joins a board is told after the board on its
+     * queue, as part of its reply, for the features it asked for: the board's
+     * ID ("BINARY" BOARD_ID), the artsy meter ("ARTSY" ARTSY_METER), and
+     * somewhere to go if we go away ("STANDBY" HOST PORT). Only the board's
+     * actor calls this.
+     * 
+     * @param boardName
+     *            name of whiteboard
+     * @param features
+     *            protocol features the client asked for (ie. "BINARY")
+     * @param queue
+     *            the client's queue
+     */
+    private void joinState(String boardName, Set<String> features, ClientQueue queue) {
+        // ours is never full, so these don't block
+        if (features.contains("BINARY")) {
+            queue.add(new Message("BINARY " + boardIDs.get(boardName)).asReply());
+        }
+        if (features.contains("ARTSY")) {
+            queue.add(new Message("ARTSY " + board(boardName).calculateArtsy()).asReply());
+        }
+        for (String standby : standbys.values()) {
+            queue.add(new Message(standby).asReply());
+        }
+    }
+
+    /**
+     * Sends a standby the board as it is now ("CREATE", then "REPLAY" chunks),
+     * signs it up for every change to it from now on, and tells everyone on
+     * the board they can go to it. Only the board's actor calls this.
+     * 
+     * @param boardName
+     *            name of whiteboard
+     * @param clientID
+     *            id of the standby
+     * @param queue
+     *            the standby's queue
+     */
+    private void catchUp(String boardName, int clientID, ClientQueue queue) {
+        Whiteboard board = board(boardName);
+
+        // ours is never full, so this doesn't block
+        queue.add(new Message("CREATE " + boardName + " " + board.getBackgroundColorString()));
+        board.streamActions(STREAM_CHUNK_SEGMENTS, new QueueSink(queue, "REPLAY " + boardName + " ", false, true));
+        boardStandbys.get(boardName).add(clientID);
+        String standby = standbys.get(clientID);
+        if (standby == null) {
+            // it left while we were at it
+            boardStandbys.get(boardName).remove(clientID);
+            return;
+        }
+
+        putOnAllQueuesBut(-1, boardName, new Message(standby));
+    }
+
+    /**
+     * Sends a change to a board to the standbys that have it, so their copy
+     * stays the same as ours. Only the board's actor calls this, so they get
+     * the changes in the order they happened.
+     * 
+     * @param boardName
+     *            name of whiteboard
+     * @param change
+     *            the change, as a request ("DRAW" WB_NAME X1 Y1..., etc)
+     */
+    private void replicate(String boardName, String change) {
+        Subscribers followers = boardStandbys.get(boardName);
+        if (!followers.isEmpty()) {
+            putOnQueuesBut(-1, null, followers, new Message(change));
         }
     }
 
     /**
      * User has selected this Whiteboard, so add them to the list and send them
-     * info. Also must have already chosen user name, so set that too.
+     * info. Also must have already chosen user name, so set that too. Only the
+     * board's actor calls this.
      * 
      * @param boardName
      *            name of whiteboard
@@ -102,12 +887,17 @@ public class WhiteboardServer {
      *            name of user, can't be empty
      * @param clientID
      *            id of client
+     * @param features
+     *            protocol features the client asked for (ie. "RASTER")
      * @return BG_RED BG_GREEN BG_BLUE ARTSY_METER "USERS" list of users
-     *         "ACTIONS " list of pixels and their colors
+     *         "ACTIONS " list of pixels and their colors, or with "RASTER",
+     *         BG_RED BG_GREEN BG_BLUE ARTSY_METER "USERS" list of users
+     *         "SNAPSHOT" PNG_BASE64 "ACTIONS " list of pixels drawn after the
+     *         snapshot
      */
-    private String selectWhiteboard(String boardName, String userName, int clientID) {
+    private String selectWhiteboard(String boardName, String userName, int clientID, Set<String> features) {
         names.put(clientID, userName);
-        Whiteboard board = whiteboards.get(boardName);
+        Whiteboard board = board(boardName);
         int artsy;
         String bg;
         String users;
@@ -115,16 +905,127 @@ public class WhiteboardServer {
 
         // subscribe the client to whiteboard events
         whiteboardClients.get(boardName).add(clientID);
-        synchronized (board) {
-            artsy = board.calculateArtsy();
-            bg = board.getBackgroundColorString();
-            users = listUsers(boardName);
-            actions = createListOfActions(boardName);
+        artsy = board.calculateArtsy();
+        bg = board.getBackgroundColorString();
+        users = listUsers(boardName);
+        if (features.contains("RASTER")) {
+            // already has "ACTIONS" in it
+            return bg + " " + artsy + " USERS " + users + " " + board.createStringOfSnapshot();
         }
+        actions = createListOfActions(boardName);
 
         return bg + " " + artsy + " USERS " + users + " ACTIONS " + actions;
     }
 
+    /**
+     * Like selectWhiteboard, but for clients that asked for "STREAM": instead
+     * of one line with everything in it, the board is sent to the client as a
+     * "SNAPSHOT_BEGIN" line, "SNAPSHOT_CHUNK" lines of bounded size, and a
+     * "SNAPSHOT_END" line, straight from the board's history. Only the board's
+     * actor calls this.
+     * 
+     * @param boardName
+     *            name of whiteboard
+     * @param userName
+     *            name of user, can't be empty
+     * @param clientID
+     *            id of client
+     * @param features
+     *            protocol features the client asked for (ie. "RASTER")
+     * @param queue
+     *            the client's queue
+     */
+    private void streamWhiteboard(String boardName, String userName, int clientID, Set<String> features,
+            ClientQueue queue) {
+        names.put(clientID, userName);
+
+        // subscribe the client to whiteboard events
+        whiteboardClients.get(boardName).add(clientID);
+        streamBoard(boardName, features.contains("RASTER"), queue, true);
+    }
+
+    /**
+     * Puts the board as it is now, the way STREAM clients get it, on a
+     * client's queue as part of its reply, a chunk at a time as it's made
+     * (see QueueSink). Only the board's actor calls this.
+     * 
+     * @param boardName
+     *            name of whiteboard
+     * @param raster
+     *            whether to start with a snapshot ("RASTER")
+     * @param queue
+     *            the client's queue, where the "SNAPSHOT_BEGIN",
+     *            "SNAPSHOT_CHUNK" and "SNAPSHOT_END" messages go
+     * @param wait
+     *            whether to wait for the client to take the chunks, false
+     *            if it's already known to be behind
+     */
+    private void streamBoard(String boardName, boolean raster, ClientQueue queue, boolean wait) {
+        Whiteboard board = board(boardName);
+        Whiteboard.ChunkSink sink = new QueueSink(queue, "SNAPSHOT_CHUNK ", true, wait);
+
+        // ours is never full, so these don't block
+        queue.add(new Message("SNAPSHOT_BEGIN " + board.getBackgroundColorString() + " "
+                + board.calculateArtsy() + " USERS " + listUsers(boardName)).asReply());
+        if (raster) {
+            board.streamSnapshot(STREAM_CHUNK_CHARS, STREAM_CHUNK_SEGMENTS, sink);
+        } else {
+            board.streamActions(STREAM_CHUNK_SEGMENTS, sink);
+        }
+        queue.add(new Message("SNAPSHOT_END").asReply());
+    }
+
+    /**
+     * Puts the chunks of a board on a client's queue as they're made, each as
+     * a message that starts with a prefix. Once a few messages are waiting,
+     * the next chunk waits for the client to take one (see
+     * ClientQueue.awaitBelow), so the board is never on the queue all at once,
+     * however big it is. A client that takes nothing for a while gets the rest
+     * without waiting, so it can't hold the board up for long, and one that's
+     * already behind isn't waited for at all.
+     */
+    private static class QueueSink implements Whiteboard.ChunkSink {
+        private final ClientQueue queue;
+        private final String prefix;
+        private final boolean reply;
+        // false once the client has kept us waiting too long
+        private boolean waiting;
+
+        /**
+         * @param queue
+         *            the client's queue
+         * @param prefix
+         *            what goes before each chunk, with a space
+         * @param reply
+         *            whether the chunks are part of the client's reply to
+         *            joining a board (see Message.asReply)
+         * @param wait
+         *            whether to wait for the client to take them
+         */
+        private QueueSink(ClientQueue queue, String prefix, boolean reply, boolean wait) {
+            this.queue = queue;
+            this.prefix = prefix;
+            this.reply = reply;
+            this.waiting = wait;
+        }
+
+        @Override
+        public void chunk(String chunk) {
+            if (waiting) {
+                try {
+                    waiting = queue.awaitBelow(STREAM_WINDOW, STREAM_WAIT_MILLIS);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    waiting = false;
+                }
+            }
+
+            // ours is never full, so this doesn't block
+            Message message = new Message(prefix + chunk);
+            queue.add(reply ? message.asReply() : message);
+        }
+    }
+
     /**
      * Converts the board's actions to a string (X1 Y1 X2 Y2 STROKE R G B)
      * separated by spaces
@@ -135,28 +1036,31 @@ public class WhiteboardServer {
      * @return string of actions of the board, separated by spaces
      */
     private String createListOfActions(String boardName) {
-        Whiteboard board = whiteboards.get(boardName);
+        Whiteboard board = board(boardName);
         return board.createStringOfActions();
     }
 
     /**
-     * Lists all of the whiteboard names
+     * Lists all of the whiteboard names (on this node, if clustered)
      * 
      * @return "LIST" and a string of all whiteboard names separated by spaces
+     * @throws IOException
+     *             if the default board's storage can't be made
      */
-    private String listWhiteboards() {
+    private String listWhiteboards() throws IOException {
         StringBuilder boards = new StringBuilder();
 
-        // iterating is not safe
+        // the default board is only made once
         synchronized (whiteboards) {
-            // make a default board
-            if (whiteboards.isEmpty()) {
+            // make a default board, if it's ours to make (a standby gets
+            // the primary's)
+            if (boardIDs.isEmpty() && (cluster == null || cluster.isLocal("Default")) && primary == null) {
                 // bg is all white
                 createWhiteboard("Default", 255, 255, 255);
             }
 
-            // get all whiteboard names
-            for (String w : whiteboards.keySet()) {
+            // get all whiteboard names, spilled or not
+            for (String w : boardIDs.keySet()) {
                 boards.append(w + " ");
             }
         }
@@ -173,14 +1077,10 @@ public class WhiteboardServer {
      */
     private String listUsers(String boardName) {
         StringBuilder users = new StringBuilder();
-        List<Integer> clients = whiteboardClients.get(boardName);
 
-        // iterating is not safe
-        synchronized (clients) {
-            // get all of the names associated with this whiteboard
-            for (Integer id : clients) {
-                users.append(names.get(id) + " ");
-            }
+        // get all of the names associated with this whiteboard
+        for (Integer id : whiteboardClients.get(boardName).inJoinOrder()) {
+            users.append(names.get(id) + " ");
         }
         return users.toString().trim();
     }
@@ -198,10 +1098,8 @@ public class WhiteboardServer {
      *            amount of blue (0-255)
      */
     private void changeBackgroundColor(String boardName, int red, int green, int blue) {
-        Whiteboard board = whiteboards.get(boardName);
-        synchronized (board) {
-            board.setBackgroundColor(red, green, blue);
-        }
+        Whiteboard board = board(boardName);
+        board.setBackgroundColor(red, green, blue);
     }
 
     /**
@@ -211,117 +1109,323 @@ public class WhiteboardServer {
      *            name of board in question
      */
     private void clearBoard(String boardName) {
-        Whiteboard board = whiteboards.get(boardName);
-        synchronized (board) {
-            board.clear();
+        Whiteboard board = board(boardName);
+        board.clear();
+    }
+
+    /**
+     * Saves the drawing action to the whiteboard and returns the message to
+     * send to all other clients (with the artsy meter, or for "ARTSY"
+     * clients, the artsy meter first if it changed)
+     * 
+     * @param boardName
+     *            name of board in question
+     * @param x1
+     *            starting x
+     * @param y1
+     *            starting y
+     * @param x2
+     *            ending x
+     * @param y2
+     *            ending y
+     * @param stroke
+     *            stroke size
+     * @param red
+     *            amount of red (0-255)
+     * @param green
+     *            amount of green (0-255)
+     * @param blue
+     *            amount of blue (0-255)
+     * @return "DRAW" ARTSY_METER X1 Y1 X2 Y2 STROKE COLOR_R COLOR_G COLOR_B,
+     *         with its binary frames (see Message.draw)
+     */
+    private Message draw(String boardName, int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue) {
+        Whiteboard board = board(boardName);
+
+        // nothing else happens to the board in between, we're its actor
+        int before = board.calculateArtsy();
+        board.addAction(x1, y1, x2, y2, stroke, red, green, blue);
+        int artsy = board.calculateArtsy();
+        if (log != null) {
+            log.draw(boardIDs.get(boardName), x1, y1, x2, y2, stroke, red, green, blue);
+        }
+        if (!boardStandbys.get(boardName).isEmpty()) {
+            replicate(boardName, "DRAW " + boardName + " " + x1 + " " + y1 + " " + x2 + " " + y2 + " " + stroke + " "
+                    + red + " " + green + " " + blue);
+        }
+
+        return Message.draw(artsy, artsy != before, x1, y1, x2, y2, stroke, red, green, blue);
+    }
+
+    /**
+     * Fixes duplicate names by appending a (1) at the end, and then, if there
+     * is already a (1), change it to (2), and so on. What counts as a (1) at
+     * the end is up to HashRing.baseName, so a duplicate is always on the same
+     * node of a cluster as the board it duplicates.
+     * 
+     * @param name
+     *            name to fix
+     * @return fixed name (with a (1) or (2), etc) at end
+     */
+    private String fixDuplicate(String name) {
+        if (boardIDs.containsKey(name)) {
+            // have we fixed this before (is there a number in parens at the
+            // end)
+            String base = HashRing.baseName(name);
+            if (!base.equals(name)) {
+                // increment!
+                int nextNum = new Integer(name.substring(base.length() + 1, name.length() - 1)) + 1;
+
+                // recurse because we may already have "name(1)"
+                // much recursive. such 006. wow.
+                return fixDuplicate(base + "(" + nextNum + ")");
+            }
+            // nope, we haven't fixed this before, just add a (1)
+            return fixDuplicate(name + "(1)");
+        }
+        return name;
+    }
+
+    /**
+     * Put the message on all of the queues of clients that are in the
+     * particular whiteboard except the specified client. If we are sending to
+     * Artists, leave boardName null. Messages about a board are only sent by
+     * its actor.
+     * 
+     * @param clientID
+     *            id of client not to receive message
+     * @param boardName
+     *            name of whiteboard in question, or null if we are looking for
+     *            Artists
+     * @param message
+     *            message to put on the queues
+     */
+    private void putOnAllQueuesBut(int clientID, String boardName, Message message) {
+        if (boardName != null) {
+            // we are looking for Canvases (the board's actor sends one
+            // broadcast at a time, so everyone hears them in the same order)
+
+            // draws still waiting in a batch happened before this
+            flushBatch(boardName);
+            putOnQueuesBut(clientID, boardName, whiteboardClients.get(boardName), message);
+            return;
+        }
+
+        // we are looking for Artists, one broadcast at a time, so everyone
+        // hears them in the same order (joining and leaving don't wait for
+        // this)
+        synchronized (artistClients) {
+            putOnQueuesBut(clientID, null, artistClients, message);
+        }
+    }
+
+    /**
+     * Put the message on the queues of the clients except the specified
+     * client. Clients that are too slow to take it are dealt with the way the
+     * config says (see deliver), and the ones that get cut off are taken off
+     * the board. Must be the board's actor, or hold the Artists' monitor.
+     * 
+     * @param clientID
+     *            id of client not to receive message
+     * @param boardName
+     *            name of whiteboard in question, or null if we are looking for
+     *            Artists
+     * @param clients
+     *            ids of clients to receive message
+     * @param message
+     *            message to put on the queues
+     */
+    private void putOnQueuesBut(int clientID, String boardName, Subscribers clients, Message message) {
+        // client ID -> the user name it had
+        Map<Integer, String> cutOff = null;
+        for (int id : clients) {
+            if (clientID == id) {
+                continue;
+            }
+            String userName = deliver(id, boardName, message);
+            if (userName != null) {
+                if (cutOff == null) {
+                    cutOff = new HashMap<Integer, String>();
+                }
+                cutOff.put(id, userName);
+            }
         }
+
+        if (cutOff != null) {
+            // they're gone, like they said BYE
+            clients.removeAll(cutOff.keySet());
+            if (boardName != null) {
+                for (String userName : cutOff.values()) {
+                    putOnQueuesBut(-1, boardName, clients, new Message("BYEUSER " + userName));
+                }
+            }
+        }
+    }
+
+    /**
+     * Put the message on the client's queue. If the queue is at the config's
+     * limit (not counting the client's reply to joining a board, see
+     * ClientQueue.backlog), the client is slow, and gets handled according to
+     * the config's policy: we wait for it to catch up (BLOCK), send it the
+     * board as it is now instead of everything that's waiting (COALESCE), or
+     * cut it off.
+     * 
+     * @param clientID
+     *            id of client to receive message
+     * @param boardName
+     *            name of whiteboard the message is about, or null if it's for
+     *            Artists
+     * @param message
+     *            message to put on the queue
+     * @return null if the client got the message (or is already gone),
+     *         otherwise the user name the client had when it was cut off (""
+     *         if it wasn't on a board)
+     */
+    private String deliver(int clientID, String boardName, Message message) {
+        ClientQueue queue = queues.get(clientID);
+        if (queue == null) {
+            // already gone, it just hasn't left the board yet
+            return null;
+        }
+
+        int limit = config.getQueueLimit();
+        if (limit == 0 || queue.backlog(limit) < limit) {
+            // ours is never full, so this doesn't block
+            queue.add(message);
+            return null;
+        }
+
+        switch (config.getSlowClientPolicy()) {
+        case BLOCK: {
+            // a loop thread would be waiting on itself (boards' actors aren't
+            // loop threads, but whoever tells Artists about a board may be);
+            // an actor holds its board thread while it waits, and is woken
+            // as soon as the client takes something (see ClientQueue)
+            long wait = boardName == null && config.getTransport() == Transport.SELECTOR ? 0
+                    : config.getBlockMillis();
+            try {
+                if (queue.awaitBacklogBelow(limit, wait)) {
+                    queue.add(message);
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            break;
+        }
+
+        case COALESCE: {
+            Set<String> features = clientFeatures.get(clientID);
+            if (boardName != null && features != null && features.contains("STREAM")) {
+                // the board has everything that's waiting, and this message;
+                // it goes on the queue as it's made, but isn't held up by a
+                // client that's behind (the next resync drops it too)
+                queue.clear();
+                streamBoard(boardName, features.contains("RASTER"), queue, false);
+                // and what it's told after the board on join, which may have
+                // been waiting too
+                joinState(boardName, features, queue);
+                resyncs.incrementAndGet();
+                return null;
+            }
+            // anyone else is cut off, like with DISCONNECT: without STREAM,
+            // the board only ever comes as the reply to SELECT, and Artists
+            // aren't on a board to be sent
+            break;
+        }
+
+        case DISCONNECT:
+            break;
+        }
+
+        return disconnect(clientID, queue);
     }
 
     /**
-     * Saves the drawing action to the whiteboard and returns the message to
-     * send to all other clients (with the artsy meter)
+     * Cuts a client off: drops everything waiting for it, closes its
+     * connection and tells its output handler to finish up
      * 
-     * @param boardName
-     *            name of board in question
-     * @param x1
-     *            starting x
-     * @param y1
-     *            starting y
-     * @param x2
-     *            ending x
-     * @param y2
-     *            ending y
-     * @param stroke
-     *            stroke size
-     * @param red
-     *            amount of red (0-255)
-     * @param green
-     *            amount of green (0-255)
-     * @param blue
-     *            amount of blue (0-255)
-     * @return "DRAW" ARTSY_METER X1 Y1 X2 Y2 STROKE COLOR_R COLOR_G COLOR_B
+     * @param clientID
+     *            id of client
+     * @param queue
+     *            the client's queue
+     * @return the user name the client had ("" if it wasn't on a board)
      */
-    private String draw(String boardName, int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue) {
-        Whiteboard board = whiteboards.get(boardName);
-        int artsy;
+    private String disconnect(int clientID, BlockingQueue<Message> queue) {
+        // its output handler may forget it as soon as it has its BYE
+        String userName = names.get(clientID);
+        disconnects.incrementAndGet();
+        queue.clear();
+        queue.add(Message.BYE); // poison pill
 
-        synchronized (board) {
-            board.addAction(x1, y1, x2, y2, stroke, red, green, blue);
-            artsy = board.calculateArtsy();
+        Closeable connection = connections.get(clientID);
+        if (connection != null) {
+            try {
+                // a write stuck on the client fails, instead of waiting forever
+                connection.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
-
-        return "DRAW " + artsy + " " + x1 + " " + y1 + " " + x2 + " " + y2 + " " + stroke + " " + red + " " + green
-                + " " + blue;
+        return userName == null ? "" : userName;
     }
 
     /**
-     * Fixes duplicate names by appending a (1) at the end, and then, if there
-     * is already a (1), change it to (2), and so on.
+     * Send a draw action to everyone on the board. If the config says to batch
+     * broadcasts, the draw waits for others (see ServerConfig.setBatching), so
+     * each client gets one message, written and flushed at once, for the whole
+     * batch. Only the board's actor calls this.
      * 
-     * @param name
-     *            name to fix
-     * @return fixed name (with a (1) or (2), etc) at end
+     * @param boardName
+     *            name of whiteboard drawn on
+     * @param draw
+     *            the "DRAW" message
      */
-    private String fixDuplicate(String name) {
-        if (whiteboards.containsKey(name)) {
-            // does this even have parens (have we fixed this before)
-            if (name.contains("(") && name.contains(")")) {
-                // make sure we get the last ones
-                int start = name.lastIndexOf('(');
-                int end = name.lastIndexOf(')');
-
-                // check to make sure the thing in parens is a number (so, we've
-                // already made a duplicate copy)
-                String possibleNum = name.substring(start + 1, end);
-                if (possibleNum.matches("[0-9]+")) {
-                    // increment!
-                    int nextNum = new Integer(possibleNum) + 1;
+    private void broadcastDraw(final String boardName, Message draw) {
+        Batch batch = batches.get(boardName);
+        if (batch == null) {
+            putOnAllQueuesBut(-1, boardName, draw); // put on all queues
+            return;
+        }
 
-                    // recurse because we may already have "name(1)"
-                    // much recursive. such 006. wow.
-                    return fixDuplicate(name.substring(0, start) + "(" + nextNum + ")");
+        int size = batch.add(draw);
+        if (size >= config.getBatchMessages()) {
+            // full, don't wait for the window
+            flushBatch(boardName);
+        } else if (size == 1) {
+            // first in the batch, so it starts the window
+            broadcaster.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // the actor sends it, after whatever it's doing now
+                    actors.get(boardName).tell(new Runnable() {
+                        @Override
+                        public void run() {
+                            flushBatch(boardName);
+                        }
+                    });
                 }
-            }
-            // nope, we haven't fixed this before, just add a (1)
-            return fixDuplicate(name + "(1)");
+            }, config.getBatchMillis(), TimeUnit.MILLISECONDS);
         }
-        return name;
     }
 
     /**
-     * Put the message on all of the queues of clients that are in the
-     * particular whiteboard except the specified client. If we are sending to
-     * Artists, leave boardName null.
+     * Send whatever draws the board has waiting in its batch, if any, to
+     * everyone on the board. Only the board's actor calls this, so batches go
+     * out in order.
      * 
-     * @param clientID
-     *            id of client not to receive message
      * @param boardName
-     *            name of whiteboard in question, or null if we are looking for
-     *            Artists
-     * @param message
-     *            message to put on the queues
+     *            name of whiteboard
      */
-    private void putOnAllQueuesBut(int clientID, String boardName, String message) {
-        List<Integer> clients;
-        if (boardName != null) {
-            // we are looking for Canvases
-            clients = whiteboardClients.get(boardName);
-        } else {
-            // we are looking for Artists
-            clients = artistClients;
+    private void flushBatch(String boardName) {
+        Batch batch = batches.get(boardName);
+        if (batch == null) {
+            return;
         }
 
-        // iterating is not safe
-        synchronized (clients) {
-            for (int id : clients) {
-                if (clientID != id) {
-                    try {
-                        queues.get(id).put(message);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
+        Message message = batch.take();
+        if (message != null) {
+            putOnQueuesBut(-1, boardName, whiteboardClients.get(boardName), message);
         }
     }
 
@@ -334,25 +1438,32 @@ public class WhiteboardServer {
      *             individual clients do *not* terminate serve())
      */
     private void serve() throws IOException {
+        if (config.getTransport() == Transport.SELECTOR) {
+            serveSelector();
+            return;
+        }
+
+        // null means a new platform thread for every handler
+        ExecutorService handlers = config.useVirtualThreads() ? newVirtualThreadExecutor() : null;
+
         while (true) {
             // block until a client connects
             final Socket socket = serverSocket.accept();
             final int clientID = clientIDCounter.getAndIncrement();
-            queues.put(clientID, new LinkedBlockingQueue<String>());
+            queues.put(clientID, new ClientQueue());
+            connections.put(clientID, socket);
 
-            // start a new thread for input
-            Thread inputThread = new Thread(new Runnable() {
+            // handles input
+            Runnable input = new Runnable() {
                 @Override
                 public void run() {
-                    // outputThread closes this socket
+                    // the output handler closes this socket
                     handleInput(socket, clientID);
                 }
-            });
+            };
 
-            inputThread.start();
-
-            // start a new thread for output
-            Thread outputThread = new Thread(new Runnable() {
+            // handles output
+            Runnable output = new Runnable() {
                 @Override
                 public void run() {
                     handleOutput(socket, clientID);
@@ -364,9 +1475,72 @@ public class WhiteboardServer {
                         e.printStackTrace();
                     }
                 }
-            });
+            };
+
+            // start a thread for each
+            if (handlers == null) {
+                new Thread(input).start();
+                new Thread(output).start();
+            } else {
+                handlers.execute(input);
+                handlers.execute(output);
+            }
+        }
+    }
+
+    /**
+     * Makes the executor that runs every client's handlers on its own virtual
+     * thread. This is looked up reflectively so the server still builds and
+     * runs on runtimes older than Java 21, where we settle for a cached pool
+     * of platform threads.
+     * 
+     * @return executor that starts a new (virtual, if possible) thread per
+     *         task
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+
+        } catch (ReflectiveOperationException e) {
+            System.err.println("virtual threads need Java 21, using platform threads instead");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Run the server with the SELECTOR transport: this thread only accepts, and
+     * every client is handed to one of a fixed number of I/O loops. Never
+     * returns unless an exception is thrown.
+     * 
+     * @throws IOException
+     *             if the main server socket is broken
+     */
+    private void serveSelector() throws IOException {
+        SelectorLoop[] loops = new SelectorLoop[config.getIOLoops()];
+        for (int i = 0; i < loops.length; ++i) {
+            loops[i] = new SelectorLoop(this);
+            new Thread(loops[i], "whiteboard-io-" + i).start();
+        }
+
+        while (true) {
+            // block until a client connects
+            SocketChannel channel = serverSocket.getChannel().accept();
+            int clientID = clientIDCounter.getAndIncrement();
+            SelectorLoop loop = loops[clientID % loops.length];
 
-            outputThread.start();
+            // the queue has to exist before the loop reads any requests
+            SelectorLoop.ChannelQueue queue = loop.newQueue(clientID);
+            queues.put(clientID, queue);
+            connections.put(clientID, channel);
+
+            try {
+                loop.register(channel, queue);
+            } catch (IOException e) {
+                e.printStackTrace();
+                queues.remove(clientID);
+                connections.remove(clientID);
+                channel.close();
+            }
         }
     }
 
@@ -380,16 +1554,38 @@ public class WhiteboardServer {
      */
     private void handleInput(Socket socket, int clientID) {
         // try with resources!
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-            for (String line = in.readLine(); line != null; line = in.readLine()) {
-                handleRequest(line, clientID);
+        try (InputStream stream = socket.getInputStream()) {
+            // lines and binary frames can both show up
+            FrameReader in = new FrameReader(stream);
+            for (int type = in.next(); type != FrameReader.END; type = in.next()) {
+                if (type == FrameReader.LINE) {
+                    handleRequest(in.line(), clientID);
+                } else {
+                    handleFrame(type, in.payload(), in.length(), clientID);
+                }
             }
 
-        } catch (SocketException e) {
+        } catch (SocketException | ClosedChannelException e) {
             // this is ok, the other thread closed the socket
         } catch (IOException e) {
             e.printStackTrace();
         }
+        inputEnded(clientID);
+    }
+
+    /**
+     * Lets go of a standby whose connection ended without a BYE (it crashed,
+     * or the network went away), which would otherwise be sent every change,
+     * and told to clients, from now on. Other clients say BYE before they go.
+     * 
+     * @param clientID
+     *            id of client that won't send anything more
+     */
+    void inputEnded(int clientID) {
+        BlockingQueue<Message> queue = queues.get(clientID);
+        if (queue != null && standbys.containsKey(clientID)) {
+            queue.add(Message.BYE); // poison pill
+        }
     }
 
     /**
@@ -402,43 +1598,237 @@ public class WhiteboardServer {
      *            id of client
      */
     private void handleOutput(Socket socket, int clientID) {
-        // try with resources!
-        try (PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            String response;
-            while (!(response = queues.get(clientID).take()).equals("BYE")) {
-                // take the latest output, deliver it
-                if (!response.isEmpty()) {
-                    out.println(response);
+        try {
+            // the socket is closed once we return
+            OutputStream out = null;
+            try {
+                out = new BufferedOutputStream(socket.getOutputStream());
+            } catch (SocketException e) {
+                // this is ok, the client said its piece and left before we
+                // got here (ie. another node telling us about a board)
+            }
+            BlockingQueue<Message> queue = queues.get(clientID);
+            // once the client is gone, everything is dropped until its BYE
+            boolean connected = out != null;
+
+            Message response;
+            while ((response = queue.take()) != Message.BYE) {
+                if (!connected) {
+                    continue;
+                }
+
+                try {
+                    // take the latest output, deliver it
+                    if (!response.isEmpty()) {
+                        out.write(response.encode(isBinary(clientID), getsArtsyEvents(clientID)));
+                    }
+                    // send it once there's nothing else to send with it
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                } catch (SocketException | ClosedChannelException e) {
+                    // this is ok, the client closed the socket
+                    connected = false;
+                }
+            }
+            if (connected) {
+                try {
+                    out.flush();
+                } catch (SocketException | ClosedChannelException e) {
+                    // this is ok, the client closed the socket (or was cut off)
                 }
             }
 
             // remove the queue when we're done
-            if (artistClients.contains(clientID)) { // remove if artist
-                artistClients.remove(artistClients.indexOf(clientID));
-            } else { // remove if canvas
-                names.remove(clientID);
-            }
-            queues.remove(clientID);
+            removeClient(clientID);
 
         } catch (IOException | InterruptedException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Forgets about a client once everything has been sent to it
+     * 
+     * @param clientID
+     *            id of client that is leaving
+     */
+    void removeClient(int clientID) {
+        if (!artistClients.remove(clientID)) { // remove if artist
+            // remove if canvas
+            names.remove(clientID);
+        }
+        if (standbys.remove(clientID) != null) { // remove if standby
+            for (Subscribers followers : boardStandbys.values()) {
+                followers.remove(clientID);
+            }
+        }
+        binaryClients.remove(clientID);
+        artsyClients.remove(clientID);
+        clientFeatures.remove(clientID);
+        connections.remove(clientID);
+        queues.remove(clientID);
+    }
+
+    /**
+     * @param clientID
+     *            id of client
+     * @return true if the client asked for binary frames
+     */
+    boolean isBinary(int clientID) {
+        return binaryClients.contains(clientID);
+    }
+
+    /**
+     * @param clientID
+     *            id of client
+     * @return true if the client asked for the artsy meter by itself
+     */
+    boolean getsArtsyEvents(int clientID) {
+        return artsyClients.contains(clientID);
+    }
+
+    /**
+     * Respond to a binary frame from the client (see Frames), the same way
+     * handleRequest responds to the line it stands for. The only frames are
+     * draw actions (DRAW or DRAW_NO_COLOR, with the board ID as the header).
+     * 
+     * @param type
+     *            type of the frame
+     * @param payload
+     *            holds the frame's payload
+     * @param length
+     *            length of the payload
+     * @param clientID
+     *            id of client sending the frame
+     */
+    void handleFrame(int type, byte[] payload, int length, int clientID) {
+        final int[] values = new int[9];
+        // throws on anything that isn't a draw action, muy bad
+        Frames.decodeDraw(type, payload, length, values);
+
+        final String boardName = boardNames.get(values[0]);
+        if (boardName == null) {
+            throw new UnsupportedOperationException("no board " + values[0]);
+        }
+
+        try {
+            if (redirectToPrimary(clientID)) {
+                // only the primary's changes go on our copy
+                return;
+            }
+            tellFor(clientID, boardName, new Runnable() {
+                @Override
+                public void run() {
+                    Message draw = draw(boardName, values[1], values[2], values[3], values[4], values[5],
+                            values[6], values[7], values[8]);
+                    broadcastDraw(boardName, draw);
+                }
+            });
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends a client to our primary ("REDIRECT" HOST PORT) and lets it go, if
+     * we're a standby and it isn't the primary itself: clients join and draw
+     * on the primary's boards, and ours only change the way those do.
+     * 
+     * @param clientID
+     *            id of client making the request
+     * @return true if the client was sent away, and its request shouldn't be
+     *         handled
+     * @throws InterruptedException
+     *             never, the client's queue is never full
+     */
+    private boolean redirectToPrimary(int clientID) throws InterruptedException {
+        String following = primary;
+        if (following == null || clientID == followerID) {
+            return false;
+        }
+
+        BlockingQueue<Message> queue = queues.get(clientID);
+        queue.put(new Message("REDIRECT " + hostAndPort(following)));
+        queue.put(Message.BYE); // poison pill
+        return true;
+    }
+
+    /**
+     * Tells a board's actor to handle a client's request. If that fills the
+     * board's mailbox, the client's requests aren't read until it drains: a
+     * SELECTOR client's connection stops being read (its loop goes on with
+     * everyone else's), and the thread reading any other client waits.
+     * 
+     * @param clientID
+     *            id of client making the request
+     * @param boardName
+     *            name of whiteboard
+     * @param task
+     *            handles the request
+     * @throws UnsupportedOperationException
+     *             if there is no such board
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    private void tellFor(int clientID, String boardName, Runnable task) throws InterruptedException {
+        BoardActor actor = actorFor(boardName);
+        if (actor.offer(task)) {
+            return;
+        }
+
+        BlockingQueue<Message> queue = queues.get(clientID);
+        if (queue instanceof SelectorLoop.ChannelQueue) {
+            // we're on the client's loop, which can't wait
+            ((SelectorLoop.ChannelQueue) queue).holdOff(actor);
+        } else {
+            final CountDownLatch drained = new CountDownLatch(1);
+            actor.whenDrained(new Runnable() {
+                @Override
+                public void run() {
+                    drained.countDown();
+                }
+            });
+            drained.await();
+        }
+    }
+
+    /**
+     * @param boardName
+     *            name of whiteboard
+     * @return the board's actor
+     * @throws UnsupportedOperationException
+     *             if there is no such board
+     */
+    private BoardActor actorFor(String boardName) {
+        BoardActor actor = actors.get(boardName);
+        if (actor == null) {
+            throw new UnsupportedOperationException("no board " + boardName);
+        }
+        return actor;
+    }
+
     /**
      * Respond to the client's request appropriately, and send information back
-     * (via queues).
+     * (via queues). Requests about a board are told to the board's actor, which
+     * handles them (in the order they came) after this returns.
      * 
      * Possible inputs:
      * 
      * (1) initial connect message ("HELLO"),
      * 
-     * (2) select whiteboard ("SELECT" WB_NAME USER_NAME),
+     * (2) select whiteboard ("SELECT" WB_NAME USER_NAME [FEATURE...]), where
+     * features are optional extras the client understands: "RASTER" to get a
+     * snapshot instead of the whole history, "STREAM" to get the board in
+     * chunks, "BINARY" to send and get draw actions as binary frames (see
+     * Frames and handleFrame), "ARTSY" to get the artsy meter by itself, only
+     * when it changes, instead of with every draw action,
      * 
      * (3) make new whiteboard ("NEW" WB_NAME COLOR_R COLOR_G COLOR_B),
      * 
      * (4) new draw actions ("DRAW" WB_NAME X1 Y1 X1 Y2 STROKE COLOR_R COLOR_G
-     * COLOR_B),
+     * COLOR_B), or stamps ("DRAW" WB_NAME X Y -1 -1 -1-STAMP_ID -1 -1 -1, all
+     * -1's for a doge in the middle of the board; see Stamps),
      * 
      * (5) change whiteboard bg color and clear ("BG" WB_NAME COLOR_R COLOR_G
      * COLOR_B),
@@ -449,6 +1839,17 @@ public class WhiteboardServer {
      * 
      * (7) disconnect message for Artist ("BYEARTIST")
      * 
+     * (8) which node of the cluster has a board ("WHERE" WB_NAME)
+     * 
+     * (9) from other nodes of the cluster, the boards this node has
+     * ("BOARDS"), and a board another node made ("PEERBOARD" WB_NAME)
+     * 
+     * (10) from a standby, to follow this server ("REPLICATE" HOST:PORT), and
+     * from the primary, to a standby: a board to make, or start over if we
+     * have it ("CREATE" WB_NAME COLOR_R COLOR_G COLOR_B), and the actions it
+     * already had ("REPLAY" WB_NAME "ACTIONS" X1 Y1 X2 Y2 STROKE COLOR_R
+     * COLOR_G COLOR_B...), then (4), (5) and (6) as they happen
+     * 
      * Possible outputs:
      * 
      * (1) whiteboard names (WB_NAME WB_NAME...),
@@ -456,14 +1857,24 @@ public class WhiteboardServer {
      * (2) whiteboard specs (BG_RED BG_GREEN BG_BLUE ARTSY_METER "USERS"
      * USER_NAME USER_NAME... "ACTIONS" X1 Y1 X1 Y2 STROKE COLOR_R COLOR_G
      * COLOR_B X1 Y1 X1 Y2 STROKE COLOR_R COLOR_G COLOR_B...) to new client,
-     * ("NEWUSER" USER_NAME) to others,
+     * with "SNAPSHOT" PNG_BASE64 before "ACTIONS" (and only the actions after
+     * the snapshot) for "RASTER" clients, or for "STREAM" clients the same
+     * thing as ("SNAPSHOT_BEGIN" BG_RED BG_GREEN BG_BLUE ARTSY_METER "USERS"
+     * USER_NAME...), any number of ("SNAPSHOT_CHUNK" "PNG" PNG_BASE64_PIECE)
+     * for "RASTER", then any number of ("SNAPSHOT_CHUNK" "ACTIONS" X1 Y1 X1 Y2
+     * STROKE COLOR_R COLOR_G COLOR_B...), then ("SNAPSHOT_END"), ("NEWUSER"
+     * USER_NAME) to others, and ("BINARY" BOARD_ID) after the specs to
+     * "BINARY" clients, whose draw actions come as frames from then on, and
+     * ("ARTSY" ARTSY_METER) after the specs to "ARTSY" clients,
      * 
      * (3) announce a new whiteboard to everyone ("NEWBOARD" WB_NAME), send back
      * the possibly new name if there were duplicates (ie. a 1 may be added,
      * then a 2, etc) ("NEWNAME" name)
      * 
      * (4) new draw actions ("DRAW" ARTSY_METER X1 Y1 X1 Y2 STROKE COLOR_R
-     * COLOR_G COLOR_B),
+     * COLOR_G COLOR_B), or for "ARTSY" clients ("ARTSY" ARTSY_METER) if the
+     * action changed it, then ("DRAW" X1 Y1 X1 Y2 STROKE COLOR_R COLOR_G
+     * COLOR_B) (as a frame, the artsy meter in its header is 0),
      * 
      * (5) change whiteboard bg color ("BG" COLOR_R COLOR_G COLOR_B),
      * 
@@ -471,44 +1882,117 @@ public class WhiteboardServer {
      * 
      * (7) user leaves ("BYEUSER" USER_NAME) to everyone but the user
      * 
+     * (8) a "STREAM" client too far behind to catch up may be sent the board
+     * again, the same way it got it on join, instead of what it missed (see
+     * ServerConfig.setQueueLimit)
+     * 
+     * (9) if clustered, "HERE" if this node has the board, otherwise
+     * ("REDIRECT" HOST PORT) for the node that does, which is also the answer
+     * (before the connection is closed) to selecting or making a board this
+     * node doesn't have. The whiteboard names (1) are every node's, and
+     * ("NEWBOARD" WB_NAME) is sent for boards made on any node.
+     * 
+     * (10) to a standby, (10) above for every board, then (4), (5) and (6)
+     * above as requests (with the board's name, without the artsy meter) as
+     * they happen; to everyone on a board, where to go if this server goes
+     * away ("STANDBY" HOST PORT). While a standby's primary is up, it answers
+     * selecting or making a board, and "WHERE", with ("REDIRECT" HOST PORT)
+     * for the primary.
+     * 
      * @param input
      *            the client's request
      * @param clientID
      *            id of client making the request
      */
-    private void handleRequest(String input, int clientID) {
-        String[] inputSplit = input.split(" ");
-        BlockingQueue<String> clientQueue = queues.get(clientID);
+    void handleRequest(String input, final int clientID) {
+        Tokenizer tokens = TOKENIZERS.get().reset(input);
+        final ClientQueue clientQueue = queues.get(clientID);
 
         // try to put on the queues
         try {
+            switch (tokens.nextOf(VERBS)) {
             // initial connect message
             // "HELLO"
-            if (inputSplit[0].equals("HELLO")) {
-                artistClients.add(clientID); // client is an Artist
-                clientQueue.put(listWhiteboards());
+            case HELLO: {
+                if (cluster == null) {
+                    artistClients.add(clientID); // client is an Artist
+                    clientQueue.put(new Message(listWhiteboards()));
+                    return;
+                }
+
+                // asking the other nodes for their boards takes a while, so
+                // it doesn't hold up whoever reads this client's requests (the
+                // list may come after answers to the client's next requests)
+                peers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        artistClients.add(clientID); // client is an Artist
+                        try {
+                            // "LIST " if we have none
+                            StringBuilder list = new StringBuilder(listWhiteboards().trim());
+                            for (String boardName : cluster.peerBoards()) {
+                                list.append(" ").append(boardName);
+                            }
+                            clientQueue.add(new Message(list.toString()));
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
                 return;
             }
 
             // select a whiteboard
-            // "SELECT" WB_NAME USER_NAME
-            if (inputSplit[0].equals("SELECT")) {
-                String boardName = inputSplit[1];
-                String userName = inputSplit[2];
-
-                // select whiteboard, tell others that there's a new user
-                clientQueue.put(selectWhiteboard(boardName, userName, clientID));
-                putOnAllQueuesBut(clientID, boardName, "NEWUSER " + userName);
+            // "SELECT" WB_NAME USER_NAME [FEATURE...]
+            case SELECT: {
+                final String boardName = tokens.nextToken();
+                final String userName = tokens.nextToken();
+                // whatever else is on the line is something the client
+                // understands, we ignore the ones we don't
+                final Set<String> features = new HashSet<String>();
+                while (tokens.hasNext()) {
+                    features.add(tokens.nextToken());
+                }
+
+                if (cluster != null && !cluster.isLocal(boardName)) {
+                    // another node has it, the client goes there instead
+                    clientQueue.put(new Message(cluster.redirect(boardName)));
+                    clientQueue.put(Message.BYE); // poison pill
+                    return;
+                }
+                if (redirectToPrimary(clientID)) {
+                    // we're only a copy until the primary goes away
+                    return;
+                }
+
+                tellFor(clientID, boardName, new Runnable() {
+                    @Override
+                    public void run() {
+                        join(boardName, userName, clientID, features, clientQueue);
+                    }
+                });
                 return;
             }
 
             // make new whiteboard and select it
             // "NEW" WB_NAME COLOR_R COLOR_G COLOR_B
-            if (inputSplit[0].equals("NEW")) {
-                String boardName = inputSplit[1];
-                int red = new Integer(inputSplit[2]);
-                int green = new Integer(inputSplit[3]);
-                int blue = new Integer(inputSplit[4]);
+            case NEW: {
+                String boardName = tokens.nextToken();
+                int red = tokens.nextInt();
+                int green = tokens.nextInt();
+                int blue = tokens.nextInt();
+
+                if (cluster != null && !cluster.isLocal(boardName)) {
+                    // another node has it (and its duplicates), the client
+                    // makes it there instead
+                    clientQueue.put(new Message(cluster.redirect(boardName)));
+                    clientQueue.put(Message.BYE); // poison pill
+                    return;
+                }
+                if (redirectToPrimary(clientID)) {
+                    // the primary makes it, and sends it to us
+                    return;
+                }
 
                 // ensure name is unique
                 synchronized (whiteboards) {
@@ -519,86 +2003,267 @@ public class WhiteboardServer {
                     createWhiteboard(boardName, red, green, blue);
                     // tell all Artists there's a new board and tell the
                     // origin what the new name is (it may have been changed)
-                    clientQueue.put("NEWNAME " + boardName);
-                    putOnAllQueuesBut(clientID, null, "NEWBOARD " + boardName);
+                    clientQueue.put(new Message("NEWNAME " + boardName));
+                    putOnAllQueuesBut(clientID, null, new Message("NEWBOARD " + boardName));
+                    if (cluster != null) {
+                        // and the other nodes' Artists
+                        final String newName = boardName;
+                        peers.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                cluster.announce(newName);
+                            }
+                        });
+                    }
 
                     // the Artist is leaving, so un-subscribe the client
                     // from new whiteboard events
-                    clientQueue.put("BYE"); // poison pill
+                    clientQueue.put(Message.BYE); // poison pill
                     return;
                 }
             }
 
             // new draw actions
             // "DRAW" WB_NAME X1 Y1 X2 Y2 STROKE COLOR_R COLOR_G COLOR_B
-            if (inputSplit[0].equals("DRAW")) {
-                String boardName = inputSplit[1];
-                int x1 = new Integer(inputSplit[2]);
-                int y1 = new Integer(inputSplit[3]);
-                int x2 = new Integer(inputSplit[4]);
-                int y2 = new Integer(inputSplit[5]);
-                int stroke = new Integer(inputSplit[6]);
-                int red = new Integer(inputSplit[7]);
-                int green = new Integer(inputSplit[8]);
-                int blue = new Integer(inputSplit[9]);
-
-                // draw has artsy meter on it "DRAW" ARTSY_METER X1 Y1 X2 Y2
-                // STROKE COLOR_R COLOR_G COLOR_B
-                String draw = draw(boardName, x1, y1, x2, y2, stroke, red, green, blue);
-                putOnAllQueuesBut(-1, boardName, draw); // put on all queues
+            case DRAW: {
+                final String boardName = tokens.nextToken();
+                final int x1 = tokens.nextInt();
+                final int y1 = tokens.nextInt();
+                final int x2 = tokens.nextInt();
+                final int y2 = tokens.nextInt();
+                final int stroke = tokens.nextInt();
+                final int red = tokens.nextInt();
+                final int green = tokens.nextInt();
+                final int blue = tokens.nextInt();
+                if (redirectToPrimary(clientID)) {
+                    // only the primary's changes go on our copy
+                    return;
+                }
+
+                tellFor(clientID, boardName, new Runnable() {
+                    @Override
+                    public void run() {
+                        // draw has artsy meter on it "DRAW" ARTSY_METER X1 Y1
+                        // X2 Y2 STROKE COLOR_R COLOR_G COLOR_B
+                        Message draw = draw(boardName, x1, y1, x2, y2, stroke, red, green, blue);
+                        broadcastDraw(boardName, draw);
+                    }
+                });
                 return;
             }
 
             // change whiteboard bg color
             // "BG" WB_NAME COLOR_R COLOR_G COLOR_B
-            if (inputSplit[0].equals("BG")) {
-                String boardName = inputSplit[1];
-                int red = new Integer(inputSplit[2]);
-                int green = new Integer(inputSplit[3]);
-                int blue = new Integer(inputSplit[4]);
-
-                // change color, inform others
-                changeBackgroundColor(boardName, red, green, blue);
-                // clear the board, but this doesn't need to be announced
-                clearBoard(boardName);
-                // put on all queues
-                putOnAllQueuesBut(-1, boardName, "BG " + red + " " + green + " " + blue);
+            case BG: {
+                final String boardName = tokens.nextToken();
+                final int red = tokens.nextInt();
+                final int green = tokens.nextInt();
+                final int blue = tokens.nextInt();
+                if (redirectToPrimary(clientID)) {
+                    // only the primary's changes go on our copy
+                    return;
+                }
+
+                tellFor(clientID, boardName, new Runnable() {
+                    @Override
+                    public void run() {
+                        // change color, inform others
+                        changeBackgroundColor(boardName, red, green, blue);
+                        // clear the board, but this doesn't need to be
+                        // announced
+                        clearBoard(boardName);
+                        if (log != null) {
+                            log.background(boardIDs.get(boardName), red, green, blue);
+                        }
+                        replicate(boardName, "BG " + boardName + " " + red + " " + green + " " + blue);
+                        // put on all queues
+                        putOnAllQueuesBut(-1, boardName, new Message("BG " + red + " " + green + " " + blue));
+                    }
+                });
                 return;
             }
 
             // clear everything from board
             // "CLEAR" WB_NAME
-            if (inputSplit[0].equals("CLEAR")) {
-                String boardName = inputSplit[1];
+            case CLEAR: {
+                final String boardName = tokens.nextToken();
+                if (redirectToPrimary(clientID)) {
+                    // only the primary's changes go on our copy
+                    return;
+                }
 
-                // change color, inform others
-                clearBoard(boardName);
-                putOnAllQueuesBut(-1, boardName, "CLEAR"); // put on all queues
+                tellFor(clientID, boardName, new Runnable() {
+                    @Override
+                    public void run() {
+                        // change color, inform others
+                        clearBoard(boardName);
+                        if (log != null) {
+                            log.clear(boardIDs.get(boardName));
+                        }
+                        replicate(boardName, "CLEAR " + boardName);
+                        putOnAllQueuesBut(-1, boardName, new Message("CLEAR")); // put on all queues
+                    }
+                });
                 return;
             }
 
             // disconnect message
             // "BYE" WB_NAME USER_NAME
-            if (inputSplit[0].equals("BYE")) {
-                String boardName = inputSplit[1];
-                String userName = inputSplit[2];
+            case BYE: {
+                final String boardName = tokens.nextToken();
+                final String userName = tokens.nextToken();
 
-                // un-subscribe the client from whiteboard events
-                List<Integer> unsubList = whiteboardClients.get(boardName);
-                unsubList.remove(unsubList.indexOf(clientID));
+                tellFor(clientID, boardName, new Runnable() {
+                    @Override
+                    public void run() {
+                        // un-subscribe the client from whiteboard events
+                        whiteboardClients.get(boardName).remove(clientID);
 
-                // tell others the user is gone
-                putOnAllQueuesBut(clientID, boardName, "BYEUSER " + userName);
-                clientQueue.put("BYE"); // poison pill
+                        // tell others the user is gone
+                        putOnAllQueuesBut(clientID, boardName, new Message("BYEUSER " + userName));
+                        // after anything the board still had for the client
+                        clientQueue.add(Message.BYE); // poison pill
+                    }
+                });
                 return;
             }
 
             // disconnect message for Artist
             // "BYEARTIST"
-            if (inputSplit[0].equals("BYEARTIST")) {
-                clientQueue.put("BYE"); // poison pill
+            case BYEARTIST: {
+                clientQueue.put(Message.BYE); // poison pill
+                return;
+            }
+
+            // which node has a board
+            // "WHERE" WB_NAME
+            case WHERE: {
+                String boardName = tokens.nextToken();
+                String following = primary;
+                if (following != null) {
+                    clientQueue.put(new Message("REDIRECT " + hostAndPort(following)));
+                } else if (cluster == null || cluster.isLocal(boardName)) {
+                    clientQueue.put(new Message("HERE"));
+                } else {
+                    clientQueue.put(new Message(cluster.redirect(boardName)));
+                }
+                return;
+            }
+
+            // another node wants our boards
+            // "BOARDS"
+            case BOARDS: {
+                clientQueue.put(new Message(listWhiteboards()));
+                clientQueue.put(Message.BYE); // poison pill
+                return;
+            }
+
+            // another node made a board
+            // "PEERBOARD" WB_NAME
+            case PEERBOARD: {
+                String boardName = tokens.nextToken();
+                putOnAllQueuesBut(clientID, null, new Message("NEWBOARD " + boardName));
+                clientQueue.put(Message.BYE); // poison pill
+                return;
+            }
+
+            // a standby wants to follow us
+            // "REPLICATE" HOST:PORT
+            case REPLICATE: {
+                String standby = tokens.nextToken();
+
+                // boards made from now on are sent to it when they're made,
+                // and every board we have now by its actor
+                synchronized (whiteboards) {
+                    standbys.put(clientID, "STANDBY " + hostAndPort(standby));
+                    for (final String boardName : boardIDs.keySet()) {
+                        actors.get(boardName).tell(new Runnable() {
+                            @Override
+                            public void run() {
+                                catchUp(boardName, clientID, clientQueue);
+                            }
+                        });
+                    }
+                }
+                return;
+            }
+
+            // a board the primary has
+            // "CREATE" WB_NAME COLOR_R COLOR_G COLOR_B
+            case CREATE: {
+                if (clientID != followerID) {
+                    // only the primary says this, not its clients
+                    break;
+                }
+                final String boardName = tokens.nextToken();
+                final int red = tokens.nextInt();
+                final int green = tokens.nextInt();
+                final int blue = tokens.nextInt();
+
+                synchronized (whiteboards) {
+                    if (!boardIDs.containsKey(boardName)) {
+                        createWhiteboard(boardName, red, green, blue);
+                        putOnAllQueuesBut(clientID, null, new Message("NEWBOARD " + boardName));
+                        return;
+                    }
+                }
+
+                // we're following the primary again, the board starts over
+                tellFor(clientID, boardName, new Runnable() {
+                    @Override
+                    public void run() {
+                        changeBackgroundColor(boardName, red, green, blue);
+                        clearBoard(boardName);
+                        if (log != null) {
+                            log.background(boardIDs.get(boardName), red, green, blue);
+                        }
+                        replicate(boardName, "CREATE " + boardName + " " + red + " " + green + " " + blue);
+                        putOnAllQueuesBut(-1, boardName, new Message("BG " + red + " " + green + " " + blue));
+                    }
+                });
+                return;
+            }
+
+            // actions a board of the primary's already had
+            // "REPLAY" WB_NAME "ACTIONS" X1 Y1 X2 Y2 STROKE COLOR_R COLOR_G
+            // COLOR_B...
+            case REPLAY: {
+                if (clientID != followerID) {
+                    // only the primary says this, not its clients
+                    break;
+                }
+                final String boardName = tokens.nextToken();
+                final String change = input;
+                tokens.nextToken(); // "ACTIONS"
+                int[] actions = new int[64];
+                int count = 0;
+                while (tokens.hasNext()) {
+                    if (count == actions.length) {
+                        actions = Arrays.copyOf(actions, count * 2);
+                    }
+                    actions[count++] = tokens.nextInt();
+                }
+                final int[] values = actions;
+                final int length = count;
+
+                tellFor(clientID, boardName, new Runnable() {
+                    @Override
+                    public void run() {
+                        Whiteboard board = board(boardName);
+                        for (int i = 0; i + 8 <= length; i += 8) {
+                            board.addAction(values[i], values[i + 1], values[i + 2], values[i + 3], values[i + 4],
+                                    values[i + 5], values[i + 6], values[i + 7]);
+                            if (log != null) {
+                                log.draw(boardIDs.get(boardName), values[i], values[i + 1], values[i + 2],
+                                        values[i + 3], values[i + 4], values[i + 5], values[i + 6], values[i + 7]);
+                            }
+                        }
+                        replicate(boardName, change);
+                    }
+                });
                 return;
             }
+            }
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -609,13 +2274,27 @@ public class WhiteboardServer {
     }
 
     /**
-     * Starts a server with fresh memory (no whiteboards)
+     * @param node
+     *            a server ("host:port")
+     * @return HOST PORT, the way they're sent to clients
+     */
+    private static String hostAndPort(String node) {
+        int colon = node.lastIndexOf(':');
+        return node.substring(0, colon) + " " + node.substring(colon + 1);
+    }
+
+    /**
+     * Starts a server with fresh memory (no whiteboards, unless its log has
+     * some), on port 4444 or the port of its node (if clustered or a standby).
+     * Arguments are options, see ServerConfig.fromArgs (ie.
+     * --transport=selector)
      */
     public static void main(String[] args) {
         // try to initialize the server with port 4444, this should def work,
         // try/catch just to soothe java's nerves
         try {
-            new WhiteboardServer(4444);
+            ServerConfig config = ServerConfig.fromArgs(args);
+            new WhiteboardServer(config.getPort(), config);
         } catch (IOException e) {
             e.printStackTrace();
         }
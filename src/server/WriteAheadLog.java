@@ -0,0 +1,915 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Write-ahead log of every change to every board, so a server that restarts
+ * gets its boards back (see recover). Every change is one or more fixed-size,
+ * 32 byte records: a CRC32 of the rest of the record (int), its type (byte),
+ * three bytes of padding, the board's ID (int), and 20 bytes that depend on
+ * the type:
+ *
+ * CREATE: packed bg (int), length of the name in UTF-8 (short), and its first
+ * 14 bytes, with the rest in as many NAME records (20 bytes each) as it takes,
+ *
+ * DRAW: X1 Y1 X2 Y2 STROKE (shorts) and packed color (int), the same as
+ * MappedStrokeLog,
+ *
+ * BG: packed bg (int), which also clears the board,
+ *
+ * CLEAR: nothing.
+ *
+ * Appending a change only copies it into a buffer. The log's own thread takes
+ * whatever has piled up, writes it with one write and one fsync (group
+ * commit), and then waits out the sync window so the next batch can pile up.
+ * A draw never waits on the disk; a crash loses the changes of the last
+ * window or so.
+ *
+ * Records are numbered from 0 (their LSN), and go in segment files named by
+ * the LSN of their first record, a new one once one is full. Every so often
+ * the server writes a checkpoint of every board (see beginCheckpoint), and
+ * the segments before it are deleted. Recovery reads the checkpoint, then
+ * replays the records after it up to the first one that's torn or fails its
+ * CRC.
+ *
+ * This is threadsafe: changes are appended while locked on the buffer, and
+ * only the log's own thread writes segments.
+ *
+ */
+public class WriteAheadLog implements Closeable {
+    private static final int RECORD_BYTES = 32;
+    // where the part that depends on the type starts, and how long it is
+    private static final int PAYLOAD = 12;
+    private static final int PAYLOAD_BYTES = RECORD_BYTES - PAYLOAD;
+    // the first bytes of a name go in its CREATE record
+    private static final int CREATE_NAME_BYTES = PAYLOAD_BYTES - 6;
+
+    private static final byte CREATE = 1;
+    private static final byte NAME = 2;
+    private static final byte DRAW = 3;
+    private static final byte BG = 4;
+    private static final byte CLEAR = 5;
+
+    // records waiting to be written, before appends wait for room
+    private static final int BUFFER_BYTES = 1 << 20;
+    // records read from a segment or checkpoint at a time
+    private static final int READ_BYTES = 1 << 20;
+
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final int CHECKPOINT_MAGIC = 0x57424350;
+
+    private final File directory;
+    private final long syncMillis;
+    private final long recordsPerSegment;
+
+    // appends go in pending while the log's thread writes the other one
+    private final Object lock = new Object();
+    private ByteBuffer pending = ByteBuffer.allocate(BUFFER_BYTES);
+    private ByteBuffer writing = ByteBuffer.allocate(BUFFER_BYTES);
+    // LSN of the next record appended
+    private long next = -1;
+    private boolean closed = false;
+    private boolean failed = false;
+
+    // the segment being written, only touched by the log's thread
+    private FileChannel segment;
+    private long segmentStart;
+    private long segmentRecords;
+    private Thread writer;
+
+    // where the last checkpoint starts, and how many actions it had
+    private volatile long checkpointStart = 0;
+    private volatile long checkpointActions = 0;
+
+    /**
+     * Gets the changes in a log back, in the order they happened
+     */
+    public interface Replayer {
+        /**
+         * A board was made
+         *
+         * @param boardID
+         *            the ID it was given
+         * @param name
+         *            its name
+         * @param red
+         *            amount of red in bg (0-255)
+         * @param green
+         *            amount of green in bg (0-255)
+         * @param blue
+         *            amount of blue in bg (0-255)
+         * @throws IOException
+         *             if the board can't be made
+         */
+        void create(int boardID, String name, int red, int green, int blue) throws IOException;
+
+        /**
+         * A board was drawn on (all -1 for doge, see StrokeStore.Visitor)
+         */
+        void draw(int boardID, int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue);
+
+        /**
+         * A board's bg was changed, and the board cleared
+         */
+        void background(int boardID, int red, int green, int blue);
+
+        /**
+         * A board was cleared
+         */
+        void clear(int boardID);
+    }
+
+    /**
+     * Makes a log in the directory, which is made if it doesn't exist.
+     * Nothing can be appended until it's recovered.
+     *
+     * @param directory
+     *            where the segments and checkpoint go, not shared with another
+     *            log
+     * @param syncMillis
+     *            how long changes pile up between writes (0 to write as soon
+     *            as the last write is done)
+     * @param segmentBytes
+     *            size a segment can grow to before a new one is started (at
+     *            least a record)
+     */
+    public WriteAheadLog(File directory, long syncMillis, long segmentBytes) {
+        if (syncMillis < 0 || segmentBytes < RECORD_BYTES) {
+            throw new IllegalArgumentException("bad log settings: " + syncMillis + "ms, " + segmentBytes + " bytes");
+        }
+        this.directory = directory;
+        this.syncMillis = syncMillis;
+        this.recordsPerSegment = segmentBytes / RECORD_BYTES;
+    }
+
+    /**
+     * Shows the replayer every board in the checkpoint and every change since,
+     * then starts logging after the last change that came back whole. Called
+     * once, before anything is appended.
+     *
+     * @param replayer
+     *            what to show them to
+     * @throws IOException
+     *             if the log can't be read, or the checkpoint is corrupt
+     */
+    public void recover(Replayer replayer) throws IOException {
+        directory.mkdirs();
+        // board ID -> LSN its checkpoint has everything before
+        Map<Integer, Long> checkpointed = new HashMap<Integer, Long>();
+        File checkpoint = new File(directory, CHECKPOINT);
+        long start = checkpoint.exists() ? readCheckpoint(checkpoint, replayer, checkpointed) : 0;
+
+        long lsn = replay(start, replayer, checkpointed);
+
+        synchronized (lock) {
+            next = lsn;
+        }
+        openSegment(lsn);
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeSegments();
+            }
+        }, "whiteboard-log");
+        // close (ie. from a shutdown hook) writes what's left
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Replays the segments, from the start of the checkpoint up to the first
+     * record that's missing, torn or fails its CRC. Whatever is after that is
+     * cut off, so new records go right after the last good one.
+     *
+     * @param start
+     *            LSN the checkpoint starts at
+     * @param replayer
+     *            what to show the changes to
+     * @param checkpointed
+     *            board ID -> LSN its checkpoint has everything before
+     * @return LSN of the next record
+     * @throws IOException
+     *             if a segment can't be read
+     */
+    private long replay(long start, Replayer replayer, Map<Integer, Long> checkpointed) throws IOException {
+        List<Long> starts = segmentStarts();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BYTES);
+        CRC32 crc = new CRC32();
+        // the change being put together, for CREATE and its NAMEs
+        Change change = new Change();
+        long lsn = start;
+        boolean broken = false;
+
+        for (int s = 0; s < starts.size(); ++s) {
+            long first = starts.get(s);
+            File file = segmentFile(first);
+            if (broken || first > lsn) {
+                // after a gap or a broken record, it can't be replayed
+                broken = true;
+                Files.delete(file.toPath());
+                continue;
+            }
+            if (s + 1 < starts.size() && starts.get(s + 1) <= lsn) {
+                // the checkpoint has all of it, it just wasn't deleted
+                continue;
+            }
+
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                // bytes of the segment in whole changes, and read
+                long good = (lsn - first) * RECORD_BYTES;
+                long position = good;
+                channel.position(position);
+                buffer.clear();
+
+                while (!broken) {
+                    int read = channel.read(buffer);
+                    buffer.flip();
+                    while (buffer.remaining() >= RECORD_BYTES) {
+                        int at = buffer.position();
+                        crc.reset();
+                        crc.update(buffer.array(), at + 4, RECORD_BYTES - 4);
+                        if (buffer.getInt(at) != (int) crc.getValue() || !change.add(buffer, at)) {
+                            broken = true;
+                            break;
+                        }
+                        buffer.position(at + RECORD_BYTES);
+                        position += RECORD_BYTES;
+
+                        if (change.isWhole()) {
+                            // skipped if the board's checkpoint has it
+                            Long before = checkpointed.get(change.boardID);
+                            if (before == null || first + position / RECORD_BYTES > before) {
+                                change.replay(replayer);
+                            }
+                            good = position;
+                            lsn = first + good / RECORD_BYTES;
+                            change = new Change();
+                        }
+                    }
+                    if (read < 0) {
+                        break;
+                    }
+                    buffer.compact();
+                }
+
+                if (broken || channel.size() > good) {
+                    // a torn or corrupt record (a change's records are all
+                    // in one segment), new ones go after the last good one
+                    channel.truncate(good);
+                    broken = true;
+                }
+            }
+        }
+        return lsn;
+    }
+
+    /**
+     * A change read back from its records
+     */
+    private static class Change {
+        private byte type = 0;
+        private int boardID;
+        private final int[] values = new int[8];
+        private byte[] name;
+        private int nameRead;
+
+        /**
+         * Adds a record to the change
+         *
+         * @param buffer
+         *            holds the record
+         * @param at
+         *            where the record starts
+         * @return false if the record doesn't fit (ie. a NAME with no CREATE)
+         */
+        private boolean add(ByteBuffer buffer, int at) {
+            byte recordType = buffer.get(at + 4);
+            int recordBoard = buffer.getInt(at + 8);
+            int payload = at + PAYLOAD;
+
+            if (recordType == NAME) {
+                if (type != CREATE || recordBoard != boardID) {
+                    return false;
+                }
+                int length = Math.min(PAYLOAD_BYTES, name.length - nameRead);
+                for (int i = 0; i < length; ++i) {
+                    name[nameRead++] = buffer.get(payload + i);
+                }
+                return true;
+            }
+            if (type != 0) {
+                // a CREATE that never got all of its name
+                return false;
+            }
+
+            type = recordType;
+            boardID = recordBoard;
+            switch (type) {
+            case CREATE: {
+                unpack(buffer.getInt(payload), 0);
+                name = new byte[buffer.getShort(payload + 4) & 0xFFFF];
+                int length = Math.min(CREATE_NAME_BYTES, name.length);
+                for (int i = 0; i < length; ++i) {
+                    name[nameRead++] = buffer.get(payload + 6 + i);
+                }
+                return true;
+            }
+            case DRAW:
+                for (int i = 0; i < 5; ++i) {
+                    values[i] = buffer.getShort(payload + 2 * i);
+                }
+                unpack(buffer.getInt(payload + 10), 5);
+                return true;
+            case BG:
+                unpack(buffer.getInt(payload), 0);
+                return true;
+            case CLEAR:
+                return true;
+            default:
+                return false;
+            }
+        }
+
+        /**
+         * @param rgb
+         *            packed color (see StrokeLog.pack)
+         * @param i
+         *            where red goes in values, then green and blue
+         */
+        private void unpack(int rgb, int i) {
+            if (rgb == StrokeLog.NO_COLOR) {
+                values[i] = values[i + 1] = values[i + 2] = -1;
+            } else {
+                values[i] = (rgb >> 16) & 0xFF;
+                values[i + 1] = (rgb >> 8) & 0xFF;
+                values[i + 2] = rgb & 0xFF;
+            }
+        }
+
+        /**
+         * @return true once every record of the change has been added
+         */
+        private boolean isWhole() {
+            return type != CREATE || nameRead == name.length;
+        }
+
+        /**
+         * @param replayer
+         *            what to show the change to
+         * @throws IOException
+         *             if a board can't be made
+         */
+        private void replay(Replayer replayer) throws IOException {
+            int[] v = values;
+            switch (type) {
+            case CREATE:
+                replayer.create(boardID, new String(name, StandardCharsets.UTF_8), v[0], v[1], v[2]);
+                break;
+            case DRAW:
+                replayer.draw(boardID, v[0], v[1], v[2], v[3], v[4], v[5], v[6], v[7]);
+                break;
+            case BG:
+                replayer.background(boardID, v[0], v[1], v[2]);
+                break;
+            case CLEAR:
+                replayer.clear(boardID);
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return LSN of the next record appended
+     */
+    public long position() {
+        synchronized (lock) {
+            return next;
+        }
+    }
+
+    /**
+     * Logs a new board
+     *
+     * @param boardID
+     *            its ID
+     * @param name
+     *            its name
+     * @param red
+     *            amount of red in bg (0-255)
+     * @param green
+     *            amount of green in bg (0-255)
+     * @param blue
+     *            amount of blue in bg (0-255)
+     */
+    public void create(int boardID, String name, int red, int green, int blue) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        synchronized (lock) {
+            int at = reserve(CREATE, boardID);
+            if (at < 0) {
+                return;
+            }
+            pending.putInt(at + PAYLOAD, StrokeLog.pack(red, green, blue));
+            pending.putShort(at + PAYLOAD + 4, (short) bytes.length);
+            int written = Math.min(CREATE_NAME_BYTES, bytes.length);
+            for (int i = 0; i < written; ++i) {
+                pending.put(at + PAYLOAD + 6 + i, bytes[i]);
+            }
+            while (written < bytes.length) {
+                at = reserve(NAME, boardID);
+                if (at < 0) {
+                    return;
+                }
+                for (int i = 0; i < PAYLOAD_BYTES && written < bytes.length; ++i) {
+                    pending.put(at + PAYLOAD + i, bytes[written++]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Logs a draw action (all -1 for doge)
+     */
+    public void draw(int boardID, int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue) {
+        synchronized (lock) {
+            int at = reserve(DRAW, boardID);
+            if (at < 0) {
+                return;
+            }
+            pending.putShort(at + PAYLOAD, StrokeLog.clamp(x1));
+            pending.putShort(at + PAYLOAD + 2, StrokeLog.clamp(y1));
+            pending.putShort(at + PAYLOAD + 4, StrokeLog.clamp(x2));
+            pending.putShort(at + PAYLOAD + 6, StrokeLog.clamp(y2));
+            pending.putShort(at + PAYLOAD + 8, StrokeLog.clamp(stroke));
+            pending.putInt(at + PAYLOAD + 10, StrokeLog.pack(red, green, blue));
+        }
+    }
+
+    /**
+     * Logs a change of bg, which also clears the board
+     */
+    public void background(int boardID, int red, int green, int blue) {
+        synchronized (lock) {
+            int at = reserve(BG, boardID);
+            if (at >= 0) {
+                pending.putInt(at + PAYLOAD, StrokeLog.pack(red, green, blue));
+            }
+        }
+    }
+
+    /**
+     * Logs a board being cleared
+     */
+    public void clear(int boardID) {
+        synchronized (lock) {
+            reserve(CLEAR, boardID);
+        }
+    }
+
+    /**
+     * Makes room for a record at the end of the pending buffer, waiting for
+     * the log's thread if it's full. Must hold the lock.
+     *
+     * @param type
+     *            type of the record
+     * @param boardID
+     *            the board it's about
+     * @return where the record starts, with its payload all 0's, or -1 if the
+     *         log is closed or broken (the change isn't logged)
+     */
+    private int reserve(byte type, int boardID) {
+        if (next < 0) {
+            throw new IllegalStateException("the log hasn't been recovered");
+        }
+        try {
+            while (pending.remaining() < RECORD_BYTES && !closed && !failed) {
+                lock.wait();
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return -1;
+        }
+        if (closed || failed) {
+            return -1;
+        }
+
+        int at = pending.position();
+        // the CRC goes in when it's written
+        pending.putInt(0);
+        pending.put(type);
+        pending.put((byte) 0).put((byte) 0).put((byte) 0);
+        pending.putInt(boardID);
+        pending.putLong(0).putLong(0).putInt(0);
+        ++next;
+        if (at == 0) {
+            // the log's thread may be waiting for something to write
+            lock.notifyAll();
+        }
+        return at;
+    }
+
+    /**
+     * Run by the log's thread: writes out whatever has piled up, syncs it,
+     * and waits for more, until the log is closed
+     */
+    private void writeSegments() {
+        try {
+            while (true) {
+                synchronized (lock) {
+                    while (pending.position() == 0 && !closed) {
+                        lock.wait();
+                    }
+                    if (pending.position() == 0) {
+                        return;
+                    }
+                    ByteBuffer full = pending;
+                    pending = writing;
+                    writing = full;
+                    // room for whoever was waiting
+                    lock.notifyAll();
+                }
+
+                write(writing);
+                if (syncMillis > 0) {
+                    // let the next batch pile up
+                    Thread.sleep(syncMillis);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            synchronized (lock) {
+                // nothing more gets logged, the server keeps going without
+                failed = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes records to the end of the log, starting new segments as they
+     * fill up, and syncs them. Only the log's thread calls this.
+     *
+     * @param records
+     *            whole records, from 0 up to its position, all written
+     *            (and the buffer cleared) once this returns
+     * @throws IOException
+     *             if they can't be written
+     */
+    private void write(ByteBuffer records) throws IOException {
+        records.flip();
+        CRC32 crc = new CRC32();
+        for (int at = 0; at < records.limit(); at += RECORD_BYTES) {
+            crc.reset();
+            crc.update(records.array(), at + 4, RECORD_BYTES - 4);
+            records.putInt(at, (int) crc.getValue());
+        }
+
+        while (records.hasRemaining()) {
+            int available = records.remaining() / RECORD_BYTES;
+            int fit = (int) Math.max(0, Math.min(available, recordsPerSegment - segmentRecords));
+            // a change's records all go in one segment, so recovery never
+            // has to put one back together across two
+            while (fit < available && records.get(records.position() + fit * RECORD_BYTES + 4) == NAME) {
+                ++fit;
+            }
+            if (fit == 0) {
+                segment.force(false);
+                segment.close();
+                openSegment(segmentStart + segmentRecords);
+                continue;
+            }
+
+            ByteBuffer slice = records.duplicate();
+            slice.limit(records.position() + fit * RECORD_BYTES);
+            while (slice.hasRemaining()) {
+                segment.write(slice);
+            }
+            records.position(slice.limit());
+            segmentRecords += fit;
+        }
+        segment.force(false);
+        records.clear();
+    }
+
+    /**
+     * Starts a new segment, or continues the last one if it's the one that
+     * starts there
+     *
+     * @param start
+     *            LSN of its first record
+     * @throws IOException
+     *             if it can't be opened
+     */
+    private void openSegment(long start) throws IOException {
+        segment = FileChannel.open(segmentFile(start).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        segmentStart = start;
+        segmentRecords = segment.size() / RECORD_BYTES;
+        segment.position(segmentRecords * RECORD_BYTES);
+        if (segmentRecords > 0 && segmentStart + segmentRecords != next) {
+            throw new IOException("segment " + segmentFile(start) + " doesn't end where the log does");
+        }
+    }
+
+    /**
+     * Writes everything that's been appended, and stops logging
+     *
+     * @throws IOException
+     *             if the last segment can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            segment.close();
+        }
+    }
+
+    /**
+     * @param minActions
+     *            fewest changes since the last checkpoint worth checkpointing
+     *            for
+     * @return true if there have been enough changes since the last
+     *         checkpoint: at least minActions, and at least as many as the
+     *         checkpoint had actions, so writing checkpoints never takes
+     *         longer than writing the log did
+     */
+    public boolean needsCheckpoint(long minActions) {
+        long since = position() - checkpointStart;
+        return since >= minActions && since >= checkpointActions;
+    }
+
+    /**
+     * A board as it was between two of its changes, to go in a checkpoint.
+     * Its actions are shown to it like to any visitor (see
+     * Whiteboard.visitActions).
+     */
+    public static class BoardImage implements StrokeStore.Visitor {
+        private final int boardID;
+        private final String name;
+        private final long lsn;
+        private final int bg;
+        private ByteBuffer actions = ByteBuffer.allocate(16 * 1024);
+        private int size = 0;
+
+        /**
+         * @param boardID
+         *            the board's ID
+         * @param name
+         *            its name
+         * @param lsn
+         *            position of the log (see position) when the board was
+         *            like this, every change to it before is in the image
+         * @param red
+         *            amount of red in bg (0-255)
+         * @param green
+         *            amount of green in bg (0-255)
+         * @param blue
+         *            amount of blue in bg (0-255)
+         */
+        public BoardImage(int boardID, String name, long lsn, int red, int green, int blue) {
+            this(boardID, name, lsn, StrokeLog.pack(red, green, blue));
+        }
+
+        /**
+         * @param boardID
+         *            the board's ID
+         * @param name
+         *            its name
+         * @param lsn
+         *            position of the log (see position) when the board was
+         *            like this, every change to it before is in the image
+         * @param bg
+         *            bg color, as 0xRRGGBB (see Whiteboard.getBackgroundRGB)
+         */
+        public BoardImage(int boardID, String name, long lsn, int bg) {
+            this.boardID = boardID;
+            this.name = name;
+            this.lsn = lsn;
+            this.bg = bg;
+        }
+
+        @Override
+        public void segment(int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue) {
+            if (actions.remaining() < 16) {
+                ByteBuffer bigger = ByteBuffer.allocate(actions.capacity() * 2);
+                actions.flip();
+                bigger.put(actions);
+                actions = bigger;
+            }
+            actions.putShort(StrokeLog.clamp(x1));
+            actions.putShort(StrokeLog.clamp(y1));
+            actions.putShort(StrokeLog.clamp(x2));
+            actions.putShort(StrokeLog.clamp(y2));
+            actions.putShort(StrokeLog.clamp(stroke));
+            actions.putInt(StrokeLog.pack(red, green, blue));
+            actions.putShort((short) 0);
+            ++size;
+        }
+    }
+
+    /**
+     * Starts a checkpoint: every board there is now goes in it (see
+     * Checkpoint.add), and once it's committed the log only has to be
+     * replayed from here. One at a time.
+     *
+     * @return the checkpoint
+     * @throws IOException
+     *             if its file can't be made
+     */
+    public Checkpoint beginCheckpoint() throws IOException {
+        return new Checkpoint(position());
+    }
+
+    /**
+     * A checkpoint being written, see beginCheckpoint
+     */
+    public class Checkpoint {
+        private final long start;
+        private final File file = new File(directory, CHECKPOINT + ".tmp");
+        private final FileOutputStream stream;
+        private final CheckedOutputStream checked;
+        private final DataOutputStream out;
+        private long actions = 0;
+
+        /**
+         * @param start
+         *            LSN the log is replayed from, with this checkpoint
+         * @throws IOException
+         *             if its file can't be made
+         */
+        private Checkpoint(long start) throws IOException {
+            this.start = start;
+            stream = new FileOutputStream(file);
+            checked = new CheckedOutputStream(new BufferedOutputStream(stream, 1 << 16), new CRC32());
+            out = new DataOutputStream(checked);
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeLong(start);
+        }
+
+        /**
+         * Adds a board
+         *
+         * @param image
+         *            the board, as of at least the checkpoint's start
+         * @throws IOException
+         *             if it can't be written
+         */
+        public void add(BoardImage image) throws IOException {
+            out.writeByte(1);
+            out.writeInt(image.boardID);
+            out.writeLong(image.lsn);
+            out.writeUTF(image.name);
+            out.writeInt(image.bg);
+            out.writeInt(image.size);
+            out.write(image.actions.array(), 0, image.size * 16);
+            actions += image.size;
+        }
+
+        /**
+         * Makes this the checkpoint recovery starts from, and deletes the
+         * segments it has everything in
+         *
+         * @throws IOException
+         *             if it can't be written
+         */
+        public void commit() throws IOException {
+            out.writeByte(0);
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            stream.getFD().sync();
+            out.close();
+            Files.move(file.toPath(), new File(directory, CHECKPOINT).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+            checkpointStart = start;
+            checkpointActions = actions;
+            List<Long> starts = segmentStarts();
+            for (int s = 0; s + 1 < starts.size(); ++s) {
+                // every record in it is before the checkpoint
+                if (starts.get(s + 1) <= start) {
+                    Files.delete(segmentFile(starts.get(s)).toPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Shows the replayer every board in a checkpoint
+     *
+     * @param file
+     *            the checkpoint
+     * @param replayer
+     *            what to show them to
+     * @param checkpointed
+     *            gets board ID -> LSN its image has everything before
+     * @return LSN the log is replayed from
+     * @throws IOException
+     *             if it can't be read, or is corrupt
+     */
+    private long readCheckpoint(File file, Replayer replayer, Map<Integer, Long> checkpointed) throws IOException {
+        try (CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file),
+                1 << 16), new CRC32())) {
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                throw new IOException(file + " isn't a checkpoint");
+            }
+            long start = in.readLong();
+            long actions = 0;
+            byte[] bytes = new byte[READ_BYTES];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+            while (in.readByte() == 1) {
+                int boardID = in.readInt();
+                checkpointed.put(boardID, in.readLong());
+                String name = in.readUTF();
+                int bg = in.readInt();
+                replayer.create(boardID, name, (bg >> 16) & 0xFF, (bg >> 8) & 0xFF, bg & 0xFF);
+
+                int size = in.readInt();
+                actions += size;
+                while (size > 0) {
+                    int count = Math.min(size, READ_BYTES / 16);
+                    in.readFully(bytes, 0, count * 16);
+                    for (int i = 0; i < count * 16; i += 16) {
+                        int rgb = buffer.getInt(i + 10);
+                        if (rgb == StrokeLog.NO_COLOR) {
+                            replayer.draw(boardID, buffer.getShort(i), buffer.getShort(i + 2), buffer.getShort(i + 4),
+                                    buffer.getShort(i + 6), buffer.getShort(i + 8), -1, -1, -1);
+                        } else {
+                            replayer.draw(boardID, buffer.getShort(i), buffer.getShort(i + 2), buffer.getShort(i + 4),
+                                    buffer.getShort(i + 6), buffer.getShort(i + 8), (rgb >> 16) & 0xFF,
+                                    (rgb >> 8) & 0xFF, rgb & 0xFF);
+                        }
+                    }
+                    size -= count;
+                }
+            }
+
+            long sum = checked.getChecksum().getValue();
+            if (in.readLong() != sum) {
+                throw new IOException(file + " is corrupt");
+            }
+            checkpointStart = start;
+            checkpointActions = actions;
+            return start;
+        }
+    }
+
+    /**
+     * @return LSNs that segments start at, in order
+     */
+    private List<Long> segmentStarts() {
+        List<Long> starts = new ArrayList<Long>();
+        String[] files = directory.list();
+        if (files != null) {
+            for (String file : files) {
+                if (file.endsWith(SEGMENT_SUFFIX)) {
+                    starts.add(new Long(file.substring(0, file.length() - SEGMENT_SUFFIX.length())));
+                }
+            }
+        }
+        Collections.sort(starts);
+        return starts;
+    }
+
+    /**
+     * @param start
+     *            LSN of a segment's first record
+     * @return its file
+     */
+    private File segmentFile(long start) {
+        return new File(directory, String.format("%020d", start) + SEGMENT_SUFFIX);
+    }
+}
@@ -0,0 +1,117 @@
+package tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import protocol.FrameReader;
+import protocol.Frames;
+
+/**
+ * Testing strategy: make sure draw actions come back out of a frame exactly as
+ * they went in, partitioned on colors vs doge (no color), small vs big vs
+ * negative numbers, and short vs long segments. Make sure frames are smaller
+ * than the lines they replace, and that bad frames are caught. Make sure a
+ * FrameReader hands back lines and frames in order when they're mixed on one
+ * stream, including at the very end of it.
+ */
+public class FramesTest {
+
+    @Test
+    public void roundTripTest() {
+        assertArrayEquals(new int[] { 0, 10, 20, 13, 18, 3, 255, 0, 128 }, roundTrip(0, 10, 20, 13, 18, 3, 255, 0, 128));
+        assertArrayEquals(new int[] { 100, 799, 599, 0, 0, 10, 0, 0, 0 }, roundTrip(100, 799, 599, 0, 0, 10, 0, 0, 0));
+        // way off the board
+        assertArrayEquals(new int[] { 5, -300, 40000, 70000, -2, 1, 1, 2, 3 },
+                roundTrip(5, -300, 40000, 70000, -2, 1, 1, 2, 3));
+    }
+
+    @Test
+    public void dogeTest() {
+        byte[] frame = Frames.encodeDraw(7, -1, -1, -1, -1, -1, -1, -1, -1);
+        assertEquals(Frames.DRAW_NO_COLOR, frame[0]);
+        assertArrayEquals(new int[] { 7, -1, -1, -1, -1, -1, -1, -1, -1 }, decode(frame));
+    }
+
+    @Test
+    public void sizeTest() {
+        // a short drag on the board, much smaller than its line
+        String line = "DRAW Default 420 317 423 319 3 163 31 52";
+        byte[] frame = Frames.encodeDraw(0, 420, 317, 423, 319, 3, 163, 31, 52);
+        assertEquals(2 + 1 + 2 + 2 + 1 + 1 + 1 + 3, frame.length);
+        assertTrue(frame.length * 3 < line.length());
+        assertTrue(Frames.isFrameStart(frame[0]));
+        assertTrue(!Frames.isFrameStart('D'));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cutOffTest() {
+        byte[] frame = Frames.encodeDraw(0, 1, 2, 3, 4, 5, 6, 7, 8);
+        byte[] payload = new byte[frame.length - 2];
+        System.arraycopy(frame, 2, payload, 0, payload.length);
+        Frames.decodeDraw(frame[0], payload, payload.length - 1, new int[9]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badTypeTest() {
+        Frames.decodeDraw(9, new byte[0], 0, new int[9]);
+    }
+
+    @Test
+    public void readerTest() throws IOException {
+        byte[] frame1 = Frames.encodeDraw(3, 1, 2, 3, 4, 5, 6, 7, 8);
+        byte[] frame2 = Frames.encodeDraw(4, -1, -1, -1, -1, -1, -1, -1, -1);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write("HELLO\r\n".getBytes());
+        stream.write(frame1);
+        stream.write(frame2);
+        stream.write("SELECT Default user1\n".getBytes());
+        stream.write(frame1);
+
+        FrameReader in = new FrameReader(new ByteArrayInputStream(stream.toByteArray()));
+        int[] values = new int[9];
+
+        assertEquals(FrameReader.LINE, in.next());
+        assertEquals("HELLO", in.line());
+
+        assertEquals(Frames.DRAW, in.next());
+        Frames.decodeDraw(Frames.DRAW, in.payload(), in.length(), values);
+        assertArrayEquals(new int[] { 3, 1, 2, 3, 4, 5, 6, 7, 8 }, values);
+
+        assertEquals(Frames.DRAW_NO_COLOR, in.next());
+        assertEquals(frame2.length - 2, in.length());
+
+        assertEquals(FrameReader.LINE, in.next());
+        assertEquals("SELECT Default user1", in.line());
+
+        assertEquals(Frames.DRAW, in.next());
+        assertEquals(FrameReader.END, in.next());
+    }
+
+    /**
+     * @return what comes back out of a frame made of the values
+     */
+    private int[] roundTrip(int header, int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue) {
+        return decode(Frames.encodeDraw(header, x1, y1, x2, y2, stroke, red, green, blue));
+    }
+
+    /**
+     * @return values in a whole frame
+     */
+    private int[] decode(byte[] frame) {
+        assertEquals(frame.length - 2, frame[1]);
+        byte[] payload = new byte[frame.length - 2];
+        System.arraycopy(frame, 2, payload, 0, payload.length);
+
+        int[] values = new int[9];
+        Frames.decodeDraw(frame[0], payload, payload.length, values);
+        return values;
+    }
+}
@@ -0,0 +1,103 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import server.HashRing;
+
+/**
+ * Testing strategy: make sure every node agrees on who owns a board however
+ * the nodes are listed, that boards are spread about evenly, that adding a
+ * node only takes boards for itself (and not many), and that duplicate names
+ * ("(1)", "(2)", ...) stay with the board they duplicate. Partition on one vs
+ * many nodes, and names with and without something in parens at the end, in
+ * the middle, or with nothing before it.
+ */
+public class HashRingTest {
+    private static final List<String> NODES = Arrays.asList("localhost:5001", "localhost:5002", "localhost:5003");
+    private static final int BOARDS = 3000;
+
+    @Test
+    public void oneNodeTest() {
+        HashRing ring = new HashRing(Arrays.asList("localhost:5001"));
+        assertEquals("localhost:5001", ring.owner("Default"));
+        assertEquals("localhost:5001", ring.owner("anything"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noNodesTest() {
+        new HashRing(Arrays.<String> asList());
+    }
+
+    @Test
+    public void orderTest() {
+        HashRing ring = new HashRing(NODES);
+        HashRing reversed = new HashRing(Arrays.asList("localhost:5003", "localhost:5002", "localhost:5001"));
+        for (int i = 0; i < BOARDS; ++i) {
+            assertEquals(ring.owner("board" + i), reversed.owner("board" + i));
+        }
+    }
+
+    @Test
+    public void spreadTest() {
+        HashRing ring = new HashRing(NODES);
+        Map<String, Integer> owned = new HashMap<String, Integer>();
+        for (int i = 0; i < BOARDS; ++i) {
+            String owner = ring.owner("board" + i);
+            owned.put(owner, owned.containsKey(owner) ? owned.get(owner) + 1 : 1);
+        }
+
+        // a third each, give or take
+        for (String node : NODES) {
+            assertTrue(owned.get(node) > BOARDS / 5);
+            assertTrue(owned.get(node) < BOARDS / 2);
+        }
+    }
+
+    @Test
+    public void addNodeTest() {
+        HashRing ring = new HashRing(NODES);
+        HashRing bigger = new HashRing(Arrays.asList("localhost:5001", "localhost:5002", "localhost:5003",
+                "localhost:5004"));
+
+        int moved = 0;
+        for (int i = 0; i < BOARDS; ++i) {
+            String before = ring.owner("board" + i);
+            String after = bigger.owner("board" + i);
+            if (!before.equals(after)) {
+                // only ever to the new node
+                assertEquals("localhost:5004", after);
+                ++moved;
+            }
+        }
+        // about a quarter of them
+        assertTrue(moved > BOARDS / 8);
+        assertTrue(moved < BOARDS / 2);
+    }
+
+    @Test
+    public void duplicatesTest() {
+        HashRing ring = new HashRing(NODES);
+        for (int i = 0; i < 100; ++i) {
+            String name = "board" + i;
+            assertEquals(ring.owner(name), ring.owner(name + "(1)"));
+            assertEquals(ring.owner(name), ring.owner(name + "(12)"));
+            // only numbers are duplicates
+            assertEquals(ring.owner(name + "(x)"), ring.owner(name + "(x)(1)"));
+            // only at the end
+            assertEquals(ring.owner(name + "(1)b"), ring.owner(name + "(1)b(1)"));
+        }
+        // a name that's all parens is a name, not a duplicate, so its
+        // duplicates are "(1)(1)", "(1)(2)"...
+        assertEquals(ring.owner("(1)"), ring.owner("(1)(1)"));
+        assertEquals(ring.owner("(1)"), ring.owner("(1)(2)"));
+        assertEquals(ring.owner("(12)"), ring.owner("(12)(1)"));
+    }
+}
@@ -0,0 +1,108 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import server.MappedStrokeLog;
+import server.StrokeStore;
+
+/**
+ * Testing strategy: make sure segments come back out of the mapped file
+ * exactly as they went in, in order, as a string and through a visitor,
+ * including across region boundaries (where the file has to grow). Partition
+ * on normal colors vs doge (no color), empty vs cleared logs, and reusing the
+ * file after clearing or after closing the log.
+ */
+public class MappedStrokeLogTest {
+
+    @Test
+    public void appendTest() throws IOException {
+        MappedStrokeLog log = new MappedStrokeLog(tempFile());
+        assertEquals("", string(log, 0, 0));
+
+        log.append(0, 7, 2, 9, 10, 157, 33, 56);
+        log.append(88, 96, 72, 30, 3, 33, 56, 0);
+        // doge
+        log.append(-1, -1, -1, -1, -1, -1, -1, -1);
+
+        assertEquals(3, log.size());
+        assertEquals("0 7 2 9 10 157 33 56 88 96 72 30 3 33 56 0 -1 -1 -1 -1 -1 -1 -1 -1", string(log, 0, 3));
+        assertEquals("-1 -1 -1 -1 -1 -1 -1 -1", string(log, 2, 3));
+    }
+
+    @Test
+    public void clearTest() throws IOException {
+        MappedStrokeLog log = new MappedStrokeLog(tempFile());
+        log.append(0, 7, 2, 9, 10, 157, 33, 56);
+        log.clear();
+        assertEquals(0, log.size());
+        assertEquals("", string(log, 0, 0));
+
+        // written over the old one
+        log.append(1, 2, 3, 4, 5, 6, 7, 8);
+        assertEquals("1 2 3 4 5 6 7 8", string(log, 0, 1));
+    }
+
+    @Test
+    public void closeTest() throws IOException {
+        File file = tempFile();
+        MappedStrokeLog log = new MappedStrokeLog(file);
+        log.append(0, 7, 2, 9, 10, 157, 33, 56);
+        log.close();
+
+        // a new log on the same file, like a board read back in
+        log = new MappedStrokeLog(file);
+        assertEquals(0, log.size());
+        log.append(1, 2, 3, 4, 5, 6, 7, 8);
+        assertEquals("1 2 3 4 5 6 7 8", string(log, 0, 1));
+        log.close();
+    }
+
+    @Test
+    public void manyRegionsTest() throws IOException {
+        // more than fit in the first mapped region
+        MappedStrokeLog log = new MappedStrokeLog(tempFile());
+        int segments = (1 << 20) + 10;
+        for (int i = 0; i < segments; ++i) {
+            log.append(i % 800, i % 600, 1, 2, 3, i % 256, 0, 0);
+        }
+        assertEquals(segments, log.size());
+
+        final int[] seen = new int[] { 0 };
+        log.visit(0, log.size(), new StrokeStore.Visitor() {
+            public void segment(int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue) {
+                int i = seen[0]++;
+                assertEquals(i % 800, x1);
+                assertEquals(i % 600, y1);
+                assertEquals(i % 256, red);
+            }
+        });
+        assertEquals(segments, seen[0]);
+
+        // a range across the region boundary
+        int boundary = 1 << 20;
+        assertEquals("575 375 1 2 3 255 0 0 576 376 1 2 3 0 0 0", string(log, boundary - 1, boundary + 1));
+    }
+
+    /**
+     * @return a new file that goes away when we're done
+     */
+    private File tempFile() throws IOException {
+        File file = File.createTempFile("strokes", ".strokes");
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * @return segments [from, to) of the log as a string
+     */
+    private String string(StrokeStore log, int from, int to) {
+        StringBuilder builder = new StringBuilder();
+        log.appendTo(builder, from, to);
+        return builder.toString();
+    }
+}
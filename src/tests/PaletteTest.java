@@ -0,0 +1,90 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+
+import org.junit.Test;
+
+import server.Palette;
+
+/**
+ * Testing strategy: make sure every color of a palette is found at its index
+ * and colors that aren't in it aren't found, and that a Usage counts each
+ * color once however many times it's used, ignores colors that aren't in the
+ * palette, and goes back to nothing when cleared. Partition on palettes that
+ * fit in one word of bits vs many, and on colors that collide in the lookup
+ * table (nearby colors) vs not.
+ */
+public class PaletteTest {
+
+    @Test
+    public void indexOfTest() {
+        Palette palette = new Palette(Color.BLACK, Color.WHITE, Color.RED, new Color(163, 31, 52));
+        assertEquals(4, palette.size());
+        assertEquals(0, palette.indexOf(0x000000));
+        assertEquals(1, palette.indexOf(0xFFFFFF));
+        assertEquals(2, palette.indexOf(0xFF0000));
+        assertEquals(3, palette.indexOf(0xA31F34));
+        assertEquals(0xA31F34, palette.color(3));
+
+        // close, but no
+        assertEquals(-1, palette.indexOf(0x000001));
+        assertEquals(-1, palette.indexOf(0xFE0000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateTest() {
+        new Palette(Color.RED, Color.BLUE, new Color(255, 0, 0));
+    }
+
+    @Test
+    public void usageTest() {
+        Palette palette = new Palette(Color.BLACK, Color.WHITE, Color.RED);
+        Palette.Usage usage = palette.newUsage();
+        assertEquals(0, usage.count());
+
+        assertTrue(usage.use(0xFF0000));
+        assertTrue(!usage.use(0xFF0000));
+        assertTrue(!usage.use(0x123456));
+        assertEquals(1, usage.count());
+        assertTrue(usage.use(0x000000));
+        assertEquals(2, usage.count());
+
+        usage.clear();
+        assertEquals(0, usage.count());
+        assertTrue(usage.use(0xFF0000));
+    }
+
+    @Test
+    public void bigPaletteTest() {
+        // a gray for every shade, 256 nearby colors across 4 words
+        Color[] grays = new Color[256];
+        for (int i = 0; i < grays.length; ++i) {
+            grays[i] = new Color(i, i, i);
+        }
+        Palette palette = new Palette(grays);
+        for (int i = 0; i < grays.length; ++i) {
+            assertEquals(i, palette.indexOf((i << 16) | (i << 8) | i));
+        }
+        assertEquals(-1, palette.indexOf(0x010000));
+
+        Palette.Usage usage = palette.newUsage();
+        assertEquals(4, usage.words());
+        for (int i = 0; i < grays.length; i += 2) {
+            usage.use((i << 16) | (i << 8) | i);
+            usage.use((i << 16) | (i << 8) | i);
+        }
+        assertEquals(128, usage.count());
+
+        // and copied word by word
+        Palette.Usage copy = palette.newUsage();
+        for (int i = 0; i < usage.words(); ++i) {
+            copy.setWord(i, usage.word(i));
+        }
+        assertEquals(128, copy.count());
+        assertTrue(!copy.use(0x000000));
+        assertTrue(copy.use(0x010101));
+    }
+}
@@ -0,0 +1,293 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+import javax.swing.JPanel;
+
+import org.junit.Test;
+
+import client.Renderer;
+import protocol.Stamps;
+
+/**
+ * Testing strategy: queue drawing, wait for the renderer to show it, then look
+ * at the pixels of its frame and at where the view was repainted. Partition on
+ * lines vs fills vs images vs stamps (known or not), one thing vs many (which
+ * should be drawn in the order they were queued, with the area around all of
+ * them, and nothing outside the board), thin vs thick strokes (including ones
+ * wider than any seen before), one frame vs many (each of which should have
+ * everything drawn in the ones before it, whichever buffer it's on), and
+ * waiting on the renderer before vs after it's closed. Replays, small (drawn in
+ * order) or big (drawn in tiles), should look exactly like their segments drawn
+ * one at a time. An accelerated renderer should paint exactly what's on its
+ * frame, partitioned on painting everywhere vs just what changed, and onto the
+ * same screen vs a new one.
+ */
+public class RendererTest {
+
+    @Test
+    public void lineTest() throws InterruptedException {
+        View view = new View();
+        Renderer renderer = new Renderer(view, 800, 600);
+
+        renderer.line(100, 100, 200, 100, 3, 255, 0, 0);
+        renderer.sync();
+        BufferedImage frame = renderer.frame();
+        assertEquals(0xFF0000, frame.getRGB(150, 100) & 0xFFFFFF);
+        assertEquals(0x000000, frame.getRGB(150, 110) & 0xFFFFFF);
+        // around the line, not the whole board
+        Rectangle dirty = view.repainted();
+        assertTrue(dirty.contains(new Rectangle(98, 98, 105, 5)));
+        assertTrue(dirty.width < 120 && dirty.height < 20);
+
+        // nothing new to show
+        renderer.sync();
+        assertNull(view.repainted());
+        renderer.close();
+    }
+
+    @Test
+    public void orderTest() throws InterruptedException {
+        View view = new View();
+        Renderer renderer = new Renderer(view, 800, 600);
+
+        renderer.line(10, 10, 20, 20, 1, 0, 0, 255);
+        renderer.fill(Color.WHITE);
+        renderer.line(400, 300, 410, 300, 40, 0, 255, 0);
+        renderer.line(400, 500, 410, 500, 2, 0, 255, 0);
+        renderer.sync();
+
+        // the fill went over the first line, but not the ones after it
+        BufferedImage frame = renderer.frame();
+        assertEquals(0xFFFFFF, frame.getRGB(15, 15) & 0xFFFFFF);
+        assertEquals(0x00FF00, frame.getRGB(405, 315) & 0xFFFFFF);
+        assertEquals(0x00FF00, frame.getRGB(405, 500) & 0xFFFFFF);
+        assertEquals(new Rectangle(0, 0, 800, 600), view.repainted());
+        renderer.close();
+    }
+
+    @Test
+    public void swapTest() throws InterruptedException {
+        View view = new View();
+        Renderer renderer = new Renderer(view, 800, 600);
+
+        // a frame each, so every other one is on the other buffer
+        for (int i = 0; i < 5; ++i) {
+            renderer.line(100 * i, 50, 100 * i + 50, 50, 5, 255, 255, 255);
+            renderer.sync();
+            BufferedImage frame = renderer.frame();
+            for (int j = 0; j <= i; ++j) {
+                assertEquals(0xFFFFFF, frame.getRGB(100 * j + 25, 50) & 0xFFFFFF);
+            }
+            assertEquals(0x000000, frame.getRGB(100 * i + 125, 50) & 0xFFFFFF);
+        }
+        renderer.close();
+    }
+
+    @Test
+    public void batchTest() throws InterruptedException {
+        Renderer renderer = new Renderer(new JPanel(), 800, 600);
+
+        // a join's worth of segments
+        for (int i = 0; i < 20000; ++i) {
+            renderer.line(i % 700, 50, i % 700 + 5, 55, 1 + i % 10, 0, 0, 255);
+        }
+        renderer.line(790, 590, 799, 599, 20, 255, 255, 0);
+        renderer.sync();
+
+        BufferedImage frame = renderer.frame();
+        assertEquals(0xFFFF00, frame.getRGB(799, 599) & 0xFFFFFF);
+        assertEquals(0x0000FF, frame.getRGB(350, 52) & 0xFFFFFF);
+        renderer.close();
+    }
+
+    @Test
+    public void imageTest() throws InterruptedException {
+        View view = new View();
+        Renderer renderer = new Renderer(view, 800, 600);
+
+        BufferedImage image = new BufferedImage(100, 50, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < 100; ++x) {
+            for (int y = 0; y < 50; ++y) {
+                image.setRGB(x, y, 0xA31F34);
+            }
+        }
+        // hanging off the edge
+        renderer.image(image, 750, 10);
+        renderer.sync();
+        BufferedImage frame = renderer.frame();
+        assertEquals(0xA31F34, frame.getRGB(799, 59) & 0xFFFFFF);
+        assertEquals(0x000000, frame.getRGB(749, 10) & 0xFFFFFF);
+        assertEquals(new Rectangle(750, 10, 50, 50), view.repainted());
+        renderer.close();
+    }
+
+    @Test
+    public void stampTest() throws InterruptedException, IOException {
+        View view = new View();
+        Renderer renderer = new Renderer(view, 800, 600);
+        BufferedImage doge = ImageIO.read(new File(Stamps.file(Stamps.DOGE)));
+        BufferedImage expected = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = expected.createGraphics();
+
+        // doge in the middle, and then hanging off the upper-left corner,
+        // should look just like the image drawn there
+        renderer.stamp(Stamps.DOGE, -1, -1);
+        renderer.sync();
+        g.drawImage(doge, 125, 25, null);
+        assertSamePixels(expected, renderer.frame());
+        assertEquals(new Rectangle(125, 25, 550, 550), view.repainted());
+
+        renderer.stamp(Stamps.DOGE, 0, 0);
+        renderer.sync();
+        g.drawImage(doge, -275, -275, null);
+        assertSamePixels(expected, renderer.frame());
+        assertEquals(new Rectangle(0, 0, 275, 275), view.repainted());
+        g.dispose();
+
+        // one we don't know isn't drawn
+        renderer.stamp(Stamps.count(), -1, -1);
+        renderer.sync();
+        assertNull(view.repainted());
+        renderer.close();
+    }
+
+    @Test
+    public void replayTest() throws InterruptedException {
+        // small and big replays, with thick strokes across tiles and some
+        // segments hanging off the board, should look just like the same
+        // segments drawn one at a time
+        for (int count : new int[] { 100, 30000 }) {
+            Renderer lines = new Renderer(new JPanel(), 800, 600);
+            Renderer replay = new Renderer(new JPanel(), 800, 600);
+            lines.fill(Color.WHITE);
+            replay.fill(Color.WHITE);
+
+            Random random = new Random(count);
+            int[] segments = new int[6 * count];
+            for (int i = 0; i < count; ++i) {
+                int x1 = random.nextInt(900) - 50;
+                int y1 = random.nextInt(700) - 50;
+                int x2 = x1 + random.nextInt(300) - 150;
+                int y2 = y1 + random.nextInt(300) - 150;
+                int stroke = i % 50 == 0 ? 40 : random.nextInt(11);
+                int red = random.nextInt(256);
+                int green = random.nextInt(256);
+                int blue = random.nextInt(256);
+                lines.line(x1, y1, x2, y2, stroke, red, green, blue);
+                System.arraycopy(new int[] { x1, y1, x2, y2, stroke, (red << 16) | (green << 8) | blue }, 0,
+                        segments, 6 * i, 6);
+            }
+            replay.replay(segments, count);
+
+            lines.sync();
+            replay.sync();
+            assertSamePixels(lines.frame(), replay.frame());
+            lines.close();
+            replay.close();
+        }
+    }
+
+    @Test
+    public void acceleratedTest() throws InterruptedException {
+        View view = new View();
+        Renderer renderer = new Renderer(view, 800, 600, true);
+        BufferedImage screen = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+
+        renderer.fill(Color.WHITE);
+        renderer.line(100, 100, 200, 100, 3, 255, 0, 0);
+        renderer.sync();
+        paint(renderer, screen, null);
+        assertSamePixels(renderer.frame(), screen);
+
+        // only what changed is copied over, and painted where it changed
+        renderer.line(300, 300, 300, 400, 10, 0, 0, 255);
+        renderer.sync();
+        Rectangle dirty = view.repainted();
+        paint(renderer, screen, dirty);
+        assertEquals(0x0000FF, screen.getRGB(300, 350) & 0xFFFFFF);
+        assertSamePixels(renderer.frame(), screen);
+
+        // a new screen to paint on gets everything
+        BufferedImage other = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+        paint(renderer, other, null);
+        assertSamePixels(renderer.frame(), other);
+        renderer.close();
+    }
+
+    @Test(timeout = 10000)
+    public void closeTest() throws InterruptedException {
+        Renderer renderer = new Renderer(new JPanel(), 800, 600);
+        renderer.line(10, 10, 20, 10, 1, 255, 255, 255);
+        renderer.close();
+        renderer.line(10, 30, 20, 30, 1, 255, 255, 255);
+
+        // drawn up to the close, and nothing to wait for after it
+        renderer.sync();
+        renderer.sync();
+        BufferedImage frame = renderer.frame();
+        assertEquals(0xFFFFFF, frame.getRGB(15, 10) & 0xFFFFFF);
+        assertEquals(0x000000, frame.getRGB(15, 30) & 0xFFFFFF);
+    }
+
+    /**
+     * Paints a renderer onto an image, like Swing would
+     *
+     * @param clip
+     *            where to paint, or null for everywhere
+     */
+    private void paint(Renderer renderer, BufferedImage screen, Rectangle clip) {
+        Graphics2D g = screen.createGraphics();
+        g.setClip(clip);
+        renderer.paint(g);
+        g.dispose();
+    }
+
+    /**
+     * Asserts that two images are the same size and have the same pixels
+     * (WhiteboardTest uses this too)
+     */
+    static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int x = 0; x < expected.getWidth(); ++x) {
+            for (int y = 0; y < expected.getHeight(); ++y) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    /**
+     * A view that remembers where it was asked to repaint
+     */
+    @SuppressWarnings("serial")
+    private static class View extends JPanel {
+        private Rectangle repainted = null;
+
+        @Override
+        public synchronized void repaint(Rectangle r) {
+            repainted = repainted == null ? new Rectangle(r) : repainted.union(r);
+        }
+
+        /**
+         * @return the area around everywhere that was repainted since the last
+         *         call, or null if nowhere was
+         */
+        private synchronized Rectangle repainted() {
+            Rectangle area = repainted;
+            repainted = null;
+            return area;
+        }
+    }
+}
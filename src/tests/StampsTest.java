@@ -0,0 +1,55 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import protocol.Stamps;
+
+/**
+ * Testing strategy: make sure stamps go in and out of a draw action's stroke
+ * unchanged, that doge is still all -1's, that line segments (strokes >= 0)
+ * aren't stamps, and that IDs we don't know are caught. Make sure stamps are
+ * placed by their middle, partitioned on the middle of the board (-1) vs a
+ * point on it, and on or hanging off of the board.
+ */
+public class StampsTest {
+
+    @Test
+    public void strokeTest() {
+        assertEquals(-1, Stamps.stroke(Stamps.DOGE));
+        for (int id = 0; id < Stamps.count() + 5; ++id) {
+            assertTrue(Stamps.isStamp(Stamps.stroke(id)));
+            assertEquals(id, Stamps.id(Stamps.stroke(id)));
+        }
+        assertFalse(Stamps.isStamp(0));
+        assertFalse(Stamps.isStamp(10));
+
+        assertTrue(Stamps.isKnown(Stamps.DOGE));
+        assertFalse(Stamps.isKnown(Stamps.count()));
+        assertFalse(Stamps.isKnown(-1));
+    }
+
+    @Test
+    public void catalogTest() {
+        for (int id = 0; id < Stamps.count(); ++id) {
+            assertTrue(new File(Stamps.file(id)).isFile());
+            assertTrue(Stamps.width(id) > 0 && Stamps.height(id) > 0);
+        }
+    }
+
+    @Test
+    public void placeTest() {
+        // doge in the middle, where it's always been
+        assertEquals((800 - 550) / 2, Stamps.left(Stamps.DOGE, -1, 800));
+        assertEquals((600 - 550) / 2, Stamps.top(Stamps.DOGE, -1, 600));
+
+        assertEquals(100 - 275, Stamps.left(Stamps.DOGE, 100, 800));
+        assertEquals(500 - 275, Stamps.top(Stamps.DOGE, 500, 600));
+        assertEquals(0, Stamps.left(Stamps.DOGE, 275, 800));
+    }
+}
@@ -0,0 +1,113 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import server.StrokeLog;
+import server.StrokeStore;
+
+/**
+ * Testing strategy: make sure segments come back out exactly as they went in,
+ * in order, both as a string and through a visitor, including across chunk
+ * boundaries and for sub-ranges. Partition on normal colors vs doge (no
+ * color), coordinates inside vs far outside of the board, empty vs cleared
+ * logs, and bad colors.
+ */
+public class StrokeLogTest {
+
+    @Test
+    public void emptyLogTest() {
+        StrokeLog log = new StrokeLog();
+        StringBuilder builder = new StringBuilder();
+        log.appendTo(builder, 0, log.size());
+
+        assertEquals(0, log.size());
+        assertEquals("", builder.toString());
+    }
+
+    @Test
+    public void appendTest() {
+        StrokeLog log = new StrokeLog();
+        log.append(0, 7, 2, 9, 10, 157, 33, 56);
+        log.append(88, 96, 72, 30, 3, 33, 56, 0);
+        // doge
+        log.append(-1, -1, -1, -1, -1, -1, -1, -1);
+
+        assertEquals(3, log.size());
+        assertEquals("0 7 2 9 10 157 33 56 88 96 72 30 3 33 56 0 -1 -1 -1 -1 -1 -1 -1 -1", string(log, 0, 3));
+
+        // just the middle one
+        assertEquals("88 96 72 30 3 33 56 0", string(log, 1, 2));
+    }
+
+    @Test
+    public void manyChunksTest() {
+        // lots more than fit in one chunk
+        StrokeLog log = new StrokeLog();
+        for (int i = 0; i < 10000; ++i) {
+            log.append(i % 800, i % 600, (i + 1) % 800, (i + 1) % 600, i % 10 + 1, i % 256, (i * 7) % 256, 255);
+        }
+        assertEquals(10000, log.size());
+
+        final int[] seen = new int[] { 0 };
+        log.visit(0, log.size(), new StrokeStore.Visitor() {
+            public void segment(int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue) {
+                int i = seen[0]++;
+                assertEquals(i % 800, x1);
+                assertEquals(i % 600, y1);
+                assertEquals((i + 1) % 800, x2);
+                assertEquals((i + 1) % 600, y2);
+                assertEquals(i % 10 + 1, stroke);
+                assertEquals(i % 256, red);
+                assertEquals((i * 7) % 256, green);
+                assertEquals(255, blue);
+            }
+        });
+        assertEquals(10000, seen[0]);
+
+        // a range that crosses the first chunk boundary
+        assertEquals("96 496 97 497 7 0 0 255 97 497 98 498 8 1 7 255", string(log, 4096, 4098));
+    }
+
+    @Test
+    public void clearTest() {
+        StrokeLog log = new StrokeLog();
+        log.append(0, 7, 2, 9, 10, 157, 33, 56);
+        log.clear();
+        assertEquals(0, log.size());
+
+        // still usable after clearing
+        log.append(1, 2, 3, 4, 5, 6, 7, 8);
+        assertEquals("1 2 3 4 5 6 7 8", string(log, 0, 1));
+    }
+
+    @Test
+    public void clampTest() {
+        // way off the board still fits, just clamped
+        StrokeLog log = new StrokeLog();
+        log.append(-100, 40000, 801, -40000, 3, 0, 0, 0);
+        assertEquals("-100 32767 801 -32768 3 0 0 0", string(log, 0, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badColorTest() {
+        new StrokeLog().append(0, 0, 1, 1, 3, 0, 256, 0);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void badRangeTest() {
+        StrokeLog log = new StrokeLog();
+        log.append(0, 0, 1, 1, 3, 0, 0, 0);
+        string(log, 0, 2);
+    }
+
+    /**
+     * @return segments [from, to) of the log as a string
+     */
+    private String string(StrokeLog log, int from, int to) {
+        StringBuilder builder = new StringBuilder();
+        log.appendTo(builder, from, to);
+        return builder.toString();
+    }
+}
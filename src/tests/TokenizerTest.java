@@ -0,0 +1,105 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+import protocol.Tokenizer;
+
+/**
+ * Testing strategy: make sure a tokenizer reads the same tokens split(" ")
+ * does, partitioned on verbs in vs out of the table, strings vs ints (positive,
+ * negative, biggest and smallest, and not numbers at all), lines with and
+ * without trailing spaces, and running out of tokens. Make sure a repeated
+ * token isn't made again (how much parsing allocates is measured by
+ * benchmarks.TokenizerBenchmark).
+ */
+public class TokenizerTest {
+    private static final String[] VERBS = new String[] { "HELLO", "SELECT", "DRAW" };
+
+    @Test
+    public void verbTest() {
+        Tokenizer tokens = new Tokenizer();
+        assertEquals(0, tokens.reset("HELLO").nextOf(VERBS));
+        assertEquals(2, tokens.reset("DRAW Default 1 2 3 4 5 6 7 8").nextOf(VERBS));
+        // prefixes and longer words aren't verbs
+        assertEquals(-1, tokens.reset("DRAWS Default").nextOf(VERBS));
+        assertEquals(-1, tokens.reset("DRA").nextOf(VERBS));
+        assertEquals(-1, tokens.reset("").nextOf(VERBS));
+    }
+
+    @Test
+    public void drawTest() {
+        Tokenizer tokens = new Tokenizer().reset("DRAW Default 0 -7 800 600 3 -1 255 +5");
+        assertEquals(2, tokens.nextOf(VERBS));
+        assertEquals("Default", tokens.nextToken());
+        assertEquals(0, tokens.nextInt());
+        assertEquals(-7, tokens.nextInt());
+        assertEquals(800, tokens.nextInt());
+        assertEquals(600, tokens.nextInt());
+        assertEquals(3, tokens.nextInt());
+        assertEquals(-1, tokens.nextInt());
+        assertEquals(255, tokens.nextInt());
+        assertEquals(5, tokens.nextInt());
+        assertTrue(!tokens.hasNext());
+    }
+
+    @Test
+    public void limitsTest() {
+        Tokenizer tokens = new Tokenizer().reset("2147483647 -2147483648");
+        assertEquals(Integer.MAX_VALUE, tokens.nextInt());
+        assertEquals(Integer.MIN_VALUE, tokens.nextInt());
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void overflowTest() {
+        new Tokenizer().reset("2147483648").nextInt();
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void notANumberTest() {
+        new Tokenizer().reset("12a").nextInt();
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void emptyNumberTest() {
+        // two spaces in a row make an empty token, like split
+        Tokenizer tokens = new Tokenizer().reset("1  2");
+        assertEquals(1, tokens.nextInt());
+        tokens.nextInt();
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void noMoreTokensTest() {
+        Tokenizer tokens = new Tokenizer().reset("BYE Default");
+        tokens.nextToken();
+        tokens.nextToken();
+        tokens.nextToken();
+    }
+
+    @Test
+    public void featuresTest() {
+        // trailing spaces don't make more tokens
+        Tokenizer tokens = new Tokenizer().reset("SELECT Default user1 RASTER ");
+        assertEquals(1, tokens.nextOf(VERBS));
+        assertEquals("Default", tokens.nextToken());
+        assertEquals("user1", tokens.nextToken());
+        assertTrue(tokens.hasNext());
+        assertEquals("RASTER", tokens.nextToken());
+        assertTrue(!tokens.hasNext());
+    }
+
+    @Test
+    public void sameTokenTest() {
+        // the same board name on every line is only made once
+        Tokenizer tokens = new Tokenizer();
+        tokens.reset("DRAW Default 1").nextOf(VERBS);
+        String name = tokens.nextToken();
+        tokens.reset("DRAW Default 2").nextOf(VERBS);
+        assertSame(name, tokens.nextToken());
+    }
+}
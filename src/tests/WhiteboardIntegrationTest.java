@@ -1,15 +1,34 @@
 package tests;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Test;
 
+import protocol.FrameReader;
+import protocol.Frames;
+import server.HashRing;
+import server.ServerConfig;
+import server.ServerConfig.SlowClientPolicy;
+import server.ServerConfig.Transport;
 import server.WhiteboardServer;
 
 /**
@@ -17,7 +36,21 @@ import server.WhiteboardServer;
  * send to each other, ensuring that the right message gets sent to the right
  * clients. Partition on who should get the message (ie. all Artists, all
  * clients connected to a whiteboard, all clients but the one who send it, just
- * the client who sent it)
+ * the client who sent it). Also run a session over the SELECTOR transport to
+ * make sure it speaks exactly the same grammar as the BLOCKING one. Partition
+ * joins on whether the client asked for a snapshot, a stream, both or neither,
+ * and draw actions on whether they're sent and received as lines or frames.
+ * Make sure clients that can't keep up are dealt with the way the server is
+ * set to, and that clients drawing at the same time are heard by everyone in
+ * the same order. Run a cluster of servers to make sure clients end up on the
+ * node that has their board, and boards are listed and announced everywhere.
+ * Follow a primary with a standby to make sure the standby gets every board
+ * and every change, sends clients to the primary while it's up, and has the
+ * boards ready for them as soon as it's gone. Start a server from another's
+ * write-ahead log to make sure every board comes back as it was, and let
+ * boards sit idle to make sure they're spilled, still listed, and come back
+ * as they were when selected. Partition clients on whether they asked for the
+ * artsy meter by itself, and draws on whether they change it.
  */
 public class WhiteboardIntegrationTest {
     private final String local = "localhost";
@@ -466,6 +499,1142 @@ public class WhiteboardIntegrationTest {
 
     }
 
+    /**
+     * test that "SELECT" messages asking for "RASTER" get a snapshot and only
+     * the actions after it, while everyone else still gets the whole history
+     */
+    @Test(timeout = 10000)
+    public void rasterSelectTest() {
+        try {
+            final int port = 9113;
+            startServer(port);
+
+            // we pretend to be the client
+            final Socket socket = new Socket(local, port);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+            // say hello
+            out.println("HELLO");
+            assertEquals("LIST Default", in.readLine());
+
+            // select and draw in black
+            out.println("SELECT Default user1 RASTER");
+            String select = in.readLine();
+            assertTrue(select.startsWith("255 255 255 0 USERS user1 SNAPSHOT "));
+            assertTrue(select.endsWith(" ACTIONS "));
+            out.println("DRAW Default 0 0 5 5 7 0 0 0");
+            assertEquals("DRAW 7 0 0 5 5 7 0 0 0", in.readLine());
+
+            // user2 gets the same snapshot plus the draw after it
+            final Socket socket2 = new Socket(localIP, port);
+            BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+            PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+            out2.println("SELECT Default user2 RASTER");
+            String snapshot = select.substring(select.indexOf("SNAPSHOT "), select.indexOf(" ACTIONS "));
+            assertEquals("255 255 255 7 USERS user1 user2 " + snapshot + " ACTIONS 0 0 5 5 7 0 0 0",
+                    in2.readLine());
+            assertEquals("NEWUSER user2", in.readLine());
+
+            // user3 didn't ask, so gets the plain history
+            final Socket socket3 = new Socket(localIP, port);
+            BufferedReader in3 = new BufferedReader(new InputStreamReader(socket3.getInputStream()));
+            PrintWriter out3 = new PrintWriter(socket3.getOutputStream(), true);
+            out3.println("SELECT Default user3");
+            assertEquals("255 255 255 7 USERS user1 user2 user3 ACTIONS 0 0 5 5 7 0 0 0", in3.readLine());
+
+            socket.close();
+            socket2.close();
+            socket3.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * test that "SELECT" messages asking for "STREAM" get the same board in
+     * bounded "SNAPSHOT_CHUNK" lines between "SNAPSHOT_BEGIN" and
+     * "SNAPSHOT_END"
+     */
+    @Test(timeout = 10000)
+    public void streamSelectTest() {
+        try {
+            final int port = 9115;
+            startServer(port);
+
+            // we pretend to be the client
+            final Socket socket = new Socket(local, port);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+            out.println("HELLO");
+            assertEquals("LIST Default", in.readLine());
+            out.println("SELECT Default user1 STREAM");
+            assertEquals("SNAPSHOT_BEGIN 255 255 255 0 USERS user1", in.readLine());
+            assertEquals("SNAPSHOT_END", in.readLine());
+
+            // more than fits in one chunk
+            for (int i = 0; i < 1500; ++i) {
+                out.println("DRAW Default " + i % 800 + " 0 " + i % 800 + " 1 1 0 0 0");
+                assertEquals("DRAW 7 " + i % 800 + " 0 " + i % 800 + " 1 1 0 0 0", in.readLine());
+            }
+
+            // user2 gets every action, 1024 and then the rest
+            final Socket socket2 = new Socket(localIP, port);
+            BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+            PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+            out2.println("SELECT Default user2 STREAM");
+            assertEquals("SNAPSHOT_BEGIN 255 255 255 7 USERS user1 user2", in2.readLine());
+            String chunk1 = in2.readLine();
+            assertTrue(chunk1.startsWith("SNAPSHOT_CHUNK ACTIONS 0 0 0 1 1 0 0 0 "));
+            assertEquals(2 + 1024 * 8, chunk1.split(" ").length);
+            String chunk2 = in2.readLine();
+            assertEquals(2 + 476 * 8, chunk2.split(" ").length);
+            assertTrue(chunk2.endsWith(" 699 0 699 1 1 0 0 0"));
+            assertEquals("SNAPSHOT_END", in2.readLine());
+            assertEquals("NEWUSER user2", in.readLine());
+
+            // user3 gets the snapshot in pieces, with nothing after it
+            final Socket socket3 = new Socket(localIP, port);
+            BufferedReader in3 = new BufferedReader(new InputStreamReader(socket3.getInputStream()));
+            PrintWriter out3 = new PrintWriter(socket3.getOutputStream(), true);
+            out3.println("SELECT Default user3 RASTER STREAM");
+            assertEquals("SNAPSHOT_BEGIN 255 255 255 7 USERS user1 user2 user3", in3.readLine());
+            String line;
+            while ((line = in3.readLine()).startsWith("SNAPSHOT_CHUNK PNG ")) {
+                assertTrue(line.length() <= "SNAPSHOT_CHUNK PNG ".length() + 16384);
+            }
+            assertEquals("SNAPSHOT_END", line);
+
+            socket.close();
+            socket2.close();
+            socket3.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * test that a server with compaction turned on collapses a board's history,
+     * so new users get a snapshot with nothing after it
+     */
+    @Test(timeout = 10000)
+    public void compactionTest() {
+        try {
+            final int port = 9114;
+            startServer(port, new ServerConfig().setCompaction(2, 0, 0));
+
+            // we pretend to be the client
+            final Socket socket = new Socket(local, port);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+            out.println("HELLO");
+            assertEquals("LIST Default", in.readLine());
+            out.println("SELECT Default user1");
+            assertEquals("255 255 255 0 USERS user1 ACTIONS ", in.readLine());
+
+            // two draws reach the limit
+            out.println("DRAW Default 0 0 5 0 1 0 0 0");
+            assertEquals("DRAW 7 0 0 5 0 1 0 0 0", in.readLine());
+            out.println("DRAW Default 0 3 0 3 1 255 0 0");
+            assertEquals("DRAW 14 0 3 0 3 1 255 0 0", in.readLine());
+
+            // give the compactor a chance to run
+            Thread.sleep(1500);
+
+            // the history is just the checkpoint's runs now
+            final Socket socket2 = new Socket(localIP, port);
+            BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+            PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+            out2.println("SELECT Default user2");
+            assertEquals("255 255 255 14 USERS user1 user2 ACTIONS 0 0 5 0 1 0 0 0 0 3 0 3 1 255 0 0",
+                    in2.readLine());
+
+            // and a snapshot has nothing after it
+            final Socket socket3 = new Socket(localIP, port);
+            BufferedReader in3 = new BufferedReader(new InputStreamReader(socket3.getInputStream()));
+            PrintWriter out3 = new PrintWriter(socket3.getOutputStream(), true);
+            out3.println("SELECT Default user3 RASTER");
+            assertTrue(in3.readLine().endsWith(" ACTIONS "));
+
+            socket.close();
+            socket2.close();
+            socket3.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * test that a whole session (hello, select, draw, bye) looks the same over
+     * the SELECTOR transport as it does over the blocking one
+     */
+    @Test(timeout = 10000)
+    public void selectorTransportTest() {
+        try {
+            final int port = 9111;
+            startServer(port, new ServerConfig().setTransport(Transport.SELECTOR).setIOLoops(2));
+
+            // we pretend to be the client
+            final Socket socket = new Socket(local, port);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+            // we pretend to be another client! (on the other loop)
+            final Socket socket2 = new Socket(localIP, port);
+            BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+            PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+
+            // say hello
+            out.println("HELLO");
+            out2.println("HELLO");
+
+            // expect the list of whiteboards (just default right now)
+            assertEquals("LIST Default", in.readLine());
+            assertEquals("LIST Default", in2.readLine());
+
+            // select Default board with username user1
+            out.println("SELECT Default user1");
+            assertEquals("255 255 255 0 USERS user1 ACTIONS ", in.readLine());
+
+            // Draw from (0,0) to (5,5) with stroke 7 in black
+            out.println("DRAW Default 0 0 5 5 7 0 0 0");
+            assertEquals("DRAW 7 0 0 5 5 7 0 0 0", in.readLine());
+
+            // user2 gets the history, user1 hears about user2
+            out2.println("SELECT Default user2");
+            assertEquals("255 255 255 7 USERS user1 user2 ACTIONS 0 0 5 5 7 0 0 0", in2.readLine());
+            assertEquals("NEWUSER user2", in.readLine());
+
+            // two requests in one packet should be framed as two lines
+            out2.print("DRAW Default 1 7 20 25 7 255 0 0\nCLEAR Default\n");
+            out2.flush();
+            assertEquals("DRAW 14 1 7 20 25 7 255 0 0", in.readLine());
+            assertEquals("CLEAR", in.readLine());
+            assertEquals("DRAW 14 1 7 20 25 7 255 0 0", in2.readLine());
+            assertEquals("CLEAR", in2.readLine());
+
+            // now one leaves, and its connection gets closed
+            out.println("BYE Default user1");
+            assertEquals("BYEUSER user1", in2.readLine());
+            assertNull(in.readLine());
+
+            socket.close();
+            socket2.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * test that a server keeping its boards in mapped files sends the same
+     * history as one that keeps them on the heap
+     */
+    @Test(timeout = 10000)
+    public void mappedStorageTest() {
+        try {
+            final int port = 9112;
+            File storage = Files.createTempDirectory("boards").toFile();
+            storage.deleteOnExit();
+            startServer(port, new ServerConfig().setStorageDirectory(storage));
+
+            // we pretend to be the client
+            final Socket socket = new Socket(local, port);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+            // make a board with a name that isn't a nice file name
+            out.println("HELLO");
+            assertEquals("LIST Default", in.readLine());
+            out.println("NEW a/b 0 0 0");
+            assertEquals("NEWNAME a/b", in.readLine());
+            assertNull(in.readLine());
+            socket.close();
+
+            // draw on it, including a doge
+            final Socket socket2 = new Socket(localIP, port);
+            BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+            PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+            out2.println("SELECT a/b user1");
+            assertEquals("0 0 0 0 USERS user1 ACTIONS ", in2.readLine());
+            out2.println("DRAW a/b 0 0 5 5 7 255 0 0");
+            assertEquals("DRAW 7 0 0 5 5 7 255 0 0", in2.readLine());
+            out2.println("DRAW a/b -1 -1 -1 -1 -1 -1 -1 -1");
+            assertEquals("DRAW 7 -1 -1 -1 -1 -1 -1 -1 -1", in2.readLine());
+
+            // a new user gets the history out of the file
+            final Socket socket3 = new Socket(localIP, port);
+            BufferedReader in3 = new BufferedReader(new InputStreamReader(socket3.getInputStream()));
+            PrintWriter out3 = new PrintWriter(socket3.getOutputStream(), true);
+            out3.println("SELECT a/b user2");
+            assertEquals("0 0 0 7 USERS user1 user2 ACTIONS 0 0 5 5 7 255 0 0 -1 -1 -1 -1 -1 -1 -1 -1",
+                    in3.readLine());
+
+            socket2.close();
+            socket3.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * test that a client that asked for "BINARY" gets its board ID, can send
+     * draw actions as frames, and gets everyone's draw actions as frames,
+     * while a text client on the same board sees nothing different
+     */
+    @Test(timeout = 10000)
+    public void binaryDrawTest() {
+        startServer(9116);
+        binarySession(9116);
+    }
+
+    /**
+     * test the same binary session over the SELECTOR transport
+     */
+    @Test(timeout = 10000)
+    public void binarySelectorTest() {
+        startServer(9117, new ServerConfig().setTransport(Transport.SELECTOR).setIOLoops(2));
+        binarySession(9117);
+    }
+
+    /**
+     * test that a server batching broadcasts still sends every draw, in order,
+     * whether the batch fills up or its window runs out, and that a draw
+     * waiting in a batch comes before a clear made after it
+     */
+    @Test(timeout = 10000)
+    public void batchingTest() {
+        try {
+            final int port = 9118;
+            startServer(port, new ServerConfig().setBatching(50, 3));
+
+            // we pretend to be the client
+            final Socket socket = new Socket(local, port);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println("HELLO");
+            assertEquals("LIST Default", in.readLine());
+            out.println("SELECT Default user1");
+            assertEquals("255 255 255 0 USERS user1 ACTIONS ", in.readLine());
+
+            final Socket socket2 = new Socket(localIP, port);
+            BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+            PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+            out2.println("SELECT Default user2");
+            assertEquals("255 255 255 0 USERS user1 user2 ACTIONS ", in2.readLine());
+            assertEquals("NEWUSER user2", in.readLine());
+
+            // three fill up a batch
+            out.println("DRAW Default 0 0 1 0 1 0 0 0");
+            out.println("DRAW Default 1 0 2 0 1 0 0 0");
+            out.println("DRAW Default 2 0 3 0 1 0 0 0");
+            for (BufferedReader reader : new BufferedReader[] { in, in2 }) {
+                assertEquals("DRAW 7 0 0 1 0 1 0 0 0", reader.readLine());
+                assertEquals("DRAW 7 1 0 2 0 1 0 0 0", reader.readLine());
+                assertEquals("DRAW 7 2 0 3 0 1 0 0 0", reader.readLine());
+            }
+
+            // one by itself waits out the window
+            out2.println("DRAW Default 5 5 6 6 2 255 0 0");
+            assertEquals("DRAW 14 5 5 6 6 2 255 0 0", in.readLine());
+            assertEquals("DRAW 14 5 5 6 6 2 255 0 0", in2.readLine());
+
+            // a clear doesn't jump ahead of a waiting draw
+            out.println("DRAW Default 7 7 8 8 2 0 255 0");
+            out.println("CLEAR Default");
+            for (BufferedReader reader : new BufferedReader[] { in, in2 }) {
+                assertEquals("DRAW 21 7 7 8 8 2 0 255 0", reader.readLine());
+                assertEquals("CLEAR", reader.readLine());
+            }
+
+            socket.close();
+            socket2.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * test that a client that doesn't keep up is cut off once its queue is
+     * full, when the server is set to DISCONNECT, and everyone else on the
+     * board hears that it left
+     */
+    @Test(timeout = 20000)
+    public void slowClientDisconnectTest() {
+        try {
+            final int port = 9119;
+            startServer(port, new ServerConfig().setQueueLimit(1000, SlowClientPolicy.DISCONNECT, 0));
+            assertCutOff(port);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * test that a client that didn't ask for "STREAM" is cut off like with
+     * DISCONNECT when the server is set to COALESCE, since it wouldn't know
+     * what to do with the board coming again
+     */
+    @Test(timeout = 20000)
+    public void slowClientCoalesceLegacyTest() {
+        try {
+            final int port = 9134;
+            startServer(port, new ServerConfig().setQueueLimit(1000, SlowClientPolicy.COALESCE, 0));
+            assertCutOff(port);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * test that a client that doesn't keep up is waited for, when the server
+     * is set to BLOCK, so it hears every draw even though its queue was full
+     * (with so short a queue, it's full after nearly every draw)
+     */
+    @Test(timeout = 20000)
+    public void slowClientBlockTest() {
+        try {
+            final int port = 9133;
+            startServer(port, new ServerConfig().setQueueLimit(10, SlowClientPolicy.BLOCK, 10000));
+
+            final Socket socket = new Socket(localIP, port);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println("HELLO");
+            assertEquals("LIST Default", in.readLine());
+            out.println("SELECT Default user1");
+            assertEquals("255 255 255 0 USERS user1 ACTIONS ", in.readLine());
+            Thread drawer = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        drawLots(port);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            drawer.start();
+
+            for (int i = 0; i < LOTS; ++i) {
+                String line = in.readLine();
+                assertTrue("not a draw: " + line, line.startsWith("DRAW "));
+            }
+            assertEquals("CLEAR", in.readLine());
+            drawer.join();
+            socket.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * test that a "STREAM" client that doesn't keep up is sent the board again
+     * instead of what it missed, when the server is set to COALESCE, then
+     * what it was told after the board when it joined, and hears everything
+     * after that
+     */
+    @Test(timeout = 20000)
+    public void slowClientCoalesceTest() {
+        try {
+            final int port = 9120;
+            startServer(port, new ServerConfig().setQueueLimit(1000, SlowClientPolicy.COALESCE, 0));
+
+            BufferedReader in = slowClient(port, "SELECT Default user1 STREAM ARTSY");
+            assertEquals("SNAPSHOT_BEGIN 255 255 255 0 USERS user1", in.readLine());
+            assertEquals("SNAPSHOT_END", in.readLine());
+            assertEquals("ARTSY 0", in.readLine());
+            drawLots(port);
+
+            int draws = 0;
+            String line;
+            while (!(line = in.readLine()).startsWith("SNAPSHOT_BEGIN")) {
+                assertTrue(line.startsWith("DRAW ") || line.startsWith("ARTSY "));
+                ++draws;
+            }
+            assertTrue(draws < LOTS);
+            assertEquals("SNAPSHOT_BEGIN 255 255 255 7 USERS user1", line);
+
+            // the board, the meter again, then whatever came after it; a board
+            // that hasn't all gone out when it falls behind again starts over
+            while (!(line = in.readLine()).equals("SNAPSHOT_END")) {
+                assertTrue("not part of the board: " + line,
+                        line.startsWith("SNAPSHOT_CHUNK ") || line.startsWith("SNAPSHOT_BEGIN "));
+            }
+            assertEquals("ARTSY 7", in.readLine());
+            while (!(line = in.readLine()).equals("CLEAR")) {
+                assertTrue(line.startsWith("SNAPSHOT_") || line.startsWith("DRAW ") || line.startsWith("ARTSY "));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * test that a client's reply to joining a board doesn't count against its
+     * queue's limit, so a "STREAM" client joining a board that takes more
+     * messages than the limit isn't sent it again on the next draw
+     */
+    @Test(timeout = 20000)
+    public void bigJoinTest() {
+        try {
+            final int port = 9132;
+            startServer(port, new ServerConfig().setQueueLimit(2, SlowClientPolicy.COALESCE, 0));
+
+            // enough for a few chunks
+            final Socket artist = new Socket(localIP, port);
+            BufferedReader artistIn = new BufferedReader(new InputStreamReader(artist.getInputStream()));
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(artist.getOutputStream())));
+            out.println("HELLO");
+            out.flush();
+            assertEquals("LIST Default", artistIn.readLine());
+            for (int i = 0; i < 3000; ++i) {
+                out.println("DRAW Default " + (i % 800) + " 10 " + (i % 800) + " 20 1 0 0 0");
+            }
+            // everything before it has been read once this is answered
+            out.println("HELLO");
+            out.flush();
+            assertEquals("LIST Default", artistIn.readLine());
+
+            // the chunks go on its queue as it reads them, then the draw
+            BufferedReader in = slowClient(port, "SELECT Default user1 STREAM");
+            assertTrue(in.readLine().startsWith("SNAPSHOT_BEGIN 255 255 255 "));
+            out.println("DRAW Default 1 2 3 4 5 0 0 0");
+            out.flush();
+
+            int chunks = 0;
+            String line;
+            while (!(line = in.readLine()).equals("SNAPSHOT_END")) {
+                assertTrue("not part of the board: " + line, line.startsWith("SNAPSHOT_CHUNK ACTIONS "));
+                ++chunks;
+            }
+            assertTrue("only " + chunks + " chunks", chunks > 2);
+            line = in.readLine();
+            assertTrue("not the draw: " + line, line.startsWith("DRAW "));
+
+            artist.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * test that when two clients draw on a board at the same time, everyone
+     * on it hears every draw in the same order, and each client's draws in
+     * the order it sent them
+     */
+    @Test(timeout = 20000)
+    public void concurrentDrawTest() {
+        try {
+            final int port = 9121;
+            startServer(port, new ServerConfig().setBoardThreads(2));
+
+            final Socket socket = new Socket(local, port);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                    socket.getOutputStream())));
+            out.println("HELLO");
+            out.flush();
+            assertEquals("LIST Default", in.readLine());
+            out.println("SELECT Default user1");
+            out.flush();
+            assertEquals("255 255 255 0 USERS user1 ACTIONS ", in.readLine());
+
+            final Socket socket2 = new Socket(localIP, port);
+            BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+            final PrintWriter out2 = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                    socket2.getOutputStream())));
+            out2.println("SELECT Default user2");
+            out2.flush();
+            assertEquals("255 255 255 0 USERS user1 user2 ACTIONS ", in2.readLine());
+            assertEquals("NEWUSER user2", in.readLine());
+
+            // user1 draws on row 1 and user2 on row 2, at the same time
+            final int draws = 2000;
+            Thread drawer = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < draws; ++i) {
+                        out2.println("DRAW Default " + i + " 2 " + i + " 2 1 0 0 0");
+                    }
+                    out2.flush();
+                }
+            });
+            drawer.start();
+            for (int i = 0; i < draws; ++i) {
+                out.println("DRAW Default " + i + " 1 " + i + " 1 1 0 0 0");
+            }
+            out.flush();
+            drawer.join();
+
+            int[] next = new int[3];
+            for (int i = 0; i < 2 * draws; ++i) {
+                String line = in.readLine();
+                assertEquals(line, in2.readLine());
+                // "DRAW" ARTSY X1 Y1 ...
+                String[] split = line.split(" ");
+                int row = new Integer(split[3]);
+                assertEquals(next[row]++, (int) new Integer(split[2]));
+            }
+            assertEquals(draws, next[1]);
+            assertEquals(draws, next[2]);
+
+            socket.close();
+            socket2.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * test that a cluster of servers lists every node's boards on every node,
+     * sends clients to the node that has the board they want, and tells every
+     * node's Artists about new boards
+     */
+    @Test(timeout = 20000)
+    public void clusterTest() {
+        try {
+            List<String> nodes = Arrays.asList("localhost:9122", "localhost:9123", "localhost:9124");
+            for (String node : nodes) {
+                startServer(new Integer(node.substring(10)), new ServerConfig().setCluster(node, nodes));
+            }
+            HashRing ring = new HashRing(nodes);
+
+            // an Artist on each node, who all see the default board
+            BufferedReader[] ins = new BufferedReader[3];
+            PrintWriter[] outs = new PrintWriter[3];
+            for (int i = 0; i < 3; ++i) {
+                final Socket socket = new Socket(local, 9122 + i);
+                ins[i] = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                outs[i] = new PrintWriter(socket.getOutputStream(), true);
+                outs[i].println("HELLO");
+                assertEquals("LIST Default", ins[i].readLine());
+            }
+
+            // the default board's node says so, the others send us there
+            int owner = new Integer(ring.owner("Default").substring(10));
+            for (int i = 0; i < 3; ++i) {
+                outs[i].println("WHERE Default");
+                assertEquals(9122 + i == owner ? "HERE" : "REDIRECT localhost " + owner, ins[i].readLine());
+            }
+            int other = owner == 9122 ? 9123 : 9122;
+            final Socket wrong = new Socket(local, other);
+            BufferedReader wrongIn = new BufferedReader(new InputStreamReader(wrong.getInputStream()));
+            new PrintWriter(wrong.getOutputStream(), true).println("SELECT Default user1");
+            assertEquals("REDIRECT localhost " + owner, wrongIn.readLine());
+            assertNull(wrongIn.readLine());
+            wrong.close();
+
+            final Socket canvas = new Socket(local, owner);
+            BufferedReader canvasIn = new BufferedReader(new InputStreamReader(canvas.getInputStream()));
+            new PrintWriter(canvas.getOutputStream(), true).println("SELECT Default user1");
+            assertEquals("255 255 255 0 USERS user1 ACTIONS ", canvasIn.readLine());
+            canvas.close();
+
+            // a board that isn't on the first node is made on its own node
+            String boardName = "board";
+            while (ring.owner(boardName).equals("localhost:9122")) {
+                boardName += "x";
+            }
+            int boardOwner = new Integer(ring.owner(boardName).substring(10));
+            outs[0].println("NEW " + boardName + " 0 0 0");
+            assertEquals("REDIRECT localhost " + boardOwner, ins[0].readLine());
+            assertNull(ins[0].readLine());
+
+            final Socket maker = new Socket(local, boardOwner);
+            BufferedReader makerIn = new BufferedReader(new InputStreamReader(maker.getInputStream()));
+            new PrintWriter(maker.getOutputStream(), true).println("NEW " + boardName + " 0 0 0");
+            assertEquals("NEWNAME " + boardName, makerIn.readLine());
+            maker.close();
+
+            // the other Artists hear about it, whatever node they're on
+            assertEquals("NEWBOARD " + boardName, ins[1].readLine());
+            assertEquals("NEWBOARD " + boardName, ins[2].readLine());
+
+            // and every node lists it
+            for (int i = 0; i < 3; ++i) {
+                final Socket socket = new Socket(local, 9122 + i);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                new PrintWriter(socket.getOutputStream(), true).println("HELLO");
+                List<String> list = Arrays.asList(in.readLine().split(" "));
+                assertEquals(3, list.size());
+                assertTrue(list.contains("Default") && list.contains(boardName));
+                socket.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * test that a server sends a standby every board it has, then every
+     * change and new board as they happen, tells everyone on a board about
+     * the standby, and forgets it once it's gone. Clients can't make or
+     * replay boards the way a primary does.
+     */
+    @Test(timeout = 10000)
+    public void replicateTest() {
+        try {
+            final int port = 9125;
+            startServer(port);
+
+            final Socket artist = new Socket(local, port);
+            BufferedReader artistIn = new BufferedReader(new InputStreamReader(artist.getInputStream()));
+            PrintWriter artistOut = new PrintWriter(artist.getOutputStream(), true);
+            artistOut.println("HELLO");
+            assertEquals("LIST Default", artistIn.readLine());
+
+            final Socket canvas = new Socket(local, port);
+            BufferedReader canvasIn = new BufferedReader(new InputStreamReader(canvas.getInputStream()));
+            PrintWriter canvasOut = new PrintWriter(canvas.getOutputStream(), true);
+            canvasOut.println("SELECT Default user1");
+            assertEquals("255 255 255 0 USERS user1 ACTIONS ", canvasIn.readLine());
+            canvasOut.println("DRAW Default 1 2 3 4 5 0 0 0");
+            assertEquals("DRAW 7 1 2 3 4 5 0 0 0", canvasIn.readLine());
+
+            // the standby gets the board as it is, and the canvas hears of it
+            final Socket standby = new Socket(local, port);
+            BufferedReader standbyIn = new BufferedReader(new InputStreamReader(standby.getInputStream()));
+            new PrintWriter(standby.getOutputStream(), true).println("REPLICATE localhost:9999");
+            assertEquals("CREATE Default 255 255 255", standbyIn.readLine());
+            assertEquals("REPLAY Default ACTIONS 1 2 3 4 5 0 0 0", standbyIn.readLine());
+            assertEquals("STANDBY localhost 9999", canvasIn.readLine());
+
+            // only a primary can make or replay a board, not its clients
+            final Socket rogue = new Socket(local, port);
+            PrintWriter rogueOut = new PrintWriter(rogue.getOutputStream(), true);
+            rogueOut.println("CREATE Default 0 0 0");
+            final Socket rogue2 = new Socket(local, port);
+            PrintWriter rogue2Out = new PrintWriter(rogue2.getOutputStream(), true);
+            rogue2Out.println("REPLAY Default ACTIONS 9 9 9 9 9 0 0 255");
+            Thread.sleep(100);
+
+            // then every change, as a request
+            canvasOut.println("DRAW Default 6 7 8 9 10 255 0 0");
+            assertEquals("DRAW 14 6 7 8 9 10 255 0 0", canvasIn.readLine());
+            assertEquals("DRAW Default 6 7 8 9 10 255 0 0", standbyIn.readLine());
+            canvasOut.println("BG Default 1 2 3");
+            assertEquals("BG 1 2 3", canvasIn.readLine());
+            assertEquals("BG Default 1 2 3", standbyIn.readLine());
+            canvasOut.println("CLEAR Default");
+            assertEquals("CLEAR", canvasIn.readLine());
+            assertEquals("CLEAR Default", standbyIn.readLine());
+
+            // and new boards
+            artistOut.println("NEW board2 0 0 0");
+            assertEquals("NEWNAME board2", artistIn.readLine());
+            assertEquals("CREATE board2 0 0 0", standbyIn.readLine());
+
+            // whoever joins later is told about it too
+            final Socket late = new Socket(local, port);
+            BufferedReader lateIn = new BufferedReader(new InputStreamReader(late.getInputStream()));
+            new PrintWriter(late.getOutputStream(), true).println("SELECT board2 user2");
+            assertEquals("0 0 0 0 USERS user2 ACTIONS ", lateIn.readLine());
+            assertEquals("STANDBY localhost 9999", lateIn.readLine());
+
+            // a standby that goes away without a word is forgotten
+            standby.close();
+            Thread.sleep(100);
+            final Socket later = new Socket(local, port);
+            BufferedReader laterIn = new BufferedReader(new InputStreamReader(later.getInputStream()));
+            new PrintWriter(later.getOutputStream(), true).println("SELECT board2 user3");
+            assertEquals("0 0 0 0 USERS user2 user3 ACTIONS ", laterIn.readLine());
+            assertEquals("NEWUSER user3", lateIn.readLine());
+            canvasOut.println("CLEAR board2");
+            assertEquals("CLEAR", laterIn.readLine());
+
+            artist.close();
+            canvas.close();
+            rogue.close();
+            rogue2.close();
+            late.close();
+            later.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * test that a standby follows its primary (played by the test), sends
+     * clients and their changes to it while it's up, and has every board
+     * ready for them as soon as it's gone
+     */
+    @Test(timeout = 10000)
+    public void standbyTest() {
+        try {
+            final int primaryPort = 9126;
+            final int port = 9127;
+            ServerSocket primary = new ServerSocket(primaryPort);
+            startServer(port, new ServerConfig().setStandby("localhost:" + port, "localhost:" + primaryPort));
+
+            final Socket follower = primary.accept();
+            BufferedReader followerIn = new BufferedReader(new InputStreamReader(follower.getInputStream()));
+            PrintWriter followerOut = new PrintWriter(follower.getOutputStream(), true);
+            assertEquals("REPLICATE localhost:" + port, followerIn.readLine());
+            followerOut.println("CREATE Default 255 255 255");
+            followerOut.println("REPLAY Default ACTIONS 1 2 3 4 5 0 0 0 6 7 8 9 10 0 0 0");
+            followerOut.println("DRAW Default 11 12 13 14 15 255 0 0");
+
+            // clients go to the primary while it's up
+            final Socket early = new Socket(local, port);
+            BufferedReader earlyIn = new BufferedReader(new InputStreamReader(early.getInputStream()));
+            new PrintWriter(early.getOutputStream(), true).println("SELECT Default user1");
+            assertEquals("REDIRECT localhost " + primaryPort, earlyIn.readLine());
+            assertNull(earlyIn.readLine());
+            early.close();
+
+            // and so do their changes, the board only changes like the
+            // primary's does
+            for (String change : Arrays.asList("DRAW Default 0 0 9 9 9 0 0 255", "BG Default 0 0 0",
+                    "CLEAR Default")) {
+                final Socket rogue = new Socket(local, port);
+                BufferedReader rogueIn = new BufferedReader(new InputStreamReader(rogue.getInputStream()));
+                new PrintWriter(rogue.getOutputStream(), true).println(change);
+                assertEquals("REDIRECT localhost " + primaryPort, rogueIn.readLine());
+                assertNull(rogueIn.readLine());
+                rogue.close();
+            }
+
+            // the primary goes away, the standby has everything already
+            follower.close();
+            primary.close();
+            long gone = System.currentTimeMillis();
+            String board;
+            do {
+                final Socket canvas = new Socket(local, port);
+                BufferedReader canvasIn = new BufferedReader(new InputStreamReader(canvas.getInputStream()));
+                new PrintWriter(canvas.getOutputStream(), true).println("SELECT Default user1");
+                board = canvasIn.readLine();
+                canvas.close();
+            } while (board.startsWith("REDIRECT"));
+            assertTrue(System.currentTimeMillis() - gone < 1000);
+            assertEquals("255 255 255 14 USERS user1 ACTIONS 1 2 3 4 5 0 0 0 6 7 8 9 10 0 0 0 11 12 13 14 15 255 0 0",
+                    board);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * test that a server started from another's write-ahead log has every
+     * board the other one had, with every change made to it
+     */
+    @Test(timeout = 10000)
+    public void walRecoveryTest() {
+        try {
+            final int port = 9128;
+            File log = Files.createTempDirectory("wal").toFile();
+            log.deleteOnExit();
+            startServer(port, new ServerConfig().setWriteAheadLog(log, 0, 4096, 1 << 20));
+
+            final Socket artist = new Socket(local, port);
+            BufferedReader artistIn = new BufferedReader(new InputStreamReader(artist.getInputStream()));
+            PrintWriter artistOut = new PrintWriter(artist.getOutputStream(), true);
+            artistOut.println("HELLO");
+            assertEquals("LIST Default", artistIn.readLine());
+            artistOut.println("NEW board2 0 0 0");
+            assertEquals("NEWNAME board2", artistIn.readLine());
+            artist.close();
+
+            final Socket canvas = new Socket(local, port);
+            BufferedReader canvasIn = new BufferedReader(new InputStreamReader(canvas.getInputStream()));
+            PrintWriter canvasOut = new PrintWriter(canvas.getOutputStream(), true);
+            canvasOut.println("SELECT board2 user1");
+            assertEquals("0 0 0 0 USERS user1 ACTIONS ", canvasIn.readLine());
+            canvasOut.println("DRAW board2 1 2 3 4 5 255 0 0");
+            assertEquals("DRAW 7 1 2 3 4 5 255 0 0", canvasIn.readLine());
+            canvasOut.println("BG board2 1 2 3");
+            assertEquals("BG 1 2 3", canvasIn.readLine());
+            canvasOut.println("DRAW board2 6 7 8 9 10 0 0 255");
+            assertEquals("DRAW 7 6 7 8 9 10 0 0 255", canvasIn.readLine());
+            canvas.close();
+
+            // give the log time to get it all to disk, then start over from it
+            Thread.sleep(200);
+            final int restarted = 9129;
+            startServer(restarted, new ServerConfig().setWriteAheadLog(log, 0, 4096, 1 << 20));
+
+            final Socket again = new Socket(local, restarted);
+            BufferedReader againIn = new BufferedReader(new InputStreamReader(again.getInputStream()));
+            PrintWriter againOut = new PrintWriter(again.getOutputStream(), true);
+            againOut.println("HELLO");
+            // in no particular order
+            List<String> boards = Arrays.asList(againIn.readLine().split(" "));
+            assertEquals(3, boards.size());
+            assertTrue(boards.containsAll(Arrays.asList("LIST", "Default", "board2")));
+            againOut.println("SELECT board2 user2");
+            assertEquals("1 2 3 7 USERS user2 ACTIONS 6 7 8 9 10 0 0 255", againIn.readLine());
+            again.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * test that a board nobody is on gets spilled to a file, is still listed,
+     * and is the same as before when it's selected again
+     */
+    @Test(timeout = 10000)
+    public void evictionTest() {
+        try {
+            final int port = 9130;
+            File spill = Files.createTempDirectory("spill").toFile();
+            spill.deleteOnExit();
+            startServer(port, new ServerConfig().setEviction(spill, 0));
+
+            final Socket canvas = new Socket(local, port);
+            BufferedReader canvasIn = new BufferedReader(new InputStreamReader(canvas.getInputStream()));
+            PrintWriter canvasOut = new PrintWriter(canvas.getOutputStream(), true);
+            canvasOut.println("HELLO");
+            assertEquals("LIST Default", canvasIn.readLine());
+            canvasOut.println("SELECT Default user1");
+            assertEquals("255 255 255 0 USERS user1 ACTIONS ", canvasIn.readLine());
+            canvasOut.println("DRAW Default 1 2 3 4 5 255 0 0");
+            assertEquals("DRAW 7 1 2 3 4 5 255 0 0", canvasIn.readLine());
+
+            // not while someone's on it
+            Thread.sleep(1500);
+            File file = new File(spill, "Default.board");
+            assertTrue(!file.exists());
+
+            canvasOut.println("BYE Default user1");
+            assertNull(canvasIn.readLine());
+            canvas.close();
+            for (int i = 0; i < 50 && !file.exists(); ++i) {
+                Thread.sleep(100);
+            }
+            assertTrue(file.exists());
+
+            // still listed, and read back in when selected
+            final Socket again = new Socket(local, port);
+            BufferedReader againIn = new BufferedReader(new InputStreamReader(again.getInputStream()));
+            PrintWriter againOut = new PrintWriter(again.getOutputStream(), true);
+            againOut.println("HELLO");
+            assertEquals("LIST Default", againIn.readLine());
+            againOut.println("SELECT Default user2");
+            assertEquals("255 255 255 7 USERS user2 ACTIONS 1 2 3 4 5 255 0 0", againIn.readLine());
+            assertTrue(!file.exists());
+            againOut.println("DRAW Default 6 7 8 9 10 0 0 255");
+            assertEquals("DRAW 14 6 7 8 9 10 0 0 255", againIn.readLine());
+            again.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * test that clients that ask for "ARTSY" get the artsy meter by itself,
+     * only when it changes, while everyone else still gets it on every draw
+     */
+    @Test(timeout = 10000)
+    public void artsyEventsTest() {
+        try {
+            final int port = 9131;
+            startServer(port);
+
+            final Socket socket = new Socket(local, port);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            final Socket legacy = new Socket(local, port);
+            BufferedReader legacyIn = new BufferedReader(new InputStreamReader(legacy.getInputStream()));
+            PrintWriter legacyOut = new PrintWriter(legacy.getOutputStream(), true);
+
+            out.println("HELLO");
+            assertEquals("LIST Default", in.readLine());
+            out.println("SELECT Default user1 ARTSY");
+            assertEquals("255 255 255 0 USERS user1 ACTIONS ", in.readLine());
+            assertEquals("ARTSY 0", in.readLine());
+
+            legacyOut.println("HELLO");
+            assertEquals("LIST Default", legacyIn.readLine());
+            legacyOut.println("SELECT Default user2");
+            assertEquals("255 255 255 0 USERS user1 user2 ACTIONS ", legacyIn.readLine());
+            assertEquals("NEWUSER user2", in.readLine());
+
+            // a new color moves the meter
+            out.println("DRAW Default 1 2 3 4 5 255 0 0");
+            assertEquals("ARTSY 7", in.readLine());
+            assertEquals("DRAW 1 2 3 4 5 255 0 0", in.readLine());
+            assertEquals("DRAW 7 1 2 3 4 5 255 0 0", legacyIn.readLine());
+
+            // the same color again doesn't
+            legacyOut.println("DRAW Default 6 7 8 9 10 255 0 0");
+            assertEquals("DRAW 6 7 8 9 10 255 0 0", in.readLine());
+            assertEquals("DRAW 7 6 7 8 9 10 255 0 0", legacyIn.readLine());
+
+            socket.close();
+            legacy.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // enough draws to fill up the socket of a client that doesn't read
+    private static final int LOTS = 150000;
+
+    /**
+     * Connects a client with a tiny receive buffer, so it falls behind fast
+     *
+     * @param port
+     *            port the server is on
+     * @param select
+     *            "SELECT" line to join a board with
+     * @return the client's input
+     */
+    private BufferedReader slowClient(int port, String select) throws IOException {
+        final Socket socket = new Socket();
+        socket.setReceiveBufferSize(1024);
+        socket.connect(new InetSocketAddress(local, port));
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+        out.println("HELLO");
+        assertEquals("LIST Default", in.readLine());
+        out.println(select);
+        return in;
+    }
+
+    /**
+     * Has a slow client that didn't ask for "STREAM" and a client that keeps
+     * up join the default board, draws on it until the slow one is cut off,
+     * and checks that the other one hears it left, and that the slow one got
+     * nothing but draws before the end of its stream
+     *
+     * @param port
+     *            port the server is on, which cuts off slow clients like that
+     */
+    private void assertCutOff(int port) throws IOException {
+        BufferedReader in = slowClient(port, "SELECT Default user1");
+        assertEquals("255 255 255 0 USERS user1 ACTIONS ", in.readLine());
+
+        // a client that keeps up
+        final Socket socket2 = new Socket(localIP, port);
+        final BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+        PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+        out2.println("SELECT Default user2");
+        assertEquals("255 255 255 0 USERS user1 user2 ACTIONS ", in2.readLine());
+        assertEquals("NEWUSER user2", in.readLine());
+
+        // draw a step at a time so user2 keeps up, until it hears that
+        // user1 was cut off, however much fits in user1's socket
+        final int step = 500;
+        Socket artist = new Socket(localIP, port);
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(artist.getOutputStream())));
+        List<String> left = new ArrayList<String>();
+        for (int i = 0; left.isEmpty(); i += step) {
+            for (int j = i; j < i + step; ++j) {
+                out.println("DRAW Default " + (j % 800) + " 10 " + (j % 800) + " 20 1 0 0 0");
+            }
+            out.flush();
+            for (int draws = 0; draws < step;) {
+                String line = in2.readLine();
+                if (line.startsWith("DRAW ")) {
+                    ++draws;
+                } else {
+                    left.add(line);
+                }
+            }
+        }
+        // user1's name, even though it was forgotten right away
+        assertEquals(Arrays.asList("BYEUSER user1"), left);
+        artist.close();
+        socket2.close();
+
+        // the client gets what made it out before it was cut off, which
+        // may end in part of a line, and then the end of the stream
+        String last = "DRAW ";
+        String line;
+        while ((line = in.readLine()) != null) {
+            assertTrue("not a draw: " + last, last.startsWith("DRAW "));
+            last = line;
+        }
+        assertTrue("not part of a draw: " + last, last.startsWith("DRAW ") || "DRAW ".startsWith(last));
+    }
+
+    /**
+     * Draws LOTS of segments on the default board and then clears it, from an
+     * Artist that isn't on the board (so it doesn't hear them)
+     *
+     * @param port
+     *            port the server is on
+     */
+    private void drawLots(int port) throws IOException {
+        final Socket socket = new Socket(localIP, port);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+
+        for (int i = 0; i < LOTS; ++i) {
+            out.println("DRAW Default " + (i % 800) + " 10 " + (i % 800) + " 20 1 0 0 0");
+        }
+        out.println("CLEAR Default");
+        // everything before it has been read once this is answered
+        out.println("HELLO");
+        out.flush();
+        assertEquals("LIST Default", in.readLine());
+    }
+
+    /**
+     * A session with a binary client and a text client on the default board
+     * 
+     * @param port
+     *            port the server is on
+     */
+    private void binarySession(int port) {
+        try {
+            // the binary client
+            final Socket socket = new Socket(local, port);
+            FrameReader in = new FrameReader(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            out.write("HELLO\n".getBytes());
+            assertEquals(FrameReader.LINE, in.next());
+            assertEquals("LIST Default", in.line());
+            out.write("SELECT Default user1 BINARY\n".getBytes());
+            assertEquals(FrameReader.LINE, in.next());
+            assertEquals("255 255 255 0 USERS user1 ACTIONS ", in.line());
+            assertEquals(FrameReader.LINE, in.next());
+            assertEquals("BINARY 0", in.line());
+
+            // the text client
+            final Socket socket2 = new Socket(localIP, port);
+            BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+            PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+            out2.println("SELECT Default user2");
+            assertEquals("255 255 255 0 USERS user1 user2 ACTIONS ", in2.readLine());
+            assertEquals(FrameReader.LINE, in.next());
+            assertEquals("NEWUSER user2", in.line());
+
+            // a frame comes back as a frame, and as a line to the text client
+            out.write(Frames.encodeDraw(0, 10, 20, 13, 18, 3, 255, 0, 0));
+            out.flush();
+            int[] values = new int[9];
+            assertEquals(Frames.DRAW, in.next());
+            Frames.decodeDraw(Frames.DRAW, in.payload(), in.length(), values);
+            assertArrayEquals(new int[] { 7, 10, 20, 13, 18, 3, 255, 0, 0 }, values);
+            assertEquals("DRAW 7 10 20 13 18 3 255 0 0", in2.readLine());
+
+            // a line comes to the binary client as a frame
+            out2.println("DRAW Default -1 -1 -1 -1 -1 -1 -1 -1");
+            assertEquals("DRAW 7 -1 -1 -1 -1 -1 -1 -1 -1", in2.readLine());
+            assertEquals(Frames.DRAW_NO_COLOR, in.next());
+            Frames.decodeDraw(Frames.DRAW_NO_COLOR, in.payload(), in.length(), values);
+            assertArrayEquals(new int[] { 7, -1, -1, -1, -1, -1, -1, -1, -1 }, values);
+
+            // the history is the same either way
+            final Socket socket3 = new Socket(localIP, port);
+            BufferedReader in3 = new BufferedReader(new InputStreamReader(socket3.getInputStream()));
+            PrintWriter out3 = new PrintWriter(socket3.getOutputStream(), true);
+            out3.println("SELECT Default user3");
+            assertEquals("255 255 255 7 USERS user1 user2 user3 ACTIONS 10 20 13 18 3 255 0 0 -1 -1 -1 -1 -1 -1 -1 -1",
+                    in3.readLine());
+
+            socket.close();
+            socket2.close();
+            socket3.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Runs the server in another thread
      * 
@@ -473,10 +1642,22 @@ public class WhiteboardIntegrationTest {
      *            port to run the server on
      */
     private void startServer(final int port) {
+        startServer(port, new ServerConfig());
+    }
+
+    /**
+     * Runs the server in another thread
+     * 
+     * @param port
+     *            port to run the server on
+     * @param config
+     *            startup options for the server
+     */
+    private void startServer(final int port, final ServerConfig config) {
         new Thread(new Runnable() {
             public void run() {
                 try {
-                    new WhiteboardServer(port);
+                    new WhiteboardServer(port, config);
                 } catch (Exception e) {
                     e.printStackTrace();
                     return;
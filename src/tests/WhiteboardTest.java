@@ -4,11 +4,25 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import javax.imageio.ImageIO;
+
 import org.junit.Test;
 
+import protocol.Base64;
+import protocol.Stamps;
+import server.StrokeLog;
 import server.Whiteboard;
 
 /**
@@ -20,6 +34,17 @@ import server.Whiteboard;
  * that the artsy meter returns to 0 when the board is cleared. We can partition
  * on different names and colors, and different actions sent (different pixels,
  * colors, or doge code, which is all -1s). We allow no empty strings in names.
+ * Test that snapshots look like the board, and that only the actions after a
+ * cached snapshot get sent along with it (partition on fresh vs cached
+ * snapshots, and before vs after a clear). Test that compaction only happens
+ * once a limit is reached, and that a compacted board looks exactly the same
+ * whether it's replayed from its actions or from its snapshot. Test that
+ * streaming the history gives the same thing in chunks no bigger than asked
+ * for (partition on full vs partial last chunks, and empty boards). Test that
+ * a board written out and read back in is the same board (partition on
+ * compacted or not, and empty boards). Test that stamps (partition on in the
+ * middle of the board vs placed, and known vs unknown) are kept like other
+ * actions and drawn where they go, or not at all.
  * 
  */
 public class WhiteboardTest {
@@ -74,12 +99,14 @@ public class WhiteboardTest {
 
         assertEquals(MITboard.getName(), "MIT");
         assertEquals(MITboard.getBackgroundColorString(), "163 31 52");
+        assertEquals(0xa31f34, MITboard.getBackgroundRGB());
 
         MITboard.setBackgroundColor(0, 0, 0);
 
         // changing background color is not an action
         assertTrue(MITboard.createStringOfActions().length() == 0);
         assertEquals(MITboard.getBackgroundColorString(), "0 0 0");
+        assertEquals(0, MITboard.getBackgroundRGB());
     }
 
     @Test
@@ -154,4 +181,255 @@ public class WhiteboardTest {
                 Color.MAGENTA.getGreen(), Color.MAGENTA.getBlue());
         assertTrue(MITboard.calculateArtsy() == 14);
     }
+
+    @Test
+    public void snapshotTest() throws IOException {
+        // test that a snapshot looks like the board
+        final Whiteboard board1 = new Whiteboard("board1", whitergb);
+        board1.addAction(10, 10, 100, 10, 5, 255, 0, 0);
+
+        // fresh snapshot, so no actions after it
+        String[] snapshot = board1.createStringOfSnapshot().split(" ");
+        assertEquals("SNAPSHOT", snapshot[0]);
+        assertEquals("ACTIONS", snapshot[2]);
+        assertEquals(3, snapshot.length);
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(Base64.decode(snapshot[1])));
+        assertEquals(800, image.getWidth());
+        assertEquals(600, image.getHeight());
+        assertEquals(Color.RED.getRGB(), image.getRGB(50, 10));
+        assertEquals(Color.WHITE.getRGB(), image.getRGB(50, 50));
+
+        // the snapshot is cached, the new action comes after it
+        board1.addAction(0, 7, 2, 9, 10, 157, 33, 56);
+        assertEquals("SNAPSHOT " + snapshot[1] + " ACTIONS 0 7 2 9 10 157 33 56", board1.createStringOfSnapshot());
+
+        // clearing wipes the snapshot out too
+        board1.clear();
+        snapshot = board1.createStringOfSnapshot().split(" ");
+        image = ImageIO.read(new ByteArrayInputStream(Base64.decode(snapshot[1])));
+        assertEquals(Color.WHITE.getRGB(), image.getRGB(50, 10));
+    }
+
+    @Test
+    public void stampTest() throws IOException {
+        // test that stamps are kept like any action, and go where they're put
+        // on the snapshot
+        final Whiteboard board1 = new Whiteboard("board1", blackrgb);
+        // doge in the middle, and one around (100, 100)
+        board1.addAction(-1, -1, -1, -1, Stamps.stroke(Stamps.DOGE), -1, -1, -1);
+        board1.addAction(100, 100, -1, -1, Stamps.stroke(Stamps.DOGE), -1, -1, -1);
+        // a stamp we don't know is kept, but not drawn
+        board1.addAction(-1, -1, -1, -1, -50, -1, -1, -1);
+        assertEquals("-1 -1 -1 -1 -1 -1 -1 -1 100 100 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -50 -1 -1 -1",
+                board1.createStringOfActions());
+        assertEquals(0, board1.calculateArtsy());
+
+        // just like the image drawn there
+        BufferedImage doge = ImageIO.read(new File(Stamps.file(Stamps.DOGE)));
+        BufferedImage expected = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = expected.createGraphics();
+        g.drawImage(doge, 125, 25, null);
+        g.drawImage(doge, 100 - 275, 100 - 275, null);
+        g.dispose();
+        BufferedImage image = snapshotImage(board1);
+        RendererTest.assertSamePixels(expected, image);
+    }
+
+    @Test
+    public void snapshotTailTest() {
+        // test that the actions after a snapshot never pile up
+        final Whiteboard board1 = new Whiteboard("board1", blackrgb);
+        board1.createStringOfSnapshot();
+
+        for (int i = 0; i < 1000; ++i) {
+            board1.addAction(i % 800, 0, i % 800, 600, 1, 255, 255, 255);
+            String[] tail = board1.createStringOfSnapshot().split(" ACTIONS ");
+            assertTrue(tail.length == 1 || tail[1].split(" ").length <= 8 * 256);
+        }
+    }
+
+    @Test
+    public void compactTest() throws IOException {
+        // test that compacting keeps the picture and the artsy meter
+        final Whiteboard board1 = new Whiteboard("board1", whitergb);
+        // the same lines over and over, which the checkpoint only has once
+        for (int i = 0; i < 10; ++i) {
+            board1.addAction(10, 10, 100, 10, 1, 255, 0, 0);
+            board1.addAction(30, 200, 300, 200, 1, 0, 0, 255);
+            board1.addAction(600, 580, 700, 580, 1, 163, 31, 52);
+        }
+
+        // not enough actions yet, not old or big enough either
+        assertTrue(!board1.compactIfNeeded(31, 0, 0));
+        assertTrue(!board1.compactIfNeeded(0, 1000, 0));
+        assertTrue(!board1.compactIfNeeded(0, 0, 60000));
+        String history = board1.createStringOfActions();
+        assertTrue(history.startsWith("10 10 100 10 1 255 0 0 30 200 300 200 1 0 0 255 600 580 700 580 1 163 31 52 "));
+
+        String before = board1.createStringOfSnapshot().split(" ")[1];
+        assertTrue(board1.compactIfNeeded(30, 0, 0));
+        assertEquals(21, board1.calculateArtsy());
+        assertEquals("10 10 100 10 1 255 0 0 30 200 300 200 1 0 0 255 600 580 700 580 1 163 31 52",
+                board1.createStringOfActions());
+
+        // nothing left after the checkpoint, which looks just like before
+        assertEquals("SNAPSHOT " + before + " ACTIONS ", board1.createStringOfSnapshot());
+
+        // the actions are now the checkpoint as 1 pixel runs, which replay
+        // into the same picture on a fresh board
+        String[] replay = board1.createStringOfActions().split(" ");
+        final Whiteboard board2 = new Whiteboard("board2", whitergb);
+        for (int i = 0; i < replay.length; i += 8) {
+            board2.addAction(new Integer(replay[i]), new Integer(replay[i + 1]), new Integer(replay[i + 2]),
+                    new Integer(replay[i + 3]), new Integer(replay[i + 4]), new Integer(replay[i + 5]),
+                    new Integer(replay[i + 6]), new Integer(replay[i + 7]));
+        }
+        BufferedImage image1 = snapshotImage(board1);
+        BufferedImage image2 = snapshotImage(board2);
+        RendererTest.assertSamePixels(image1, image2);
+
+        // new actions come after the checkpoint
+        board1.addAction(0, 0, 5, 5, 7, 0, 0, 0);
+        replay = board1.createStringOfActions().split(" ");
+        assertEquals("0 0 5 5 7 0 0 0", join(replay, replay.length - 8, replay.length));
+
+        // clearing throws the checkpoint away too
+        board1.clear();
+        assertEquals("", board1.createStringOfActions());
+    }
+
+    @Test
+    public void compactBiggerTest() {
+        // test that compacting never makes the actions longer: a stamp and a
+        // thick line are a lot of 1 pixel runs, so they're kept as they are
+        final Whiteboard board1 = new Whiteboard("board1", whitergb);
+        board1.addAction(-1, -1, -1, -1, -1, -1, -1, -1);
+        board1.addAction(30, 200, 300, 50, 9, 0, 0, 255);
+        String history = board1.createStringOfActions();
+        assertTrue(!board1.compactIfNeeded(1, 0, 0));
+        assertEquals(history, board1.createStringOfActions());
+
+        // lines drawn over and over again are fewer runs, and do get
+        // compacted, never into anything longer
+        final Whiteboard board2 = new Whiteboard("board2", whitergb);
+        for (int i = 0; i < 50; ++i) {
+            board2.addAction(10, 10 + i % 5, 100, 10 + i % 5, 1, 255, 0, 0);
+        }
+        history = board2.createStringOfActions();
+        assertTrue(board2.compactIfNeeded(1, 0, 0));
+        assertTrue(board2.createStringOfActions().length() <= history.length());
+
+        // and the same goes for compacting again on top of the checkpoint
+        board2.addAction(10, 12, 100, 12, 1, 0, 0, 255);
+        history = board2.createStringOfActions();
+        board2.compactIfNeeded(1, 0, 0);
+        assertTrue(board2.createStringOfActions().length() <= history.length());
+    }
+
+    @Test
+    public void streamTest() {
+        // test that streaming gives the same thing as the string, in bounded
+        // chunks
+        final Whiteboard board1 = new Whiteboard("board1", whitergb);
+        for (int i = 0; i < 5; ++i) {
+            board1.addAction(i, i, i + 1, i + 1, 3, 0, 0, 0);
+        }
+
+        final List<String> chunks = new ArrayList<String>();
+        Whiteboard.ChunkSink sink = new Whiteboard.ChunkSink() {
+            public void chunk(String chunk) {
+                chunks.add(chunk);
+            }
+        };
+
+        // 2 + 2 + 1
+        board1.streamActions(2, sink);
+        assertEquals(Arrays.asList("ACTIONS 0 0 1 1 3 0 0 0 1 1 2 2 3 0 0 0", "ACTIONS 2 2 3 3 3 0 0 0 3 3 4 4 3 0 0 0",
+                "ACTIONS 4 4 5 5 3 0 0 0"), chunks);
+
+        // the PNG pieces glue back into the snapshot
+        chunks.clear();
+        board1.streamSnapshot(100, 2, sink);
+        String[] snapshot = board1.createStringOfSnapshot().split(" ");
+        StringBuilder png = new StringBuilder();
+        for (String chunk : chunks) {
+            assertTrue(chunk.startsWith("PNG "));
+            assertTrue(chunk.length() <= 104);
+            png.append(chunk.substring(4));
+        }
+        assertEquals(snapshot[1], png.toString());
+
+        // nothing at all for an empty board
+        chunks.clear();
+        board1.clear();
+        board1.streamActions(2, sink);
+        assertEquals(0, chunks.size());
+    }
+
+    @Test
+    public void writeReadTest() throws IOException {
+        // test that a board read back in has the same bg, history, artsy
+        // meter and picture
+        final Whiteboard board1 = new Whiteboard("board1", blackrgb);
+        assertEquals(board1.createStringOfActions(), readBack(board1).createStringOfActions());
+
+        board1.addAction(10, 10, 100, 10, 5, 255, 0, 0);
+        board1.addAction(-1, -1, -1, -1, -1, -1, -1, -1);
+        board1.addAction(30, 200, 300, 50, 9, 163, 31, 52);
+        Whiteboard board2 = readBack(board1);
+        assertEquals("board1", board2.getName());
+        assertEquals("0 0 0", board2.getBackgroundColorString());
+        assertEquals(board1.createStringOfActions(), board2.createStringOfActions());
+        assertEquals(board1.calculateArtsy(), board2.calculateArtsy());
+
+        // a compacted board keeps its checkpoint, and what came after it
+        // (lines drawn over and over are worth compacting, unlike a stamp)
+        final Whiteboard board3 = new Whiteboard("board3", blackrgb);
+        for (int i = 0; i < 50; ++i) {
+            board3.addAction(10, 10, 100, 10, 1, 255, 0, 0);
+            board3.addAction(30, 200, 300, 200, 1, 163, 31, 52);
+        }
+        assertTrue(board3.compactIfNeeded(3, 0, 0));
+        board2 = readBack(board3);
+        BufferedImage image1 = snapshotImage(board3);
+        BufferedImage image2 = snapshotImage(board2);
+        RendererTest.assertSamePixels(image1, image2);
+        board3.addAction(0, 0, 5, 5, 7, 0, 0, 255);
+        board2 = readBack(board3);
+        assertEquals(board3.createStringOfActions(), board2.createStringOfActions());
+        assertEquals(board3.calculateArtsy(), board2.calculateArtsy());
+
+        // and goes on like the original
+        board2.addAction(1, 1, 2, 2, 1, 255, 255, 0);
+        assertEquals(28, board2.calculateArtsy());
+    }
+
+    /**
+     * @return the image in the board's snapshot
+     */
+    private BufferedImage snapshotImage(Whiteboard board) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(Base64.decode(board.createStringOfSnapshot().split(" ")[1])));
+    }
+
+    /**
+     * @return the board, written out and read back in
+     */
+    private Whiteboard readBack(Whiteboard board) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        board.writeTo(new DataOutputStream(bytes));
+        return Whiteboard.readFrom(board.getName(), new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+                new StrokeLog());
+    }
+
+    /**
+     * @return tokens [from, to) joined by spaces
+     */
+    private String join(String[] tokens, int from, int to) {
+        StringBuilder joined = new StringBuilder();
+        for (int i = from; i < to; ++i) {
+            joined.append(i > from ? " " : "").append(tokens[i]);
+        }
+        return joined.toString();
+    }
 }
@@ -0,0 +1,198 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import server.WriteAheadLog;
+
+/**
+ * Testing strategy: make sure every kind of change comes back out of a log
+ * exactly as it went in, in order, after the log is closed and recovered.
+ * Partition on names that fit in one record vs many, one segment vs many, a
+ * clean end vs a torn or corrupt last record, and with vs without a
+ * checkpoint (whose segments should be deleted, and whose boards shouldn't
+ * get changes they already have).
+ */
+public class WriteAheadLogTest {
+    private static final long SEGMENT_BYTES = 4096;
+
+    @Test
+    public void recoverTest() throws IOException {
+        File directory = tempDirectory();
+        WriteAheadLog log = new WriteAheadLog(directory, 0, 1 << 20);
+        assertEquals("", recover(log));
+
+        String longName = "a board with a name that takes a few records, \u00fcber";
+        log.create(0, "Default", 255, 255, 255);
+        log.draw(0, 1, 2, 3, 4, 5, 6, 7, 8);
+        log.create(1, longName, 0, 0, 0);
+        // doge
+        log.draw(1, -1, -1, -1, -1, -1, -1, -1, -1);
+        log.background(0, 1, 2, 3);
+        log.clear(1);
+        assertEquals(8, log.position());
+        log.close();
+
+        String expected = "create 0 Default 255 255 255\n" + "draw 0 1 2 3 4 5 6 7 8\n" + "create 1 " + longName
+                + " 0 0 0\n" + "draw 1 -1 -1 -1 -1 -1 -1 -1 -1\n" + "bg 0 1 2 3\n" + "clear 1\n";
+        WriteAheadLog again = new WriteAheadLog(directory, 0, 1 << 20);
+        assertEquals(expected, recover(again));
+
+        // and more after it
+        again.clear(0);
+        again.close();
+        assertEquals(expected + "clear 0\n", recover(new WriteAheadLog(directory, 0, 1 << 20)));
+    }
+
+    @Test
+    public void segmentsTest() throws IOException {
+        File directory = tempDirectory();
+        WriteAheadLog log = new WriteAheadLog(directory, 0, SEGMENT_BYTES);
+        recover(log);
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            // names that take a few records, so some end up at the end of a
+            // segment
+            if (i % 7 == 0) {
+                log.create(i, "board with a long enough name " + i, 1, 2, 3);
+                expected.append("create " + i + " board with a long enough name " + i + " 1 2 3\n");
+            }
+            log.draw(i, i % 800, i % 600, 1, 2, 3, i % 256, 0, 0);
+            expected.append("draw " + i + " " + (i % 800) + " " + (i % 600) + " 1 2 3 " + (i % 256) + " 0 0\n");
+        }
+        log.close();
+        assertTrue(segments(directory).size() > 8);
+
+        assertEquals(expected.toString(), recover(new WriteAheadLog(directory, 0, SEGMENT_BYTES)));
+    }
+
+    @Test
+    public void tornTest() throws IOException {
+        File directory = tempDirectory();
+        WriteAheadLog log = new WriteAheadLog(directory, 0, 1 << 20);
+        recover(log);
+        log.create(0, "Default", 255, 255, 255);
+        log.draw(0, 1, 2, 3, 4, 5, 6, 7, 8);
+        log.draw(0, 9, 9, 9, 9, 9, 9, 9, 9);
+        log.close();
+
+        // half of a record written when we crashed
+        File segment = segments(directory).get(0);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(file.length());
+            file.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 });
+        }
+        WriteAheadLog again = new WriteAheadLog(directory, 0, 1 << 20);
+        assertEquals("create 0 Default 255 255 255\ndraw 0 1 2 3 4 5 6 7 8\ndraw 0 9 9 9 9 9 9 9 9\n",
+                recover(again));
+        again.close();
+
+        // the last record is corrupt, everything before it is fine
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(file.length() - 10);
+            file.write(42);
+        }
+        again = new WriteAheadLog(directory, 0, 1 << 20);
+        assertEquals("create 0 Default 255 255 255\ndraw 0 1 2 3 4 5 6 7 8\n", recover(again));
+
+        // new records go right after the last good one
+        again.clear(0);
+        again.close();
+        assertEquals("create 0 Default 255 255 255\ndraw 0 1 2 3 4 5 6 7 8\nclear 0\n",
+                recover(new WriteAheadLog(directory, 0, 1 << 20)));
+    }
+
+    @Test
+    public void checkpointTest() throws IOException {
+        File directory = tempDirectory();
+        WriteAheadLog log = new WriteAheadLog(directory, 0, SEGMENT_BYTES);
+        recover(log);
+        log.create(0, "Default", 255, 255, 255);
+        for (int i = 0; i < 500; ++i) {
+            log.draw(0, i, i, i, i, 1, 0, 0, 0);
+        }
+        log.background(0, 1, 2, 3);
+        log.draw(0, 5, 5, 5, 5, 5, 5, 5, 5);
+        assertTrue(log.needsCheckpoint(100));
+        // make sure the segments are written before we count them
+        log.close();
+        log = new WriteAheadLog(directory, 0, SEGMENT_BYTES);
+        recover(log);
+        int before = segments(directory).size();
+
+        // the board as it is now, and one made while the checkpoint is going
+        WriteAheadLog.Checkpoint checkpoint = log.beginCheckpoint();
+        log.create(1, "late", 0, 0, 0);
+        WriteAheadLog.BoardImage image = new WriteAheadLog.BoardImage(0, "Default", log.position(), 1, 2, 3);
+        image.segment(5, 5, 5, 5, 5, 5, 5, 5);
+        checkpoint.add(image);
+        log.draw(0, 6, 6, 6, 6, 6, 6, 6, 6);
+        checkpoint.commit();
+        assertTrue(segments(directory).size() < before);
+        assertTrue(!log.needsCheckpoint(100));
+
+        log.close();
+        assertEquals("create 0 Default 1 2 3\ndraw 0 5 5 5 5 5 5 5 5\ncreate 1 late 0 0 0\ndraw 0 6 6 6 6 6 6 6 6\n",
+                recover(new WriteAheadLog(directory, 0, SEGMENT_BYTES)));
+    }
+
+    /**
+     * Recovers a log
+     *
+     * @return every change it had, one per line
+     */
+    private String recover(WriteAheadLog log) throws IOException {
+        final StringBuilder changes = new StringBuilder();
+        log.recover(new WriteAheadLog.Replayer() {
+            public void create(int boardID, String name, int red, int green, int blue) {
+                changes.append("create " + boardID + " " + name + " " + red + " " + green + " " + blue + "\n");
+            }
+
+            public void draw(int boardID, int x1, int y1, int x2, int y2, int stroke, int red, int green, int blue) {
+                changes.append("draw " + boardID + " " + x1 + " " + y1 + " " + x2 + " " + y2 + " " + stroke + " " + red
+                        + " " + green + " " + blue + "\n");
+            }
+
+            public void background(int boardID, int red, int green, int blue) {
+                changes.append("bg " + boardID + " " + red + " " + green + " " + blue + "\n");
+            }
+
+            public void clear(int boardID) {
+                changes.append("clear " + boardID + "\n");
+            }
+        });
+        return changes.toString();
+    }
+
+    /**
+     * @return the log's segment files, in order
+     */
+    private List<File> segments(File directory) {
+        List<File> segments = new ArrayList<File>();
+        for (String name : new java.util.TreeSet<String>(java.util.Arrays.asList(directory.list()))) {
+            if (name.endsWith(".wal")) {
+                segments.add(new File(directory, name));
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * @return a new, empty directory
+     */
+    private File tempDirectory() throws IOException {
+        File directory = Files.createTempDirectory("wal").toFile();
+        directory.deleteOnExit();
+        return directory;
+    }
+}